@@ -0,0 +1,198 @@
+package org.cyclopsgroup.cym2.flatsite;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Log that keeps messages in memory until they are flushed into another log, so that messages of
+ * pages generated concurrently can be written in a deterministic order
+ */
+class BufferedLog implements Log {
+  private enum Level {
+    DEBUG, ERROR, INFO, WARN
+  }
+
+  private static final class Entry {
+    private final Throwable error;
+
+    private final Level level;
+
+    private final CharSequence message;
+
+    private Entry(Level level, CharSequence message, Throwable error) {
+      this.level = level;
+      this.message = message;
+      this.error = error;
+    }
+  }
+
+  private final List<Entry> entries = new ArrayList<Entry>();
+
+  private final Log target;
+
+  /**
+   * @param target Log where messages are eventually written
+   */
+  BufferedLog(Log target) {
+    this.target = target;
+  }
+
+  private void add(Level level, CharSequence message, Throwable error) {
+    synchronized (entries) {
+      entries.add(new Entry(level, message, error));
+    }
+  }
+
+  @Override
+  public void debug(CharSequence content) {
+    if (target.isDebugEnabled()) {
+      add(Level.DEBUG, content, null);
+    }
+  }
+
+  @Override
+  public void debug(CharSequence content, Throwable error) {
+    if (target.isDebugEnabled()) {
+      add(Level.DEBUG, content, error);
+    }
+  }
+
+  @Override
+  public void debug(Throwable error) {
+    if (target.isDebugEnabled()) {
+      add(Level.DEBUG, null, error);
+    }
+  }
+
+  @Override
+  public void error(CharSequence content) {
+    add(Level.ERROR, content, null);
+  }
+
+  @Override
+  public void error(CharSequence content, Throwable error) {
+    add(Level.ERROR, content, error);
+  }
+
+  @Override
+  public void error(Throwable error) {
+    add(Level.ERROR, null, error);
+  }
+
+  /**
+   * Write all buffered messages into target log and clear the buffer
+   */
+  void flush() {
+    synchronized (entries) {
+      for (Entry entry : entries) {
+        if (entry.error == null) {
+          write(entry.level, entry.message);
+        } else if (entry.message == null) {
+          write(entry.level, entry.error);
+        } else {
+          write(entry.level, entry.message, entry.error);
+        }
+      }
+      entries.clear();
+    }
+  }
+
+  @Override
+  public void info(CharSequence content) {
+    add(Level.INFO, content, null);
+  }
+
+  @Override
+  public void info(CharSequence content, Throwable error) {
+    add(Level.INFO, content, error);
+  }
+
+  @Override
+  public void info(Throwable error) {
+    add(Level.INFO, null, error);
+  }
+
+  @Override
+  public boolean isDebugEnabled() {
+    return target.isDebugEnabled();
+  }
+
+  @Override
+  public boolean isErrorEnabled() {
+    return target.isErrorEnabled();
+  }
+
+  @Override
+  public boolean isInfoEnabled() {
+    return target.isInfoEnabled();
+  }
+
+  @Override
+  public boolean isWarnEnabled() {
+    return target.isWarnEnabled();
+  }
+
+  @Override
+  public void warn(CharSequence content) {
+    add(Level.WARN, content, null);
+  }
+
+  @Override
+  public void warn(CharSequence content, Throwable error) {
+    add(Level.WARN, content, error);
+  }
+
+  @Override
+  public void warn(Throwable error) {
+    add(Level.WARN, null, error);
+  }
+
+  private void write(Level level, CharSequence message) {
+    switch (level) {
+      case DEBUG:
+        target.debug(message);
+        break;
+      case INFO:
+        target.info(message);
+        break;
+      case WARN:
+        target.warn(message);
+        break;
+      default:
+        target.error(message);
+    }
+  }
+
+  private void write(Level level, CharSequence message, Throwable error) {
+    switch (level) {
+      case DEBUG:
+        target.debug(message, error);
+        break;
+      case INFO:
+        target.info(message, error);
+        break;
+      case WARN:
+        target.warn(message, error);
+        break;
+      default:
+        target.error(message, error);
+    }
+  }
+
+  private void write(Level level, Throwable error) {
+    switch (level) {
+      case DEBUG:
+        target.debug(error);
+        break;
+      case INFO:
+        target.info(error);
+        break;
+      case WARN:
+        target.warn(error);
+        break;
+      default:
+        target.error(error);
+    }
+  }
+}
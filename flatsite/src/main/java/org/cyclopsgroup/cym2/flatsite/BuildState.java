@@ -0,0 +1,269 @@
+package org.cyclopsgroup.cym2.flatsite;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Persisted record of generated pages and the inputs each of them read, used to skip pages whose
+ * inputs didn't change since last build. An input is unchanged when its size and modification time
+ * are the same, or its content hash is the same.
+ */
+class BuildState {
+  private static final String KEY_SETTINGS = "#settings";
+
+  private static final String PREFIX_FILE = "file:";
+
+  private static final String PREFIX_INPUTS = "inputs:";
+
+  private static final String PREFIX_OUTPUT = "output:";
+
+  private static final String SEPARATOR = "|";
+
+  /**
+   * Fingerprint of file, size, modification time and MD5 of content
+   */
+  private static final class Fingerprint {
+    private final long lastModified;
+
+    private final String md5;
+
+    private final long size;
+
+    private Fingerprint(long size, long lastModified, String md5) {
+      this.size = size;
+      this.lastModified = lastModified;
+      this.md5 = md5;
+    }
+
+    private static Fingerprint of(File file) throws IOException {
+      try (InputStream in = new FileInputStream(file)) {
+        return new Fingerprint(file.length(), file.lastModified(), DigestUtils.md5Hex(in));
+      }
+    }
+
+    private static Fingerprint parse(String value) {
+      String[] parts = value.split(" ", 3);
+      return new Fingerprint(Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts[2]);
+    }
+
+    @Override
+    public String toString() {
+      return size + " " + lastModified + " " + md5;
+    }
+  }
+
+  /**
+   * Record of a generated page
+   */
+  private static final class Page {
+    private final Set<String> inputs;
+
+    private final String output;
+
+    private Page(String output, Set<String> inputs) {
+      this.output = output;
+      this.inputs = inputs;
+    }
+  }
+
+  private final Map<String, Boolean> changedFiles = new ConcurrentHashMap<String, Boolean>();
+
+  private final File file;
+
+  private final Map<String, Fingerprint> fingerprints =
+      new ConcurrentHashMap<String, Fingerprint>();
+
+  private final Map<String, Page> pages = new ConcurrentHashMap<String, Page>();
+
+  /**
+   * Fingerprints recomputed while checking pages, committed when a page using them is generated
+   */
+  private final Map<String, Fingerprint> pendingFingerprints =
+      new ConcurrentHashMap<String, Fingerprint>();
+
+  private final Set<String> refreshedFiles =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private final String settings;
+
+  private final Set<String> visitedPages =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  /**
+   * @param file File where state is persisted
+   * @param settings Description of settings that affect every page, the existing state is
+   *        discarded when it was written with different settings
+   */
+  BuildState(File file, String settings) {
+    this.file = file;
+    this.settings = settings;
+  }
+
+  private boolean isChanged(String path) throws IOException {
+    Boolean changed = changedFiles.get(path);
+    if (changed != null) {
+      return changed;
+    }
+    File input = new File(path);
+    Fingerprint previous = fingerprints.get(path);
+    if (previous == null || !input.isFile()) {
+      changed = true;
+    } else if (previous.size == input.length() && previous.lastModified == input.lastModified()) {
+      changed = false;
+    } else {
+      Fingerprint current = Fingerprint.of(input);
+      changed = !current.md5.equals(previous.md5);
+      pendingFingerprints.put(path, current);
+    }
+    changedFiles.put(path, changed);
+    return changed;
+  }
+
+  /**
+   * @param templatePath Path of page template
+   * @param outputFile Generated file of page
+   * @return True if page was generated before and none of its inputs changed since then
+   * @throws IOException If inputs can't be read
+   */
+  boolean isUpToDate(String templatePath, File outputFile) throws IOException {
+    visitedPages.add(templatePath);
+    Page page = pages.get(templatePath);
+    if (page == null || !outputFile.isFile()
+        || !page.output.equals(outputFile.getAbsolutePath())) {
+      return false;
+    }
+    for (String input : page.inputs) {
+      if (isChanged(input)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Load state from file if it exists
+   *
+   * @throws IOException If file can't be read
+   */
+  void load() throws IOException {
+    if (!file.isFile()) {
+      return;
+    }
+    Properties props = new Properties();
+    try (InputStream in = new FileInputStream(file)) {
+      props.load(in);
+    }
+    if (!settings.equals(props.getProperty(KEY_SETTINGS))) {
+      return;
+    }
+    for (String key : props.stringPropertyNames()) {
+      if (key.startsWith(PREFIX_FILE)) {
+        fingerprints.put(key.substring(PREFIX_FILE.length()),
+            Fingerprint.parse(props.getProperty(key)));
+      } else if (key.startsWith(PREFIX_OUTPUT)) {
+        String templatePath = key.substring(PREFIX_OUTPUT.length());
+        Set<String> inputs = new HashSet<String>();
+        String value = props.getProperty(PREFIX_INPUTS + templatePath);
+        if (StringUtils.isNotEmpty(value)) {
+          Collections.addAll(inputs, StringUtils.split(value, SEPARATOR));
+        }
+        pages.put(templatePath, new Page(props.getProperty(key), inputs));
+      }
+    }
+  }
+
+  /**
+   * Record that a page is generated
+   *
+   * @param templatePath Path of page template
+   * @param outputFile Generated file of page
+   * @param dependencies Inputs page read while it's generated
+   * @throws IOException If inputs can't be read
+   */
+  void pageGenerated(String templatePath, File outputFile, PageDependencies dependencies)
+      throws IOException {
+    if (dependencies.isExternal()) {
+      pages.remove(templatePath);
+      return;
+    }
+    for (String input : dependencies.getFiles()) {
+      if (!Boolean.FALSE.equals(changedFiles.get(input))) {
+        if (refreshedFiles.add(input)) {
+          fingerprints.put(input, Fingerprint.of(new File(input)));
+        }
+      } else {
+        Fingerprint pending = pendingFingerprints.remove(input);
+        if (pending != null) {
+          fingerprints.put(input, pending);
+        }
+      }
+    }
+    pages.put(templatePath,
+        new Page(outputFile.getAbsolutePath(), new HashSet<String>(dependencies.getFiles())));
+  }
+
+  /**
+   * Record that a page failed, so that it's generated again in next build
+   *
+   * @param templatePath Path of page template
+   */
+  void pageFailed(String templatePath) {
+    pages.remove(templatePath);
+  }
+
+  /**
+   * Remove pages that weren't visited in this build, whose template must have been deleted
+   *
+   * @return Generated files of removed pages
+   */
+  Set<File> removeDeletedPages() {
+    Set<File> outputs = new HashSet<File>();
+    for (String templatePath : new HashSet<String>(pages.keySet())) {
+      if (!visitedPages.contains(templatePath)) {
+        outputs.add(new File(pages.remove(templatePath).output));
+      }
+    }
+    return outputs;
+  }
+
+  /**
+   * Write state into file
+   *
+   * @throws IOException If file can't be written
+   */
+  void save() throws IOException {
+    Properties props = new Properties();
+    Set<String> usedInputs = new HashSet<String>();
+    for (Map.Entry<String, Page> entry : pages.entrySet()) {
+      props.setProperty(PREFIX_OUTPUT + entry.getKey(), entry.getValue().output);
+      props.setProperty(PREFIX_INPUTS + entry.getKey(),
+          StringUtils.join(entry.getValue().inputs, SEPARATOR));
+      usedInputs.addAll(entry.getValue().inputs);
+    }
+    for (String input : usedInputs) {
+      Fingerprint fingerprint = fingerprints.get(input);
+      if (fingerprint != null) {
+        props.setProperty(PREFIX_FILE + input, fingerprint.toString());
+      }
+    }
+    props.setProperty(KEY_SETTINGS, settings);
+    if (!file.getParentFile().isDirectory()) {
+      file.getParentFile().mkdirs();
+    }
+    try (OutputStream out = new FileOutputStream(file)) {
+      props.store(out, "flatsite build state");
+    }
+  }
+}
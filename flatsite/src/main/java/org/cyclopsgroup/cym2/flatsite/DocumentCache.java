@@ -0,0 +1,98 @@
+package org.cyclopsgroup.cym2.flatsite;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+
+/**
+ * Build-wide cache of parsed XML documents shared by all pages. When more than the maximum number
+ * of documents are cached, the least recently used one is evicted. Since pages are rendered
+ * concurrently, cached documents are handed out as {@link ReadOnlyView}s. A document requested by
+ * several pages at the same time is only parsed once.
+ */
+class DocumentCache {
+  /**
+   * Parses a document on cache miss
+   */
+  interface Loader {
+    Document load() throws DocumentException;
+  }
+
+  private final Map<String, FutureTask<Document>> entries;
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @param maxSize Maximum number of cached documents
+   */
+  DocumentCache(final int maxSize) {
+    this.entries = new LinkedHashMap<String, FutureTask<Document>>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, FutureTask<Document>> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * @param key Key of document, which must change when the content changes
+   * @param loader Loader that parses the document if it's not cached
+   * @return Read-only view of the document
+   * @throws DocumentException If document can't be parsed
+   */
+  Document get(String key, final Loader loader) throws DocumentException {
+    FutureTask<Document> task;
+    boolean loading = false;
+    synchronized (entries) {
+      task = entries.get(key);
+      if (task == null) {
+        task = new FutureTask<Document>(() -> new ReadOnlyView(loader.load()).getDocument());
+        entries.put(key, task);
+        loading = true;
+      }
+    }
+    if (loading) {
+      misses.incrementAndGet();
+      task.run();
+    } else {
+      hits.incrementAndGet();
+    }
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DocumentException("Interrupted while waiting for document " + key, e);
+    } catch (ExecutionException e) {
+      // Failures aren't cached so that the next page tries again
+      synchronized (entries) {
+        entries.remove(key, task);
+      }
+      Throwable cause = e.getCause();
+      if (cause instanceof DocumentException) {
+        throw (DocumentException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new DocumentException("Can't load document " + key + ": " + cause.getMessage(), cause);
+    }
+  }
+
+  /**
+   * @return Human readable summary of cache hits and misses
+   */
+  String summary() {
+    synchronized (entries) {
+      return "Document cache: " + hits + " hits, " + misses + " misses, " + entries.size()
+          + " documents cached";
+    }
+  }
+}
@@ -1,19 +1,33 @@
 package org.cyclopsgroup.cym2.flatsite;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.StringReader;
-import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.collections.ExtendedProperties;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.velocity.VelocityContext;
@@ -26,17 +40,29 @@ import org.cyclopsgroup.caff.dp.wiki.WikiDocumentProcessor;
 public class FlatSiteMojo extends AbstractMojo {
   private static final String KEY_WIKI_DISABLED = "wikiSyntaxDisabled";
 
+  /**
+   * Where a rendered page is written
+   */
+  interface PageOutput {
+    /**
+     * @param layoutTemplatePath Path of layout template the page is rendered with
+     * @return Writer of page, which is closed once page is rendered
+     * @throws IOException If writer can't be opened
+     */
+    Writer open(String layoutTemplatePath) throws IOException;
+  }
+
   @Parameter(defaultValue = "${basedir}/target/site")
   private File outputDirectory;
 
   @Parameter(defaultValue = "${basedir}/src/flatsite")
-  private File sourceDirectory;
+  File sourceDirectory;
 
   @Parameter(defaultValue = "default_layout.vm")
   private String layout;
 
   @Parameter(defaultValue = ".vm")
-  private String templateSuffix;
+  String templateSuffix;
 
   @Parameter(defaultValue = "false")
   private boolean wikiEnabled;
@@ -47,27 +73,165 @@ public class FlatSiteMojo extends AbstractMojo {
   @Parameter(defaultValue = "body")
   private String bodyKey;
 
-  private final DocumentProcessor wikiParser = new WikiDocumentProcessor();
+  /**
+   * If true, pages whose template, layout and other inputs didn't change since last build are not
+   * generated again
+   */
+  @Parameter(defaultValue = "false")
+  private boolean incremental;
 
-  private void copyDirectory(File fromDirectory, File toDirectory) throws IOException {
-    if (!fromDirectory.isDirectory()) {
-      return;
+  /**
+   * File that records inputs of generated pages for incremental build
+   */
+  @Parameter(defaultValue = "${project.build.directory}/flatsite-state.properties")
+  private File buildStateFile;
+
+  /**
+   * Number of pages generated concurrently
+   */
+  @Parameter(defaultValue = "1")
+  int threads;
+
+  /**
+   * Maximum number of parsed XML documents cached and shared by pages, 0 to disable the cache
+   */
+  @Parameter(defaultValue = "64")
+  private int documentCacheSize;
+
+  /**
+   * Encoding of templates and generated pages
+   */
+  @Parameter(defaultValue = "UTF-8")
+  private String encoding;
+
+  /**
+   * Directory where fetched widgets are stored between builds
+   */
+  @Parameter(defaultValue = "${project.build.directory}/flatsite-widgets")
+  private File widgetCacheDirectory;
+
+  /**
+   * Seconds a stored widget is used without checking its URL again. With 0, a stored widget is
+   * revalidated with a conditional request in every build.
+   */
+  @Parameter(defaultValue = "0")
+  private int widgetCacheTtlSeconds;
+
+  /**
+   * Number of widget URLs fetched concurrently
+   */
+  @Parameter(defaultValue = "4")
+  private int widgetFetchThreads;
+
+  /**
+   * How changed resources are put into output directory, copy, hardlink or reflink. Linking falls
+   * back to copying when source and output directory aren't on the same file system. Resources
+   * are copied instead of hard linked when minify, fingerprint or gzip is on.
+   */
+  @Parameter(defaultValue = "copy")
+  private String resourceMode;
+
+  /**
+   * If true, resources whose size matches but modification time doesn't are compared by content
+   * before they're copied
+   */
+  @Parameter(defaultValue = "false")
+  private boolean resourceContentCompared;
+
+  /**
+   * Number of threads that mirror resources
+   */
+  @Parameter(defaultValue = "4")
+  private int resourceThreads;
+
+  /**
+   * If true, generated pages and CSS and JavaScript resources are minified
+   */
+  @Parameter(defaultValue = "false")
+  private boolean minify;
+
+  /**
+   * If true, resources are also written under names that contain hash of their content, and
+   * $link.absolute() links to them, so that they can be cached forever
+   */
+  @Parameter(defaultValue = "false")
+  private boolean fingerprint;
+
+  /**
+   * File that keeps content hashes of resources between builds
+   */
+  @Parameter(defaultValue = "${project.build.directory}/flatsite-fingerprints.properties")
+  private File fingerprintStateFile;
+
+  /**
+   * If true, a gzip compressed sibling is written next to each text output
+   */
+  @Parameter(defaultValue = "false")
+  private boolean gzip;
+
+  /**
+   * File that records how resources in output directory are optimized, so that all of them are
+   * mirrored and optimized again when minify, fingerprint or gzip changes
+   */
+  @Parameter(defaultValue = "${project.build.directory}/flatsite-resources.txt")
+  private File resourceStateFile;
+
+  /**
+   * If true, time each page spends in each phase of rendering is written into profile report
+   */
+  @Parameter(defaultValue = "false")
+  private boolean profile;
+
+  /**
+   * Report of slowest pages, which is a CSV file if its name ends with .csv or JSON otherwise
+   */
+  @Parameter(defaultValue = "${project.build.directory}/flatsite-profile.json")
+  private File profileReportFile;
+
+  /**
+   * Number of slowest pages in profile report
+   */
+  @Parameter(defaultValue = "20")
+  private int profileTopPages;
+
+  private final ThreadLocal<PageBuffer> bodyBuffers = new ThreadLocal<PageBuffer>() {
+    @Override
+    protected PageBuffer initialValue() {
+      return new PageBuffer();
     }
-    if (!toDirectory.isDirectory()) {
-      getLog().info("Making directory " + toDirectory);
-      toDirectory.mkdirs();
+  };
+
+  Charset charset;
+
+  private DocumentCache documentCache;
+
+  private final AtomicInteger failedPages = new AtomicInteger();
+
+  private final AtomicInteger generatedPages = new AtomicInteger();
+
+  private ProfileReport profileReport;
+
+  private final Collection<Path> generatedFiles = new ConcurrentLinkedQueue<Path>();
+
+  private ResourceFingerprints fingerprints;
+
+  private final AtomicInteger skippedPages = new AtomicInteger();
+
+  private WidgetCache widgetCache;
+
+  private final ThreadLocal<PageBuffer> wikiBuffers = new ThreadLocal<PageBuffer>() {
+    @Override
+    protected PageBuffer initialValue() {
+      return new PageBuffer();
     }
-    for (File file : fromDirectory.listFiles()) {
-      if (file.getName().charAt(0) == '.') {
-        continue;
-      } else if (file.isDirectory()) {
-        copyDirectory(file, new File(toDirectory, file.getName()));
-      } else {
-        getLog().info("Copy file from " + file + " into " + toDirectory);
-        FileUtils.copyFileToDirectory(file, toDirectory);
-      }
+  };
+
+  private final ThreadLocal<DocumentProcessor> wikiParser = new ThreadLocal<DocumentProcessor>() {
+    @Override
+    protected DocumentProcessor initialValue() {
+      return new WikiDocumentProcessor();
     }
-  }
+  };
 
   /**
    * @inheritDoc
@@ -82,58 +246,326 @@ public class FlatSiteMojo extends AbstractMojo {
       getLog().info("Makding destination directory " + outputDirectory);
       outputDirectory.mkdirs();
     }
+    ResourceMirror.Mode resourceMirrorMode;
+    try {
+      resourceMirrorMode = ResourceMirror.Mode.valueOf(resourceMode.toUpperCase(Locale.US));
+    } catch (IllegalArgumentException e) {
+      throw new MojoExecutionException("Unknown resource mode " + resourceMode
+          + ", it must be one of " + Arrays.toString(ResourceMirror.Mode.values()), e);
+    }
+
+    Path resources = new File(sourceDirectory, "resources").toPath();
+    try {
+      if (fingerprint) {
+        fingerprints = new ResourceFingerprints(fingerprintStateFile);
+        fingerprints.compute(resources, resourceThreads);
+      }
+    } catch (IOException e) {
+      throw new MojoExecutionException("Can't fingerprint resources in " + resources, e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MojoExecutionException("Interrupted while fingerprinting resources", e);
+    }
 
     try {
-      ExtendedProperties props = new ExtendedProperties();
-      props.load(getClass().getClassLoader().getResourceAsStream("flatsite-velocity.properties"));
-      getLog().info(props.getString("file.resource.loader.path"));
-      VelocityEngine velocityEngine = new VelocityEngine();
-      velocityEngine.setExtendedProperties(props);
-      velocityEngine.setProperty("file.resource.loader.path", sourceDirectory.getAbsolutePath());
-      velocityEngine.init();
-      generateSiteDirectory("", velocityEngine);
-      copyDirectory(new File(sourceDirectory, "resources"), outputDirectory);
+      VelocityEngine velocityEngine = createVelocityEngine(null);
+      BuildState buildState = null;
+      if (incremental) {
+        buildState = new BuildState(buildStateFile, buildSettings(velocityEngine));
+        buildState.load();
+      }
+      List<String> templates = new ArrayList<String>();
+      collectTemplates("", templates);
+      initializeTools();
+      profileReport = profile ? new ProfileReport(profileTopPages) : null;
+      try {
+        generateSiteFiles(templates, velocityEngine, buildState);
+        getLog().info("Generated " + generatedPages + " pages, skipped " + skippedPages
+            + " up to date pages, " + failedPages + " pages failed");
+      } finally {
+        closeTools();
+      }
+      if (profileReport != null) {
+        profileReport.write(profileReportFile);
+        getLog().info(profileReport.summary() + ", slowest pages are written into "
+            + profileReportFile);
+      }
+      if (buildState != null) {
+        for (File deleted : buildState.removeDeletedPages()) {
+          getLog().info("Deleting " + deleted + " since its template no longer exists");
+          deleted.delete();
+          new File(deleted.getPath() + ".gz").delete();
+        }
+        buildState.save();
+      }
     } catch (Exception e) {
       getLog().error("Velocity error", e);
     }
+
+    try {
+      mirrorResources(resources, resourceMirrorMode);
+    } catch (IOException e) {
+      throw new MojoExecutionException("Can't mirror or optimize resources", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MojoExecutionException("Interrupted while optimizing output", e);
+    }
   }
 
-  private void generateSiteDirectory(String relativeDirectory, VelocityEngine velocityEngine)
-      throws IOException {
+  /**
+   * Mirror resources into output directory, then optimize them along with generated pages
+   *
+   * @param resources Resource directory
+   * @param mode How changed resources are put into output directory
+   */
+  private void mirrorResources(Path resources, ResourceMirror.Mode mode)
+      throws IOException, InterruptedException {
+    // Resources skipped as unchanged were optimized with the settings of the build that wrote them
+    String settings = minify + "," + fingerprint + "," + gzip;
+    boolean reoptimized = !resourceStateFile.isFile()
+        || !settings.equals(FileUtils.readFileToString(resourceStateFile, "UTF-8"));
+    if (reoptimized) {
+      getLog().info("Mirroring all resources since they aren't optimized with " + settings);
+    }
+    // Removed until optimizing finishes, so that a failed build doesn't leave resources half done
+    resourceStateFile.delete();
+
+    ResourceMirror mirror = new ResourceMirror(mode, resourceContentCompared,
+        minify || fingerprint || gzip, resourceThreads, getLog());
+    mirror.mirror(resources, outputDirectory.toPath(), reoptimized);
+    getLog().info(mirror.summary());
+    if (minify || fingerprint || gzip) {
+      OutputOptimizer optimizer = new OutputOptimizer(outputDirectory.toPath(), charset, minify,
+          fingerprints, gzip, resourceThreads, getLog());
+      List<Path> outputs = new ArrayList<Path>(generatedFiles);
+      outputs.addAll(mirror.getTransferredFiles());
+      optimizer.optimize(outputs);
+      getLog().info(optimizer.summary());
+    }
+    FileUtils.writeStringToFile(resourceStateFile, settings, "UTF-8");
+  }
+
+  /**
+   * @return Description of everything that affects all pages, so that a change of any of them
+   *         invalidates the whole build state
+   */
+  private String buildSettings(VelocityEngine velocityEngine) throws IOException {
+    StringBuilder settings = new StringBuilder();
+    settings.append(layout).append(',').append(templateSuffix).append(',').append(wikiEnabled)
+        .append(',').append(layoutKey).append(',').append(bodyKey).append(',')
+        .append(encoding).append(',').append(outputDirectory.getAbsolutePath()).append(',')
+        .append(minify).append(',').append(gzip);
+    if (fingerprints != null) {
+      // Pages link to fingerprinted resources, so they're generated again when any resource changes
+      settings.append(',').append(fingerprints.digest());
+    }
+    Object macroLibrary = velocityEngine.getProperty("velocimacro.library");
+    File macroLibraryFile = new File(sourceDirectory,
+        macroLibrary == null ? "VM_global_library.vm" : macroLibrary.toString());
+    if (macroLibraryFile.isFile()) {
+      settings.append(',')
+          .append(DigestUtils.md5Hex(FileUtils.readFileToByteArray(macroLibraryFile)));
+    }
+    return settings.toString();
+  }
+
+  /**
+   * Release tools shared by all pages and log their summary
+   */
+  void closeTools() {
+    widgetCache.close();
+    if (documentCache != null) {
+      getLog().info(documentCache.summary());
+    }
+    getLog().info(widgetCache.summary());
+  }
+
+  /**
+   * @param relativeDirectory Directory relative to content directory
+   * @param templates List where paths of templates relative to content directory are added
+   */
+  void collectTemplates(String relativeDirectory, List<String> templates) {
     File currentSourceDirectory = new File(sourceDirectory, "content/" + relativeDirectory);
     File[] files = currentSourceDirectory.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files);
     for (File file : files) {
       if (file.getName().charAt(0) == '.') {
         continue;
       }
       if (file.isDirectory()) {
-        generateSiteDirectory(mergePath(relativeDirectory, file.getName()), velocityEngine);
+        collectTemplates(mergePath(relativeDirectory, file.getName()), templates);
       } else if (file.getName().endsWith(templateSuffix)) {
-        generateSiteFile(relativeDirectory, file.getName(), velocityEngine);
+        templates.add(mergePath(relativeDirectory, file.getName()));
       } else {
         getLog().warn("Ignore resource " + file + " since it's not a velicity template");
       }
     }
   }
 
-  private void generateSiteFile(String fileDirectory, String fileName,
-      VelocityEngine velocityEngine) {
-    String templatePath = "content/" + mergePath(fileDirectory, fileName);
-    File destDirectory = new File(outputDirectory, fileDirectory);
+  /**
+   * @param templateCache Reference that receives the cache of parsed templates, which are kept
+   *        until they're invalidated explicitly, or NULL to parse templates for every page
+   * @return Initialized velocity engine
+   * @throws Exception If velocity engine can't be initialized
+   */
+  VelocityEngine createVelocityEngine(AtomicReference<TemplateCache> templateCache)
+      throws Exception {
+    ExtendedProperties props = new ExtendedProperties();
+    props.load(getClass().getClassLoader().getResourceAsStream("flatsite-velocity.properties"));
+    getLog().info(props.getString("file.resource.loader.path"));
+    VelocityEngine velocityEngine = new VelocityEngine();
+    velocityEngine.setExtendedProperties(props);
+    velocityEngine.setProperty("file.resource.loader.path", sourceDirectory.getAbsolutePath());
+    velocityEngine.setProperty("input.encoding", encoding);
+    if (templateCache != null) {
+      velocityEngine.setProperty("file.resource.loader.cache", "true");
+      velocityEngine.setProperty("file.resource.loader.modificationCheckInterval", "0");
+      velocityEngine.setProperty("resource.manager.cache.class", TemplateCache.class.getName());
+      velocityEngine.setApplicationAttribute(TemplateCache.class.getName(), templateCache);
+    }
+    velocityEngine.init();
+    return velocityEngine;
+  }
+
+  /**
+   * Generate pages with configured number of threads. Messages of each page are buffered and
+   * written in the order of templates.
+   */
+  private void generateSiteFiles(List<String> templates, final VelocityEngine velocityEngine,
+      final BuildState buildState) throws InterruptedException, ExecutionException {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<BufferedLog>> results = new ArrayList<Future<BufferedLog>>(templates.size());
+      for (final String template : templates) {
+        results.add(executor.submit(() -> {
+          BufferedLog log = new BufferedLog(getLog());
+          generateSiteFile(template, velocityEngine, buildState, log);
+          return log;
+        }));
+      }
+      for (Future<BufferedLog> result : results) {
+        result.get().flush();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private void generateSiteFile(String template, VelocityEngine velocityEngine,
+      BuildState buildState, final Log log) {
+    final String templatePath = "content/" + template;
+    final File htmlFile = new File(outputDirectory, htmlPathOf(template));
+    File destDirectory = htmlFile.getParentFile();
     if (!destDirectory.isDirectory()) {
-      getLog().info("Making directory " + destDirectory);
+      log.info("Making directory " + destDirectory);
       destDirectory.mkdirs();
     }
-    String htmlFileName =
-        fileName.substring(0, fileName.length() - templateSuffix.length()) + ".html";
-    File htmlFile = new File(destDirectory, htmlFileName);
+    try {
+      if (buildState != null && buildState.isUpToDate(templatePath, htmlFile)) {
+        log.debug("Skipping " + htmlFile + " since its inputs didn't change");
+        skippedPages.incrementAndGet();
+        return;
+      }
+    } catch (IOException e) {
+      log.warn("Can't check inputs of " + templatePath + ": " + e.getMessage(), e);
+    }
+    PageDependencies dependencies = PageDependencies.begin();
+    PageProfile pageProfile = profileReport == null ? null : PageProfile.begin(templatePath);
+    try {
+      renderPage(template, velocityEngine, layoutTemplatePath -> {
+        log.info("Generating " + htmlFile + " from template " + templatePath + " with layout "
+            + layoutTemplatePath);
+        return Files.newBufferedWriter(htmlFile.toPath(), charset);
+      });
+      generatedPages.incrementAndGet();
+      generatedFiles.add(htmlFile.toPath());
+      if (pageProfile != null) {
+        PageProfile.end();
+        profileReport.add(pageProfile);
+      }
+      if (buildState != null) {
+        buildState.pageGenerated(templatePath, htmlFile, dependencies);
+      }
+    }
+    // Exception doesn't stop the transformation process
+    catch (Throwable e) {
+      failedPages.incrementAndGet();
+      log.warn("Generating html file " + htmlFile + " failed! " + e.getMessage(), e);
+      if (buildState != null) {
+        buildState.pageFailed(templatePath);
+      }
+      // Output may be truncated or partially written
+      htmlFile.delete();
+    } finally {
+      PageDependencies.end();
+      PageProfile.end();
+    }
+  }
+
+  /**
+   * @param template Path of template relative to content directory
+   * @return Path of generated page relative to output directory
+   */
+  String htmlPathOf(String template) {
+    return template.substring(0, template.length() - templateSuffix.length()) + ".html";
+  }
+
+  /**
+   * Forget widgets fetched by previous build, so that pages rendered again see current widgets
+   */
+  void resetTools() {
+    widgetCache.reset();
+  }
+
+  /**
+   * Create caches and tools shared by all pages
+   */
+  void initializeTools() {
+    charset = Charset.forName(encoding);
+    documentCache = documentCacheSize > 0 ? new DocumentCache(documentCacheSize) : null;
+    widgetCache = new WidgetCache(widgetCacheDirectory, widgetCacheTtlSeconds * 1000L,
+        widgetFetchThreads, getLog());
+  }
+
+  private void mergeTemplate(String path, Context context, Writer output, VelocityEngine engine) {
+    try {
+      engine.mergeTemplate(path, context, output);
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException("Can't merge velocity template " + path + ". " + e.getMessage(),
+          e);
+    }
+  }
+
+  private String mergePath(String relativePath, String fileName) {
+    return StringUtils.isEmpty(relativePath) ? fileName : relativePath + "/" + fileName;
+  }
+
+  /**
+   * Render a page with its layout. Files the page reads are recorded into the
+   * {@link PageDependencies} of current thread.
+   *
+   * @param template Path of template relative to content directory
+   * @param velocityEngine Velocity engine
+   * @param output Output of page
+   * @throws IOException If page can't be written
+   */
+  void renderPage(String template, VelocityEngine velocityEngine, PageOutput output)
+      throws IOException {
+    String templatePath = "content/" + template;
+    String fileDirectory =
+        template.indexOf('/') == -1 ? "" : template.substring(0, template.lastIndexOf('/'));
     Context context = new VelocityContext();
     context.put(layoutKey, layout);
     context.put("templatePath", templatePath);
-    context.put("htmlPath", mergePath(fileDirectory, htmlFileName));
+    context.put("htmlPath", htmlPathOf(template));
     context.put(XmlTool.TOOL_NAME,
-        new XmlTool(new File(sourceDirectory.getAbsolutePath() + "/resources")));
-    context.put(WidgetsTool.TOOL_NAME, new WidgetsTool());
+        new XmlTool(new File(sourceDirectory.getAbsolutePath() + "/resources"), documentCache));
+    context.put(WidgetsTool.TOOL_NAME, new WidgetsTool(widgetCache));
     context.put("now", new Date());
     context.put("dateFormat", DateFormat.getDateInstance());
     context.put("timeFormat", DateFormat.getTimeInstance());
@@ -150,45 +582,30 @@ public class FlatSiteMojo extends AbstractMojo {
       basedir = ".." + StringUtils.repeat("/..", levels);
     }
     context.put("basedir", basedir);
-    context.put(PageLinkTool.TOOL_NAME, new PageLinkTool(basedir));
+    context.put(PageLinkTool.TOOL_NAME, new PageLinkTool(basedir, fingerprints));
+    PageBuffer bodyBuffer = bodyBuffers.get();
+    PageBuffer wikiBuffer = wikiBuffers.get();
     try {
-      StringWriter out = new StringWriter();
-      mergeTemplate(templatePath, context, out, velocityEngine);
+      long start = PageProfile.start();
+      mergeTemplate(templatePath, context, bodyBuffer, velocityEngine);
+      start = PageProfile.record(PageProfile.MERGE, start);
       if (wikiEnabled && !(Boolean) context.get(KEY_WIKI_DISABLED)) {
-        StringReader in = new StringReader(out.toString());
-        out = new StringWriter();
-        wikiParser.process(in, out);
+        wikiParser.get().process(bodyBuffer.newReader(), wikiBuffer);
+        bodyBuffer = wikiBuffer;
+        start = PageProfile.record(PageProfile.WIKI, start);
       }
 
       String layoutTemplatePath = "layout/" + (String) context.get("layout");
-      String body = out.toString();
-      context.put(bodyKey, body);
-
-      getLog().info("Generating " + htmlFile + " from template " + templatePath + " with layout "
-          + layoutTemplatePath);
-      FileWriter output = new FileWriter(htmlFile);
-      mergeTemplate(layoutTemplatePath, context, output, velocityEngine);
-      output.flush();
-      output.close();
-    }
-    // Exception doesn't stop the transformation process
-    catch (Throwable e) {
-      getLog().warn("Generating html file " + htmlFile + " failed! " + e.getMessage(), e);
-    }
-  }
-
-  private void mergeTemplate(String path, Context context, Writer output, VelocityEngine engine) {
-    try {
-      engine.mergeTemplate(path, context, output);
-    } catch (RuntimeException e) {
-      throw e;
-    } catch (Exception e) {
-      throw new RuntimeException("Can't merge velocity template " + path + ". " + e.getMessage(),
-          e);
+      context.put(bodyKey, bodyBuffer.toString());
+      Writer writer = output.open(layoutTemplatePath);
+      start = PageProfile.record(PageProfile.WRITE, start);
+      try (Writer out = PageProfile.timeWrites(writer)) {
+        mergeTemplate(layoutTemplatePath, context, out, velocityEngine);
+      }
+      PageProfile.record(PageProfile.LAYOUT, start);
+    } finally {
+      bodyBuffers.get().reset();
+      wikiBuffers.get().reset();
     }
   }
-
-  private String mergePath(String relativePath, String fileName) {
-    return StringUtils.isEmpty(relativePath) ? fileName : relativePath + "/" + fileName;
-  }
 }
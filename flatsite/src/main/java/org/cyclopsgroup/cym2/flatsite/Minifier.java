@@ -0,0 +1,268 @@
+package org.cyclopsgroup.cym2.flatsite;
+
+/**
+ * Conservative single pass minifiers of HTML, CSS and JavaScript. They remove comments and
+ * redundant whitespace but never rewrite tokens. Comments starting with an exclamation mark, which
+ * usually carry licenses, and conditional comments of HTML are kept.
+ */
+final class Minifier {
+  private static final String[] RAW_HTML_ELEMENTS = {"pre", "script", "style", "textarea"};
+
+  private Minifier() {}
+
+  private static int copyString(CharSequence in, int start, StringBuilder out) {
+    char quote = in.charAt(start);
+    int i = start + 1;
+    while (i < in.length()) {
+      char c = in.charAt(i++);
+      if (c == '\\' && i < in.length()) {
+        i++;
+      } else if (c == quote) {
+        break;
+      }
+    }
+    out.append(in, start, i);
+    return i;
+  }
+
+  private static int indexOf(CharSequence in, String s, int from, boolean ignoreCase) {
+    for (int i = from; i <= in.length() - s.length(); i++) {
+      if (startsWith(in, i, s, ignoreCase)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean isIdentifierPart(char c) {
+    return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '\\' || c > 127;
+  }
+
+  private static char last(StringBuilder out) {
+    return out.length() == 0 ? 0 : out.charAt(out.length() - 1);
+  }
+
+  /**
+   * @param css CSS content
+   * @return Minified CSS
+   */
+  static String minifyCss(CharSequence css) {
+    StringBuilder out = new StringBuilder(css.length());
+    boolean space = false;
+    int i = 0;
+    while (i < css.length()) {
+      char c = css.charAt(i);
+      if (startsWith(css, i, "/*", false)) {
+        int end = indexOf(css, "*/", i + 2, false);
+        end = end == -1 ? css.length() : end + 2;
+        if (startsWith(css, i, "/*!", false)) {
+          out.append(css, i, end);
+        } else {
+          space = true;
+        }
+        i = end;
+        continue;
+      }
+      if (Character.isWhitespace(c)) {
+        space = true;
+        i++;
+        continue;
+      }
+      if (space) {
+        // Space before "(" is kept since it matters in media queries
+        if (out.length() > 0 && "{};:,>(".indexOf(last(out)) == -1 && "{};,>)".indexOf(c) == -1) {
+          out.append(' ');
+        }
+        space = false;
+      }
+      if (c == '"' || c == '\'') {
+        i = copyString(css, i, out);
+        continue;
+      }
+      if (c == '}' && last(out) == ';') {
+        out.setLength(out.length() - 1);
+      }
+      out.append(c);
+      i++;
+    }
+    return out.toString();
+  }
+
+  /**
+   * Remove comments and collapse whitespace outside of tags. Content of pre, script, style and
+   * textarea elements is kept as is.
+   *
+   * @param html HTML content
+   * @return Minified HTML
+   */
+  static String minifyHtml(CharSequence html) {
+    StringBuilder out = new StringBuilder(html.length());
+    boolean space = false;
+    int i = 0;
+    while (i < html.length()) {
+      char c = html.charAt(i);
+      if (c == '<' && startsWith(html, i, "<!--", false)) {
+        int end = indexOf(html, "-->", i + 4, false);
+        end = end == -1 ? html.length() : end + 3;
+        if (startsWith(html, i, "<!--[if", false) || startsWith(html, i, "<!--!", false)) {
+          out.append(html, i, end);
+        }
+        i = end;
+        continue;
+      }
+      if (Character.isWhitespace(c)) {
+        space = true;
+        i++;
+        continue;
+      }
+      if (space) {
+        if (out.length() > 0) {
+          out.append(' ');
+        }
+        space = false;
+      }
+      if (c != '<') {
+        out.append(c);
+        i++;
+        continue;
+      }
+      int end = i + 1;
+      while (end < html.length() && html.charAt(end) != '>') {
+        char t = html.charAt(end);
+        if (t == '"' || t == '\'') {
+          int close = html.toString().indexOf(t, end + 1);
+          end = close == -1 ? html.length() : close;
+        }
+        end++;
+      }
+      end = Math.min(end + 1, html.length());
+      out.append(html, i, end);
+      String rawElement = null;
+      for (String element : RAW_HTML_ELEMENTS) {
+        int after = i + 1 + element.length();
+        if (startsWith(html, i + 1, element, true) && after < html.length()
+            && !isIdentifierPart(html.charAt(after))) {
+          rawElement = element;
+          break;
+        }
+      }
+      i = end;
+      if (rawElement != null) {
+        int close = indexOf(html, "</" + rawElement, i, true);
+        close = close == -1 ? html.length() : close;
+        out.append(html, i, close);
+        i = close;
+      }
+    }
+    return out.toString();
+  }
+
+  /**
+   * Remove comments and whitespace that doesn't separate tokens. A line break is kept wherever
+   * automatic semicolon insertion might depend on it.
+   *
+   * @param js JavaScript content
+   * @return Minified JavaScript
+   */
+  static String minifyJs(CharSequence js) {
+    StringBuilder out = new StringBuilder(js.length());
+    boolean space = false;
+    boolean newline = false;
+    int i = 0;
+    while (i < js.length()) {
+      char c = js.charAt(i);
+      if (startsWith(js, i, "//", false)) {
+        while (i < js.length() && js.charAt(i) != '\n' && js.charAt(i) != '\r') {
+          i++;
+        }
+        continue;
+      }
+      if (startsWith(js, i, "/*", false)) {
+        int end = indexOf(js, "*/", i + 2, false);
+        end = end == -1 ? js.length() : end + 2;
+        if (startsWith(js, i, "/*!", false)) {
+          out.append(js, i, end);
+          newline = true;
+        } else {
+          space = true;
+        }
+        i = end;
+        continue;
+      }
+      if (Character.isWhitespace(c)) {
+        if (c == '\n' || c == '\r') {
+          newline = true;
+        } else {
+          space = true;
+        }
+        i++;
+        continue;
+      }
+      char previous = last(out);
+      if ((space || newline) && previous != 0) {
+        if (newline && "{[(,;=:&|?!".indexOf(previous) == -1 && "}]),.;:?=".indexOf(c) == -1) {
+          out.append('\n');
+        } else if (isIdentifierPart(previous) && isIdentifierPart(c)
+            || (previous == '+' || previous == '-') && previous == c
+            || previous == '/' && c == '/') {
+          out.append(' ');
+        }
+      }
+      space = false;
+      newline = false;
+      if (c == '"' || c == '\'' || c == '`') {
+        i = copyString(js, i, out);
+        continue;
+      }
+      if (c == '/' && startsRegex(out)) {
+        int start = i++;
+        boolean inClass = false;
+        while (i < js.length()) {
+          char r = js.charAt(i++);
+          if (r == '\\' && i < js.length()) {
+            i++;
+          } else if (r == '[') {
+            inClass = true;
+          } else if (r == ']') {
+            inClass = false;
+          } else if (r == '/' && !inClass || r == '\n') {
+            break;
+          }
+        }
+        out.append(js, start, i);
+        continue;
+      }
+      out.append(c);
+      i++;
+    }
+    return out.toString();
+  }
+
+  private static boolean startsRegex(StringBuilder out) {
+    char previous = last(out);
+    if (previous == 0 || "(,=:[!&|?{};+-*%<>~^\n".indexOf(previous) != -1) {
+      return true;
+    }
+    for (String keyword : new String[] {"return", "typeof", "case", "in", "of", "void"}) {
+      int start = out.length() - keyword.length();
+      if (start >= 0 && startsWith(out, start, keyword, false)
+          && (start == 0 || !isIdentifierPart(out.charAt(start - 1)))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean startsWith(CharSequence in, int from, String s, boolean ignoreCase) {
+    if (from + s.length() > in.length()) {
+      return false;
+    }
+    for (int i = 0; i < s.length(); i++) {
+      char c = in.charAt(from + i);
+      if (c != s.charAt(i) && !(ignoreCase && Character.toLowerCase(c) == s.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
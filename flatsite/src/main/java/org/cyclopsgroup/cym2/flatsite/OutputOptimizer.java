@@ -0,0 +1,212 @@
+package org.cyclopsgroup.cym2.flatsite;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Post processing stage of generated pages and mirrored resources. Each output file is minified,
+ * copied to its fingerprinted name and compressed into a gzip sibling, as configured. Files are
+ * processed in parallel. Processed files are always replaced rather than written through, since a
+ * mirrored resource may be a link of its source, and they keep their modification time so that
+ * {@link ResourceMirror} still recognizes unchanged resources.
+ */
+class OutputOptimizer {
+  private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<String>(Arrays.asList("css",
+      "htm", "html", "ico", "js", "json", "svg", "txt", "xml"));
+
+  private static final Set<String> MINIFIED_EXTENSIONS =
+      new HashSet<String>(Arrays.asList("css", "htm", "html", "js"));
+
+  private final Charset charset;
+
+  private final AtomicLong compressedFiles = new AtomicLong();
+
+  private final ResourceFingerprints fingerprints;
+
+  private final AtomicLong fingerprintedFiles = new AtomicLong();
+
+  private final boolean gzip;
+
+  private final Log log;
+
+  private final boolean minify;
+
+  private final AtomicLong minifiedBytes = new AtomicLong();
+
+  private final AtomicLong minifiedFiles = new AtomicLong();
+
+  private final Path outputDirectory;
+
+  private final AtomicLong originalBytes = new AtomicLong();
+
+  private final int threads;
+
+  /**
+   * @param outputDirectory Output directory of site
+   * @param charset Encoding of pages and text resources
+   * @param minify If true, HTML, CSS and JavaScript files are minified
+   * @param fingerprints Hashes of resources, or NULL if resources aren't fingerprinted
+   * @param gzip If true, a gzip sibling is written for each compressible file
+   * @param threads Number of threads that process files
+   * @param log Maven log
+   */
+  OutputOptimizer(Path outputDirectory, Charset charset, boolean minify,
+      ResourceFingerprints fingerprints, boolean gzip, int threads, Log log) {
+    this.outputDirectory = outputDirectory;
+    this.charset = charset;
+    this.minify = minify;
+    this.fingerprints = fingerprints;
+    this.gzip = gzip;
+    this.threads = threads;
+    this.log = log;
+  }
+
+  private static String extensionOf(Path file) {
+    String name = file.getFileName().toString();
+    return name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+  }
+
+  private void gzip(Path file) throws IOException {
+    if (!COMPRESSED_EXTENSIONS.contains(extensionOf(file))) {
+      return;
+    }
+    Path target = file.resolveSibling(file.getFileName() + ".gz");
+    Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+    try {
+      try (InputStream in = Files.newInputStream(file);
+          OutputStream out = new GZIPOutputStream(Files.newOutputStream(temp)) {
+            {
+              def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+          }) {
+        IOUtils.copy(in, out);
+      }
+      Files.setLastModifiedTime(temp, Files.getLastModifiedTime(file));
+      Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+    compressedFiles.incrementAndGet();
+  }
+
+  private void minify(Path file) throws IOException {
+    String extension = extensionOf(file);
+    if (!MINIFIED_EXTENSIONS.contains(extension)) {
+      return;
+    }
+    byte[] original = Files.readAllBytes(file);
+    String content;
+    try {
+      content = charset.newDecoder().decode(ByteBuffer.wrap(original)).toString();
+    } catch (CharacterCodingException e) {
+      log.warn("Not minifying " + file + " since it isn't encoded in " + charset);
+      return;
+    }
+    String minified;
+    if (extension.equals("css")) {
+      minified = Minifier.minifyCss(content);
+    } else if (extension.equals("js")) {
+      minified = Minifier.minifyJs(content);
+    } else {
+      minified = Minifier.minifyHtml(content);
+    }
+    byte[] bytes = minified.getBytes(charset);
+    originalBytes.addAndGet(original.length);
+    minifiedBytes.addAndGet(bytes.length);
+    minifiedFiles.incrementAndGet();
+    FileTime lastModified = Files.getLastModifiedTime(file);
+    Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+    try {
+      Files.write(temp, bytes);
+      Files.setLastModifiedTime(temp, lastModified);
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /**
+   * Process given output files in parallel
+   *
+   * @param files Files in output directory that are written in this build
+   * @throws IOException If any file can't be processed
+   * @throws InterruptedException If processing is interrupted
+   */
+  void optimize(final Collection<Path> files) throws IOException, InterruptedException {
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      pool.submit(() -> files.parallelStream().forEach(file -> {
+        try {
+          optimize(file);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      })).get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) e.getCause()).getCause();
+      }
+      throw new IOException("Can't optimize output: " + e.getCause(), e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private void optimize(Path file) throws IOException {
+    log.debug("Optimizing " + file);
+    if (minify) {
+      minify(file);
+    }
+    if (fingerprints != null) {
+      String path = "/" + outputDirectory.relativize(file).toString().replace('\\', '/');
+      String fingerprinted = fingerprints.map(path);
+      if (!fingerprinted.equals(path)) {
+        Path target = outputDirectory.resolve(fingerprinted.substring(1));
+        Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+          Files.copy(file, temp, StandardCopyOption.REPLACE_EXISTING,
+              StandardCopyOption.COPY_ATTRIBUTES);
+          Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+          Files.deleteIfExists(temp);
+        }
+        fingerprintedFiles.incrementAndGet();
+        if (gzip) {
+          gzip(target);
+        }
+      }
+    }
+    if (gzip) {
+      gzip(file);
+    }
+  }
+
+  /**
+   * @return Human readable summary of processed files
+   */
+  String summary() {
+    return String.format("Minified %d files from %d to %d bytes, fingerprinted %d resources,"
+        + " compressed %d files", minifiedFiles.get(), originalBytes.get(), minifiedBytes.get(),
+        fingerprintedFiles.get(), compressedFiles.get());
+  }
+}
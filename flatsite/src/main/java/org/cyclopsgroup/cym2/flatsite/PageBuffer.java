@@ -0,0 +1,34 @@
+package org.cyclopsgroup.cym2.flatsite;
+
+import java.io.CharArrayReader;
+import java.io.CharArrayWriter;
+import java.io.Reader;
+
+/**
+ * Character buffer that is reused for pages rendered by the same thread. Its content can be read
+ * without being copied. The storage is released when a page made it much larger than usual.
+ */
+class PageBuffer extends CharArrayWriter {
+  private static final int INITIAL_SIZE = 16 * 1024;
+
+  private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+
+  PageBuffer() {
+    super(INITIAL_SIZE);
+  }
+
+  /**
+   * @return Reader of current content that shares the storage of this buffer
+   */
+  synchronized Reader newReader() {
+    return new CharArrayReader(buf, 0, count);
+  }
+
+  @Override
+  public synchronized void reset() {
+    super.reset();
+    if (buf.length > MAX_RETAINED_SIZE) {
+      buf = new char[INITIAL_SIZE];
+    }
+  }
+}
@@ -0,0 +1,71 @@
+package org.cyclopsgroup.cym2.flatsite;
+
+import java.io.File;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Inputs a page reads while it's rendered. The instance of the page being rendered is bound to the
+ * current thread so that resource loaders and tools can record what they read.
+ */
+class PageDependencies {
+  private static final ThreadLocal<PageDependencies> CURRENT = new ThreadLocal<PageDependencies>();
+
+  /**
+   * Start recording dependencies of a page in current thread
+   *
+   * @return Dependencies of the page
+   */
+  static PageDependencies begin() {
+    PageDependencies dependencies = new PageDependencies();
+    CURRENT.set(dependencies);
+    return dependencies;
+  }
+
+  /**
+   * Stop recording dependencies in current thread
+   */
+  static void end() {
+    CURRENT.remove();
+  }
+
+  /**
+   * Mark page being rendered as depending on something that can't be tracked, such as a URL
+   */
+  static void recordExternal() {
+    PageDependencies dependencies = CURRENT.get();
+    if (dependencies != null) {
+      dependencies.external = true;
+    }
+  }
+
+  /**
+   * @param file File that page being rendered reads
+   */
+  static void recordFile(File file) {
+    PageDependencies dependencies = CURRENT.get();
+    if (dependencies != null) {
+      synchronized (dependencies.files) {
+        dependencies.files.add(file.getAbsolutePath());
+      }
+    }
+  }
+
+  private volatile boolean external;
+
+  private final Set<String> files = new TreeSet<String>();
+
+  /**
+   * @return Absolute paths of files page reads
+   */
+  Set<String> getFiles() {
+    return files;
+  }
+
+  /**
+   * @return True if page reads external resources and has to be generated every time
+   */
+  boolean isExternal() {
+    return external;
+  }
+}
@@ -1,5 +1,7 @@
 package org.cyclopsgroup.cym2.flatsite;
 
+import org.apache.commons.lang.StringUtils;
+
 public class PageLinkTool {
   public static final String TOOL_NAME = "link";
 
@@ -17,14 +19,27 @@ public class PageLinkTool {
 
   private final String baseDir;
 
-  PageLinkTool(String baseDir) {
+  private final ResourceFingerprints fingerprints;
+
+  PageLinkTool(String baseDir, ResourceFingerprints fingerprints) {
     this.baseDir = baseDir;
+    this.fingerprints = fingerprints;
   }
 
+  /**
+   * @param path Path relative to root of site
+   * @return Link to path, which points to the fingerprinted name of a resource if resources are
+   *         fingerprinted
+   */
   public Link absolute(String path) {
     if (!path.startsWith("/")) {
       path = "/" + path;
     }
+    if (fingerprints != null) {
+      int end = StringUtils.indexOfAny(path, "?#");
+      path = end == -1 ? fingerprints.map(path)
+          : fingerprints.map(path.substring(0, end)) + path.substring(end);
+    }
     return new Link(path);
   }
 }
@@ -0,0 +1,170 @@
+package org.cyclopsgroup.cym2.flatsite;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Time a page spends in each phase of rendering. Like {@link PageDependencies}, the profile of the
+ * page being rendered is bound to the current thread so that tools can record their calls. All
+ * static methods do nothing when no page is profiled in current thread.
+ */
+class PageProfile {
+  static final String LAYOUT = "layout";
+
+  static final String MERGE = "merge";
+
+  static final String WIKI = "wiki";
+
+  static final String WRITE = "write";
+
+  private static final ThreadLocal<PageProfile> CURRENT = new ThreadLocal<PageProfile>();
+
+  /**
+   * Writer that records time spent in the underlying writer as write phase
+   */
+  private static class TimedWriter extends FilterWriter {
+    private final PageProfile profile;
+
+    private TimedWriter(Writer out, PageProfile profile) {
+      super(out);
+      this.profile = profile;
+    }
+
+    @Override
+    public void close() throws IOException {
+      long start = System.nanoTime();
+      super.close();
+      elapsed(start);
+    }
+
+    private void elapsed(long start) {
+      long nanos = System.nanoTime() - start;
+      profile.add(WRITE, nanos);
+      // Layout merge is timed as a whole, so writing is taken out of it
+      profile.add(LAYOUT, -nanos);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      long start = System.nanoTime();
+      super.flush();
+      elapsed(start);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+      long start = System.nanoTime();
+      super.write(cbuf, off, len);
+      elapsed(start);
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+      long start = System.nanoTime();
+      super.write(c);
+      elapsed(start);
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+      long start = System.nanoTime();
+      super.write(str, off, len);
+      elapsed(start);
+    }
+  }
+
+  /**
+   * Start profiling a page in current thread
+   *
+   * @param page Name of page
+   * @return Profile of the page
+   */
+  static PageProfile begin(String page) {
+    PageProfile profile = new PageProfile(page);
+    CURRENT.set(profile);
+    return profile;
+  }
+
+  /**
+   * Stop profiling in current thread
+   */
+  static void end() {
+    PageProfile profile = CURRENT.get();
+    if (profile != null) {
+      profile.totalNanos = System.nanoTime() - profile.startNanos;
+      CURRENT.remove();
+    }
+  }
+
+  /**
+   * @param phase Phase or tool that started at given time and ends now
+   * @param start Value returned by {@link #start()} or a previous call of this method
+   * @return Current time, which is the start of next phase
+   */
+  static long record(String phase, long start) {
+    PageProfile profile = CURRENT.get();
+    if (profile == null) {
+      return 0;
+    }
+    long now = System.nanoTime();
+    profile.add(phase, now - start);
+    return now;
+  }
+
+  /**
+   * @return Start time of a phase
+   */
+  static long start() {
+    return CURRENT.get() == null ? 0 : System.nanoTime();
+  }
+
+  /**
+   * @param out Writer of page
+   * @return Writer that records time spent in writing, or the given writer if page isn't profiled
+   */
+  static Writer timeWrites(Writer out) {
+    PageProfile profile = CURRENT.get();
+    return profile == null ? out : new TimedWriter(out, profile);
+  }
+
+  private final String page;
+
+  private final Map<String, Long> phaseNanos = new TreeMap<String, Long>();
+
+  private final long startNanos = System.nanoTime();
+
+  private long totalNanos;
+
+  private PageProfile(String page) {
+    this.page = page;
+  }
+
+  private void add(String phase, long nanos) {
+    Long previous = phaseNanos.get(phase);
+    phaseNanos.put(phase, previous == null ? nanos : previous + nanos);
+  }
+
+  /**
+   * @return Name of page
+   */
+  String getPage() {
+    return page;
+  }
+
+  /**
+   * @return Nanoseconds spent in each phase and tool. Time of tools is part of merge phases
+   */
+  Map<String, Long> getPhaseNanos() {
+    return phaseNanos;
+  }
+
+  /**
+   * @return Nanoseconds from beginning to end of profile
+   */
+  long getTotalNanos() {
+    return totalNanos;
+  }
+}
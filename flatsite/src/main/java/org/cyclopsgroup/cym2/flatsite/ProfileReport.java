@@ -0,0 +1,170 @@
+package org.cyclopsgroup.cym2.flatsite;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Collects {@link PageProfile}s of a build and writes the slowest pages into a JSON or CSV file,
+ * depending on the extension of the file. Times in the report are milliseconds.
+ */
+class ProfileReport {
+  private final Collection<PageProfile> profiles = new ConcurrentLinkedQueue<PageProfile>();
+
+  private final int topPages;
+
+  /**
+   * @param topPages Number of slowest pages written into report
+   */
+  ProfileReport(int topPages) {
+    this.topPages = topPages;
+  }
+
+  /**
+   * @param profile Profile of a page that is rendered successfully
+   */
+  void add(PageProfile profile) {
+    profiles.add(profile);
+  }
+
+  /**
+   * @return Value as a CSV field, which is quoted with doubled inner quotes if necessary
+   */
+  private static String csvField(String value) {
+    if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0
+        && value.indexOf('\r') < 0) {
+      return value;
+    }
+    return '"' + value.replace("\"", "\"\"") + '"';
+  }
+
+  private static String millis(long nanos) {
+    return String.format(Locale.US, "%.3f", nanos / 1000000.0);
+  }
+
+  private static String quote(String value) {
+    StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+    for (char c : value.toCharArray()) {
+      if (c == '"' || c == '\\') {
+        quoted.append('\\').append(c);
+      } else if (c < ' ') {
+        quoted.append(String.format("\\u%04x", (int) c));
+      } else {
+        quoted.append(c);
+      }
+    }
+    return quoted.append('"').toString();
+  }
+
+  /**
+   * @return Human readable summary of time spent in each phase by all pages
+   */
+  String summary() {
+    StringBuilder summary = new StringBuilder("Profiled ").append(profiles.size()).append(" pages");
+    for (Map.Entry<String, Long> entry : totalPhaseNanos().entrySet()) {
+      summary.append(", ").append(entry.getKey()).append(' ').append(millis(entry.getValue()))
+          .append("ms");
+    }
+    return summary.toString();
+  }
+
+  private Map<String, Long> totalPhaseNanos() {
+    Map<String, Long> totals = new TreeMap<String, Long>();
+    for (PageProfile profile : profiles) {
+      for (Map.Entry<String, Long> entry : profile.getPhaseNanos().entrySet()) {
+        Long total = totals.get(entry.getKey());
+        totals.put(entry.getKey(), (total == null ? 0 : total) + entry.getValue());
+      }
+    }
+    return totals;
+  }
+
+  /**
+   * Write slowest pages into a file
+   *
+   * @param file JSON file, or CSV file if its name ends with .csv
+   * @throws IOException If file can't be written
+   */
+  void write(File file) throws IOException {
+    List<PageProfile> slowest = new ArrayList<PageProfile>(profiles);
+    Collections.sort(slowest, (a, b) -> Long.compare(b.getTotalNanos(), a.getTotalNanos()));
+    slowest = slowest.subList(0, Math.min(topPages, slowest.size()));
+    Map<String, Long> totals = totalPhaseNanos();
+    Set<String> phases = new LinkedHashSet<String>(Arrays.asList(PageProfile.MERGE,
+        PageProfile.WIKI, PageProfile.LAYOUT, PageProfile.WRITE));
+    phases.addAll(totals.keySet());
+
+    if (file.getParentFile() != null && !file.getParentFile().isDirectory()) {
+      file.getParentFile().mkdirs();
+    }
+    try (PrintWriter out =
+        new PrintWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))) {
+      if (file.getName().toLowerCase(Locale.US).endsWith(".csv")) {
+        writeCsv(out, slowest, phases);
+      } else {
+        writeJson(out, slowest, phases, totals);
+      }
+    }
+  }
+
+  private static void writeCsv(PrintWriter out, List<PageProfile> slowest, Set<String> phases) {
+    out.print("page,total");
+    for (String phase : phases) {
+      out.print(',' + csvField(phase));
+    }
+    out.println();
+    for (PageProfile profile : slowest) {
+      out.print(csvField(profile.getPage()) + ',' + millis(profile.getTotalNanos()));
+      for (String phase : phases) {
+        Long nanos = profile.getPhaseNanos().get(phase);
+        out.print(',' + millis(nanos == null ? 0 : nanos));
+      }
+      out.println();
+    }
+  }
+
+  private void writeJson(PrintWriter out, List<PageProfile> slowest, Set<String> phases,
+      Map<String, Long> totals) {
+    long total = 0;
+    for (PageProfile profile : profiles) {
+      total += profile.getTotalNanos();
+    }
+    out.println("{");
+    out.println("  \"pages\": " + profiles.size() + ",");
+    out.println("  \"total\": " + millis(total) + ",");
+    out.print("  \"phases\": {");
+    String separator = "";
+    for (String phase : phases) {
+      Long nanos = totals.get(phase);
+      out.print(separator + quote(phase) + ": " + millis(nanos == null ? 0 : nanos));
+      separator = ", ";
+    }
+    out.println("},");
+    out.println("  \"slowestPages\": [");
+    for (int i = 0; i < slowest.size(); i++) {
+      PageProfile profile = slowest.get(i);
+      out.print("    {\"page\": " + quote(profile.getPage()) + ", \"total\": "
+          + millis(profile.getTotalNanos()));
+      for (String phase : phases) {
+        Long nanos = profile.getPhaseNanos().get(phase);
+        out.print(", " + quote(phase) + ": " + millis(nanos == null ? 0 : nanos));
+      }
+      out.println(i == slowest.size() - 1 ? "}" : "},");
+    }
+    out.println("  ]");
+    out.println("}");
+  }
+}
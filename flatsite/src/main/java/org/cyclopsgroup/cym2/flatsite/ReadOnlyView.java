@@ -0,0 +1,158 @@
+package org.cyclopsgroup.cym2.flatsite;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.lang.ClassUtils;
+import org.dom4j.Document;
+import org.dom4j.Namespace;
+import org.dom4j.Node;
+
+/**
+ * Read-only view of a dom4j document. Reads are forwarded to the underlying nodes, and returned
+ * nodes, lists and iterators are wrapped into views as well, while methods that modify the tree
+ * throw {@link UnsupportedOperationException}. Each node has exactly one view, so views can be
+ * compared by identity the same way XPath evaluation compares nodes.
+ */
+final class ReadOnlyView {
+  /**
+   * Forwards calls to a node
+   */
+  private class NodeHandler implements InvocationHandler {
+    private final Node target;
+
+    private NodeHandler(Node target) {
+      this.target = target;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if (name.equals("equals") && args != null && args.length == 1) {
+        return proxy == args[0];
+      }
+      if (name.equals("hashCode") && args == null) {
+        return System.identityHashCode(proxy);
+      }
+      if (isMutator(name)) {
+        throw new UnsupportedOperationException(
+            "Shared document can't be modified with " + name + "(), make a copy with createCopy()");
+      }
+      if (args != null) {
+        for (int i = 0; i < args.length; i++) {
+          args[i] = unwrap(args[i]);
+        }
+      }
+      Object result;
+      try {
+        result = method.invoke(target, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+      // A copy belongs to the caller and is free to be modified
+      return name.equals("createCopy") ? result : wrap(result);
+    }
+  }
+
+  private static final Map<Class<?>, Class<?>[]> INTERFACES =
+      new ConcurrentHashMap<Class<?>, Class<?>[]>();
+
+  private static final String[] MUTATORS =
+      {"accept", "add", "append", "clear", "detach", "normalize", "remove", "set"};
+
+  private final Document document;
+
+  private final Map<Node, Node> views = new ConcurrentHashMap<Node, Node>();
+
+  /**
+   * @param document Document to wrap, which must not be modified afterwards
+   */
+  ReadOnlyView(Document document) {
+    this.document = (Document) wrap(document);
+  }
+
+  /**
+   * @return Read-only view of the document
+   */
+  Document getDocument() {
+    return document;
+  }
+
+  private static Class<?>[] interfacesOf(Class<?> type) {
+    Class<?>[] interfaces = INTERFACES.get(type);
+    if (interfaces == null) {
+      List<Class<?>> publicInterfaces = new ArrayList<Class<?>>();
+      for (Object i : ClassUtils.getAllInterfaces(type)) {
+        if (Modifier.isPublic(((Class<?>) i).getModifiers())) {
+          publicInterfaces.add((Class<?>) i);
+        }
+      }
+      interfaces = publicInterfaces.toArray(new Class<?>[publicInterfaces.size()]);
+      INTERFACES.put(type, interfaces);
+    }
+    return interfaces;
+  }
+
+  private static boolean isMutator(String methodName) {
+    for (String mutator : MUTATORS) {
+      if (methodName.startsWith(mutator) && (methodName.length() == mutator.length()
+          || Character.isUpperCase(methodName.charAt(mutator.length())))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private Node newView(Node node) {
+    return (Node) Proxy.newProxyInstance(ReadOnlyView.class.getClassLoader(),
+        interfacesOf(node.getClass()), new NodeHandler(node));
+  }
+
+  private Object unwrap(Object value) {
+    if (value != null && Proxy.isProxyClass(value.getClass())) {
+      InvocationHandler handler = Proxy.getInvocationHandler(value);
+      if (handler instanceof NodeHandler) {
+        return ((NodeHandler) handler).target;
+      }
+    }
+    return value;
+  }
+
+  private Object wrap(Object value) {
+    // Namespaces are immutable and matched by class in XPath evaluation
+    if (value instanceof Node && !(value instanceof Namespace)) {
+      return views.computeIfAbsent((Node) value, this::newView);
+    }
+    if (value instanceof List) {
+      List<?> list = (List<?>) value;
+      List<Object> result = new ArrayList<Object>(list.size());
+      for (Object element : list) {
+        result.add(wrap(element));
+      }
+      return Collections.unmodifiableList(result);
+    }
+    if (value instanceof Iterator) {
+      final Iterator<?> iterator = (Iterator<?>) value;
+      return new Iterator<Object>() {
+        @Override
+        public boolean hasNext() {
+          return iterator.hasNext();
+        }
+
+        @Override
+        public Object next() {
+          return wrap(iterator.next());
+        }
+      };
+    }
+    return value;
+  }
+}
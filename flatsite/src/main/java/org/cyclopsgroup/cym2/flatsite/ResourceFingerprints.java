@@ -0,0 +1,152 @@
+package org.cyclopsgroup.cym2.flatsite;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Content hashes of resources, which are used to give each resource a name that changes whenever
+ * its content changes. Hashes are computed from the source files before pages are rendered, so
+ * that {@link PageLinkTool#absolute(String)} can link to the fingerprinted names. Hashes are kept
+ * in a state file with size and modification time of each resource, so only changed resources are
+ * read again.
+ */
+class ResourceFingerprints {
+  private static final Set<String> EXTENSIONS = new HashSet<String>(Arrays.asList("css", "eot",
+      "gif", "ico", "jpeg", "jpg", "js", "otf", "png", "svg", "ttf", "webp", "woff", "woff2"));
+
+  private static final int HASH_LENGTH = 10;
+
+  private final Map<String, String> paths = new ConcurrentHashMap<String, String>();
+
+  private final File stateFile;
+
+  /**
+   * @param stateFile File where hashes are kept between builds
+   */
+  ResourceFingerprints(File stateFile) {
+    this.stateFile = stateFile;
+  }
+
+  /**
+   * Compute hashes of all fingerprinted resources in a directory
+   *
+   * @param resources Resource directory
+   * @param threads Number of threads that read resources
+   * @throws IOException If resources can't be read or state can't be saved
+   * @throws InterruptedException If computation is interrupted
+   */
+  void compute(final Path resources, int threads) throws IOException, InterruptedException {
+    paths.clear();
+    if (!Files.isDirectory(resources)) {
+      return;
+    }
+    final Properties previous = new Properties();
+    if (stateFile.isFile()) {
+      try (InputStream in = new FileInputStream(stateFile)) {
+        previous.load(in);
+      }
+    }
+    final List<Path> files = new ArrayList<Path>();
+    try (Stream<Path> walk = Files.walk(resources)) {
+      walk.filter(file -> isFingerprinted(resources.relativize(file)) && Files.isRegularFile(file))
+          .forEach(files::add);
+    }
+    final Properties state = new Properties();
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      pool.submit(() -> files.parallelStream().forEach(file -> {
+        String path = "/" + resources.relativize(file).toString().replace(File.separatorChar, '/');
+        try {
+          BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+          String stamp = attrs.size() + "," + attrs.lastModifiedTime().toMillis();
+          String[] entry = StringUtils.split(previous.getProperty(path, ""), ' ');
+          String hash;
+          if (entry.length == 2 && entry[0].equals(stamp)) {
+            hash = entry[1];
+          } else {
+            try (InputStream in = Files.newInputStream(file)) {
+              hash = DigestUtils.md5Hex(in).substring(0, HASH_LENGTH);
+            }
+          }
+          synchronized (state) {
+            state.setProperty(path, stamp + " " + hash);
+          }
+          paths.put(path, fingerprintedPath(path, hash));
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      })).get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) e.getCause()).getCause();
+      }
+      throw new IOException("Can't compute hashes of resources: " + e.getCause(), e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+    if (!stateFile.getParentFile().isDirectory()) {
+      stateFile.getParentFile().mkdirs();
+    }
+    File temp = File.createTempFile(stateFile.getName(), ".tmp", stateFile.getParentFile());
+    try (OutputStream out = new FileOutputStream(temp)) {
+      state.store(out, "Hashes of flatsite resources");
+    }
+    Files.move(temp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * @return Digest of all fingerprinted paths, which changes when any resource changes
+   */
+  String digest() {
+    return DigestUtils.md5Hex(new TreeMap<String, String>(paths).toString());
+  }
+
+  private static String fingerprintedPath(String path, String hash) {
+    int dot = path.lastIndexOf('.');
+    return path.substring(0, dot) + "." + hash + path.substring(dot);
+  }
+
+  private static boolean isFingerprinted(Path relativePath) {
+    for (Path segment : relativePath) {
+      if (segment.toString().isEmpty() || segment.toString().charAt(0) == '.') {
+        return false;
+      }
+    }
+    String name = relativePath.toString();
+    int dot = name.lastIndexOf('.');
+    return dot > name.lastIndexOf(File.separatorChar) + 1
+        && EXTENSIONS.contains(name.substring(dot + 1).toLowerCase());
+  }
+
+  /**
+   * @param path Absolute path of resource in site, starting with slash
+   * @return Fingerprinted path of resource, or given path if resource isn't fingerprinted
+   */
+  String map(String path) {
+    String fingerprinted = paths.get(path);
+    return fingerprinted == null ? path : fingerprinted;
+  }
+}
@@ -0,0 +1,289 @@
+package org.cyclopsgroup.cym2.flatsite;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.io.IOUtils;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Mirrors a resource directory into output directory. Directories are walked in parallel, and a
+ * file is skipped when the output has the same size and modification time, or optionally the same
+ * content. Changed files are copied, hard linked or reflinked. When linking isn't possible, for
+ * example because the directories are on different file systems, files are copied instead. When
+ * outputs are post processed, their size may differ from the sources, so only modification time is
+ * compared, and files are copied rather than hard linked, since a source edited in place would
+ * change its hard linked output without changing anything the post processing can notice. All
+ * files are transferred again when outputs are post processed differently than in the previous
+ * build.
+ */
+class ResourceMirror {
+  /**
+   * How changed files are put into output directory
+   */
+  enum Mode {
+    COPY, HARDLINK, REFLINK
+  }
+
+  /**
+   * Mirrors one directory and forks a task for each sub directory
+   */
+  private class DirectoryTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final boolean all;
+
+    private final Path source;
+
+    private final Path target;
+
+    private DirectoryTask(Path source, Path target, boolean all) {
+      this.source = source;
+      this.target = target;
+      this.all = all;
+    }
+
+    @Override
+    protected void compute() {
+      try {
+        mirrorDirectory(source, target);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    private void mirrorDirectory(Path source, Path target) throws IOException {
+      if (!Files.isDirectory(target)) {
+        log.debug("Making directory " + target);
+        Files.createDirectories(target);
+      }
+      List<DirectoryTask> subtasks = new ArrayList<DirectoryTask>();
+      List<Path> changed = new ArrayList<Path>();
+      try (DirectoryStream<Path> entries = Files.newDirectoryStream(source)) {
+        for (Path entry : entries) {
+          String name = entry.getFileName().toString();
+          if (name.charAt(0) == '.') {
+            continue;
+          }
+          BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class);
+          if (attrs.isDirectory()) {
+            subtasks.add(new DirectoryTask(entry, target.resolve(name), all));
+          } else if (!all && isUnchanged(entry, attrs, target.resolve(name))) {
+            skippedFiles.incrementAndGet();
+            skippedBytes.addAndGet(attrs.size());
+          } else {
+            changed.add(entry);
+          }
+        }
+      }
+      if (mode == Mode.REFLINK && !changed.isEmpty() && !linkFailed.get()
+          && reflink(changed, target)) {
+        changed.clear();
+      }
+      for (Path file : changed) {
+        transfer(file, target.resolve(file.getFileName().toString()));
+      }
+      invokeAll(subtasks);
+    }
+  }
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final boolean contentCompared;
+
+  private final AtomicLong copiedBytes = new AtomicLong();
+
+  private final AtomicLong copiedFiles = new AtomicLong();
+
+  private final AtomicBoolean linkFailed = new AtomicBoolean();
+
+  private final AtomicLong linkedFiles = new AtomicLong();
+
+  private final Log log;
+
+  private final Mode mode;
+
+  private final AtomicLong skippedBytes = new AtomicLong();
+
+  private final AtomicLong skippedFiles = new AtomicLong();
+
+  private final int threads;
+
+  private final boolean transformed;
+
+  private final Collection<Path> transferredFiles = new ConcurrentLinkedQueue<Path>();
+
+  /**
+   * @param mode How changed files are put into output directory
+   * @param contentCompared If true, files with the same size but different modification time are
+   *        compared by content
+   * @param transformed If true, outputs are post processed and keep modification time of sources
+   *        but not their size or content, and they're never hard linked
+   * @param threads Number of threads that walk and copy
+   * @param log Maven log
+   */
+  ResourceMirror(Mode mode, boolean contentCompared, boolean transformed, int threads, Log log) {
+    this.mode = mode;
+    this.contentCompared = contentCompared;
+    this.transformed = transformed;
+    this.threads = threads;
+    this.log = log;
+  }
+
+  private static boolean contentEquals(Path a, Path b) throws IOException {
+    try (InputStream inA = Files.newInputStream(a); InputStream inB = Files.newInputStream(b)) {
+      byte[] bufferA = new byte[BUFFER_SIZE];
+      byte[] bufferB = new byte[BUFFER_SIZE];
+      for (int read = IOUtils.read(inA, bufferA); read > 0; read = IOUtils.read(inA, bufferA)) {
+        if (IOUtils.read(inB, bufferB) != read) {
+          return false;
+        }
+        for (int i = 0; i < read; i++) {
+          if (bufferA[i] != bufferB[i]) {
+            return false;
+          }
+        }
+      }
+      return inB.read() == -1;
+    }
+  }
+
+  private boolean isUnchanged(Path source, BasicFileAttributes attrs, Path target)
+      throws IOException {
+    if (!Files.isRegularFile(target)) {
+      return false;
+    }
+    BasicFileAttributes targetAttrs = Files.readAttributes(target, BasicFileAttributes.class);
+    if (transformed) {
+      // A hard link left by a build without post processing is replaced by a copy
+      return attrs.lastModifiedTime().toMillis() == targetAttrs.lastModifiedTime().toMillis()
+          && !(mode == Mode.HARDLINK && Files.isSameFile(source, target));
+    }
+    if (attrs.size() != targetAttrs.size()) {
+      return false;
+    }
+    // Copies may keep modification time in lower precision than the source
+    if (attrs.lastModifiedTime().toMillis() == targetAttrs.lastModifiedTime().toMillis()
+        || mode == Mode.HARDLINK && Files.isSameFile(source, target)) {
+      return true;
+    }
+    if (contentCompared && contentEquals(source, target)) {
+      // Align timestamp so that next build doesn't read content again
+      Files.setLastModifiedTime(target, attrs.lastModifiedTime());
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Mirror a directory
+   *
+   * @param source Source directory
+   * @param target Output directory
+   * @param all If true, files are transferred even if they're unchanged
+   * @throws IOException If any file can't be mirrored
+   */
+  void mirror(Path source, Path target, boolean all) throws IOException {
+    if (!Files.isDirectory(source)) {
+      return;
+    }
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      pool.invoke(new DirectoryTask(source, target, all));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Clone files with cp, one process for all changed files in a directory
+   *
+   * @return True if files are cloned
+   */
+  private boolean reflink(List<Path> files, Path target) throws IOException {
+    List<String> command = new ArrayList<String>(files.size() + 5);
+    command.add("cp");
+    command.add("-f");
+    command.add("--reflink=always");
+    command.add("--preserve=timestamps");
+    for (Path file : files) {
+      // Never write through an existing target, which may be a hard link of the source
+      Files.deleteIfExists(target.resolve(file.getFileName().toString()));
+      command.add(file.toString());
+    }
+    command.add(target.toString() + "/");
+    Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+    String output = IOUtils.toString(process.getInputStream(), Charset.defaultCharset());
+    try {
+      if (process.waitFor() == 0) {
+        for (Path file : files) {
+          log.debug("Reflinked " + file + " into " + target);
+          linkedFiles.incrementAndGet();
+          transferredFiles.add(target.resolve(file.getFileName().toString()));
+        }
+        return true;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while cloning files into " + target, e);
+    }
+    if (linkFailed.compareAndSet(false, true)) {
+      log.warn("Can't reflink resources, copying them instead: " + output.trim());
+    }
+    return false;
+  }
+
+  /**
+   * @return Human readable summary of mirrored files
+   */
+  String summary() {
+    return String.format("Copied %d resources (%d bytes), linked %d resources, skipped %d"
+        + " unchanged resources (%d bytes)", copiedFiles.get(), copiedBytes.get(),
+        linkedFiles.get(), skippedFiles.get(), skippedBytes.get());
+  }
+
+  /**
+   * @return Output files copied or linked by {@link #mirror(Path, Path, boolean)}
+   */
+  Collection<Path> getTransferredFiles() {
+    return transferredFiles;
+  }
+
+  private void transfer(Path source, Path target) throws IOException {
+    transferredFiles.add(target);
+    if (mode == Mode.HARDLINK && !transformed && !linkFailed.get()) {
+      try {
+        Files.deleteIfExists(target);
+        Files.createLink(target, source);
+        log.debug("Linked " + source + " into " + target);
+        linkedFiles.incrementAndGet();
+        return;
+      } catch (IOException | UnsupportedOperationException e) {
+        if (linkFailed.compareAndSet(false, true)) {
+          log.warn("Can't hard link resources, copying them instead: " + e);
+        }
+      }
+    }
+    log.debug("Copying " + source + " into " + target);
+    Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.COPY_ATTRIBUTES);
+    copiedFiles.incrementAndGet();
+    copiedBytes.addAndGet(Files.size(target));
+  }
+}
@@ -0,0 +1,406 @@
+package org.cyclopsgroup.cym2.flatsite;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.StringEscapeUtils;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.velocity.app.VelocityEngine;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the site from memory with a local HTTP server, and renders pages again as soon as their
+ * templates, layouts or other inputs change. Parsed templates are kept until their files change.
+ * Resources are served straight from the source directory. Served pages reload themselves in the
+ * browser after every change.
+ */
+@Mojo(name = "serve")
+public class ServeMojo extends FlatSiteMojo {
+  private static final String CONTENT = "content/";
+
+  private static final String RELOAD_PATH = "/__flatsite/reload";
+
+  private static final String RELOAD_QUERY = "since=";
+
+  /**
+   * Script appended to served pages, followed by version of site when page is served
+   */
+  private static final String RELOAD_SCRIPT = "<script>(function(){function poll(){"
+      + "var x=new XMLHttpRequest();x.open('GET','" + RELOAD_PATH + "?" + RELOAD_QUERY
+      + "'+v);x.onload=function(){if(x.status==200){location.reload();}else{poll();}};"
+      + "x.onerror=function(){setTimeout(poll,1000);};x.send();}var v=";
+
+  private static final String RELOAD_SCRIPT_END = ";poll();})();</script>";
+
+  private static final long RELOAD_TIMEOUT_MILLIS = 30000;
+
+  private static final String[] WATCHED_DIRECTORIES = {"content", "layout", "resources"};
+
+  /**
+   * Host name the server listens to
+   */
+  @Parameter(defaultValue = "localhost")
+  private String host;
+
+  /**
+   * Port the server listens to
+   */
+  @Parameter(defaultValue = "8080")
+  private int port;
+
+  private final Object changeLock = new Object();
+
+  private final Map<WatchKey, Path> directories = new ConcurrentHashMap<WatchKey, Path>();
+
+  private final Map<String, Set<String>> pageInputs = new ConcurrentHashMap<String, Set<String>>();
+
+  private final Map<String, byte[]> pages = new ConcurrentHashMap<String, byte[]>();
+
+  private ExecutorService renderer;
+
+  private Path sourcePath;
+
+  private final AtomicReference<TemplateCache> templateCache =
+      new AtomicReference<TemplateCache>();
+
+  private volatile VelocityEngine velocityEngine;
+
+  private long version;
+
+  /**
+   * @param since Version of site the browser shows, or NULL to wait for the next change
+   * @return True if site changed since given version before timeout
+   */
+  private boolean awaitChange(String since) throws InterruptedException {
+    synchronized (changeLock) {
+      long current = version;
+      if (since != null && since.startsWith(RELOAD_QUERY)) {
+        try {
+          current = Long.parseLong(since.substring(RELOAD_QUERY.length()));
+        } catch (NumberFormatException e) {
+          // Wait for the next change
+        }
+      }
+      long deadline = System.currentTimeMillis() + RELOAD_TIMEOUT_MILLIS;
+      while (version == current) {
+        long timeout = deadline - System.currentTimeMillis();
+        if (timeout <= 0) {
+          return false;
+        }
+        changeLock.wait(timeout);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * @inheritDoc
+   */
+  @Override
+  public void execute() throws MojoExecutionException, MojoFailureException {
+    if (!sourceDirectory.isDirectory()) {
+      throw new MojoExecutionException(sourceDirectory + " doesn't exist");
+    }
+    sourcePath = sourceDirectory.toPath().toAbsolutePath().normalize();
+    renderer = Executors.newFixedThreadPool(threads);
+    ExecutorService httpExecutor = Executors.newCachedThreadPool();
+    HttpServer server = null;
+    initializeTools();
+    try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+      velocityEngine = createVelocityEngine(templateCache);
+      long start = System.nanoTime();
+      List<String> templates = new ArrayList<String>();
+      collectTemplates("", templates);
+      renderPages(templates);
+      getLog().info("Rendered " + templates.size() + " pages in "
+          + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+
+      directories.put(sourcePath.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY),
+          sourcePath);
+      for (String directory : WATCHED_DIRECTORIES) {
+        register(watcher, sourcePath.resolve(directory));
+      }
+      server = HttpServer.create(new InetSocketAddress(host, port), 0);
+      server.createContext("/", this::handle);
+      server.setExecutor(httpExecutor);
+      server.start();
+      getLog().info("Serving " + sourceDirectory + " at http://" + host + ":" + port
+          + "/, press Ctrl-C to stop");
+      watch(watcher);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      throw new MojoExecutionException("Can't serve site: " + e.getMessage(), e);
+    } finally {
+      if (server != null) {
+        server.stop(0);
+      }
+      httpExecutor.shutdownNow();
+      renderer.shutdownNow();
+      closeTools();
+    }
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      String path = exchange.getRequestURI().getPath();
+      if (path.equals(RELOAD_PATH)) {
+        if (awaitChange(exchange.getRequestURI().getQuery())) {
+          respond(exchange, 200, "text/plain", "reload".getBytes(StandardCharsets.UTF_8));
+        } else {
+          exchange.sendResponseHeaders(204, -1);
+        }
+        return;
+      }
+      if (path.endsWith("/")) {
+        path += "index.html";
+      }
+      String relativePath = path.substring(1);
+      byte[] page = pages.get(relativePath);
+      if (page != null) {
+        // Pages change before version does, so page is at least as new as the version
+        long since;
+        synchronized (changeLock) {
+          since = version;
+        }
+        byte[] script = (RELOAD_SCRIPT + since + RELOAD_SCRIPT_END).getBytes(charset);
+        byte[] content = Arrays.copyOf(page, page.length + script.length);
+        System.arraycopy(script, 0, content, page.length, script.length);
+        respond(exchange, 200, "text/html; charset=" + charset.name(), content);
+        return;
+      }
+      Path resources = sourcePath.resolve("resources");
+      Path file = resources.resolve(relativePath).normalize();
+      if (file.startsWith(resources) && Files.isRegularFile(file)) {
+        String contentType = Files.probeContentType(file);
+        if (contentType == null) {
+          contentType = URLConnection.guessContentTypeFromName(file.getFileName().toString());
+        }
+        respond(exchange, 200, contentType == null ? "application/octet-stream" : contentType,
+            Files.readAllBytes(file));
+        return;
+      }
+      respond(exchange, 404, "text/plain",
+          ("Not found: " + path).getBytes(StandardCharsets.UTF_8));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void register(final WatchService watcher, Path directory) throws IOException {
+    if (!Files.isDirectory(directory)) {
+      return;
+    }
+    Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+          throws IOException {
+        if (dir.getFileName().toString().startsWith(".")) {
+          return FileVisitResult.SKIP_SUBTREE;
+        }
+        directories.put(dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  private void renderPages(Collection<String> templates)
+      throws InterruptedException, ExecutionException {
+    List<Future<?>> results = new ArrayList<Future<?>>(templates.size());
+    for (final String template : templates) {
+      results.add(renderer.submit(() -> renderServedPage(template)));
+    }
+    for (Future<?> result : results) {
+      result.get();
+    }
+  }
+
+  private void renderServedPage(String template) {
+    PageDependencies dependencies = PageDependencies.begin();
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      renderPage(template, velocityEngine,
+          layoutTemplatePath -> new BufferedWriter(new OutputStreamWriter(out, charset)));
+    } catch (Exception e) {
+      getLog().warn("Rendering " + template + " failed: " + e.getMessage());
+      StringWriter trace = new StringWriter();
+      e.printStackTrace(new PrintWriter(trace));
+      out.reset();
+      String error = "<html><body><h1>Rendering " + StringEscapeUtils.escapeHtml(template)
+          + " failed</h1><pre>" + StringEscapeUtils.escapeHtml(trace.toString()) + "</pre>"
+          + "</body></html>";
+      byte[] errorPage = error.getBytes(charset);
+      out.write(errorPage, 0, errorPage.length);
+    } finally {
+      PageDependencies.end();
+    }
+    // Template itself is an input even if rendering failed before it's loaded
+    Set<String> inputs = new HashSet<String>();
+    inputs.add(sourcePath.resolve(CONTENT + template).toString());
+    for (String file : dependencies.getFiles()) {
+      inputs.add(Paths.get(file).normalize().toString());
+    }
+    pageInputs.put(template, inputs);
+    pages.put(htmlPathOf(template), out.toByteArray());
+  }
+
+  private static void respond(HttpExchange exchange, int status, String contentType,
+      byte[] content) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.getResponseHeaders().set("Cache-Control", "no-store");
+    exchange.sendResponseHeaders(status, content.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(content);
+    }
+  }
+
+  /**
+   * Render pages affected by changed files again
+   *
+   * @param changed Changed files
+   * @param all True if all pages should be rendered again
+   * @return Number of rendered pages
+   */
+  private int update(Set<Path> changed, boolean all) throws Exception {
+    Object macroLibrary = velocityEngine.getProperty("velocimacro.library");
+    String macroLibraryPath =
+        macroLibrary == null ? "VM_global_library.vm" : macroLibrary.toString();
+    Set<String> templates = new TreeSet<String>();
+    for (Path path : changed) {
+      String relativePath =
+          sourcePath.relativize(path).toString().replace(File.separatorChar, '/');
+      if (relativePath.equals(macroLibraryPath)) {
+        all = true;
+        continue;
+      }
+      TemplateCache cache = templateCache.get();
+      if (cache != null) {
+        cache.invalidate(relativePath);
+      }
+      if (relativePath.startsWith(CONTENT)) {
+        String template = relativePath.substring(CONTENT.length());
+        if (Files.isDirectory(path)) {
+          List<String> added = new ArrayList<String>();
+          collectTemplates(template, added);
+          templates.addAll(added);
+        } else if (template.endsWith(templateSuffix) && Files.isRegularFile(path)) {
+          templates.add(template);
+        }
+      }
+      String file = path.toString();
+      for (Map.Entry<String, Set<String>> entry : pageInputs.entrySet()) {
+        if (entry.getValue().contains(file)) {
+          templates.add(entry.getKey());
+        }
+      }
+    }
+    if (all) {
+      // A new engine loads macros again and starts with an empty template cache
+      velocityEngine = createVelocityEngine(templateCache);
+      List<String> allTemplates = new ArrayList<String>();
+      collectTemplates("", allTemplates);
+      templates.clear();
+      templates.addAll(allTemplates);
+    }
+    for (String template : new ArrayList<String>(pageInputs.keySet())) {
+      if (!Files.isRegularFile(sourcePath.resolve(CONTENT + template))) {
+        getLog().info("Removing page of deleted template " + template);
+        pageInputs.remove(template);
+        pages.remove(htmlPathOf(template));
+        templates.remove(template);
+      }
+    }
+    resetTools();
+    renderPages(templates);
+    return templates.size();
+  }
+
+  private void watch(WatchService watcher) throws Exception {
+    while (true) {
+      Set<Path> changed = new LinkedHashSet<Path>();
+      boolean overflow = false;
+      // Editors often save a file in several steps, changes coming together are handled once
+      for (WatchKey key = watcher.take(); key != null;
+          key = watcher.poll(20, TimeUnit.MILLISECONDS)) {
+        Path directory = directories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+          if (event.kind() == OVERFLOW) {
+            overflow = true;
+            continue;
+          }
+          Path path = directory.resolve((Path) event.context());
+          String name = path.getFileName().toString();
+          if (name.startsWith(".") || name.endsWith("~")) {
+            continue;
+          }
+          boolean watched =
+              !directory.equals(sourcePath) || ArrayUtils.contains(WATCHED_DIRECTORIES, name);
+          if (event.kind() == ENTRY_CREATE && watched) {
+            register(watcher, path);
+          }
+          changed.add(path);
+        }
+        if (!key.reset()) {
+          directories.remove(key);
+        }
+      }
+      if (changed.isEmpty() && !overflow) {
+        continue;
+      }
+      long start = System.nanoTime();
+      int rendered = update(changed, overflow);
+      synchronized (changeLock) {
+        version++;
+        changeLock.notifyAll();
+      }
+      getLog().info(changed.size() + " files changed, rendered " + rendered + " pages in "
+          + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+    }
+  }
+}
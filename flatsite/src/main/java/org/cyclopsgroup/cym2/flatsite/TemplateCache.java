@@ -0,0 +1,76 @@
+package org.cyclopsgroup.cym2.flatsite;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.velocity.runtime.RuntimeServices;
+import org.apache.velocity.runtime.resource.Resource;
+import org.apache.velocity.runtime.resource.ResourceCache;
+
+/**
+ * Velocity resource cache that keeps parsed templates until they're invalidated explicitly, for
+ * servers that watch template files. Since a cached template isn't loaded again, its file is
+ * recorded as a dependency of the page being rendered whenever it's used.
+ * <p>
+ * Velocity creates the cache. The {@link AtomicReference} stored as application attribute named
+ * after this class receives the instance.
+ */
+public class TemplateCache implements ResourceCache {
+  private final Map<Object, Resource> resources = new ConcurrentHashMap<Object, Resource>();
+
+  @Override
+  public Iterator<Object> enumerateKeys() {
+    return resources.keySet().iterator();
+  }
+
+  @Override
+  public Resource get(Object key) {
+    Resource resource = resources.get(key);
+    if (resource != null && resource.getResourceLoader() instanceof TrackingFileResourceLoader) {
+      ((TrackingFileResourceLoader) resource.getResourceLoader())
+          .recordDependency(resource.getName());
+    }
+    return resource;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public void initialize(RuntimeServices runtimeServices) {
+    Object reference = runtimeServices.getApplicationAttribute(TemplateCache.class.getName());
+    if (reference instanceof AtomicReference) {
+      ((AtomicReference<TemplateCache>) reference).set(this);
+    }
+  }
+
+  /**
+   * Remove parsed template of given file
+   *
+   * @param path Path of template file relative to source directory, separated by slash
+   */
+  void invalidate(String path) {
+    for (Iterator<Object> i = resources.keySet().iterator(); i.hasNext();) {
+      if (path.equals(normalize(i.next().toString()))) {
+        i.remove();
+      }
+    }
+  }
+
+  private static String normalize(String name) {
+    String path = name.replace('\\', '/');
+    while (path.startsWith("/") || path.startsWith("./")) {
+      path = path.substring(path.charAt(0) == '/' ? 1 : 2);
+    }
+    return path;
+  }
+
+  @Override
+  public Resource put(Object key, Resource resource) {
+    return resources.put(key, resource);
+  }
+
+  @Override
+  public Resource remove(Object key) {
+    return resources.remove(key);
+  }
+}
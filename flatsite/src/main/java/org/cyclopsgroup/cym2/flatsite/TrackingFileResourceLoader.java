@@ -0,0 +1,48 @@
+package org.cyclopsgroup.cym2.flatsite;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.collections.ExtendedProperties;
+import org.apache.velocity.exception.ResourceNotFoundException;
+import org.apache.velocity.runtime.resource.loader.FileResourceLoader;
+
+/**
+ * File resource loader that records every template, layout, include and parsed file it loads as a
+ * dependency of the page being rendered
+ */
+public class TrackingFileResourceLoader extends FileResourceLoader {
+  private final List<String> paths = new ArrayList<String>();
+
+  @Override
+  public InputStream getResourceStream(String templateName)
+      throws ResourceNotFoundException {
+    InputStream in = super.getResourceStream(templateName);
+    recordDependency(templateName);
+    return in;
+  }
+
+  /**
+   * Record file of given template as a dependency of the page being rendered
+   *
+   * @param templateName Name of template
+   */
+  void recordDependency(String templateName) {
+    for (String path : paths) {
+      File file = new File(path, templateName);
+      if (file.isFile()) {
+        PageDependencies.recordFile(file);
+        break;
+      }
+    }
+  }
+
+  @Override
+  public void init(ExtendedProperties configuration) {
+    super.init(configuration);
+    for (Object path : configuration.getVector("path")) {
+      paths.add((String) path);
+    }
+  }
+}
@@ -0,0 +1,318 @@
+package org.cyclopsgroup.cym2.flatsite;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Build-wide cache of HTML bodies of widget URLs. Each distinct URL is fetched at most once per
+ * build, by a pool of threads so that distinct URLs are fetched concurrently. Fetched bodies are
+ * stored on disk, and a stored body younger than its TTL is used without any request. An older one
+ * is revalidated with If-None-Match and If-Modified-Since, and is still used if the URL can't be
+ * fetched.
+ */
+class WidgetCache implements Closeable {
+  private static final String KEY_ETAG = "etag";
+
+  private static final String KEY_FETCHED = "fetched";
+
+  private static final String KEY_LAST_MODIFIED = "lastModified";
+
+  private static final String KEY_URL = "url";
+
+  private static final int TIMEOUT_MILLIS = 30000;
+
+  private final ConcurrentMap<String, Future<String>> bodies =
+      new ConcurrentHashMap<String, Future<String>>();
+
+  private final File directory;
+
+  private final AtomicLong downloaded = new AtomicLong();
+
+  private final ExecutorService executor;
+
+  private final AtomicLong fresh = new AtomicLong();
+
+  private final Log log;
+
+  private final AtomicLong revalidated = new AtomicLong();
+
+  private final AtomicLong stale = new AtomicLong();
+
+  private final long ttlMillis;
+
+  /**
+   * @param directory Directory where fetched bodies are stored
+   * @param ttlMillis Default time a stored body is used without revalidation
+   * @param threads Number of URLs fetched concurrently
+   * @param log Log for stale content warnings
+   */
+  WidgetCache(File directory, long ttlMillis, int threads, Log log) {
+    this.directory = directory;
+    this.ttlMillis = ttlMillis;
+    this.log = log;
+    this.executor = Executors.newFixedThreadPool(threads);
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Extract content of body element and wrap it with a div element in one scan. Content without
+   * body element is returned as is.
+   *
+   * @param content HTML content
+   * @return Body of content
+   */
+  static String extractBody(CharSequence content) {
+    int length = content.length();
+    int start = -1;
+    int end = length;
+    for (int i = 0; i < length; i++) {
+      if (content.charAt(i) != '<') {
+        continue;
+      }
+      if (start == -1 && matchesTag(content, i + 1, "body")) {
+        int close = i + 5;
+        while (close < length && content.charAt(close) != '>') {
+          close++;
+        }
+        start = close + 1;
+        i = close;
+      } else if (start != -1 && matchesTag(content, i + 1, "/body")) {
+        end = i;
+        break;
+      }
+    }
+    if (start == -1) {
+      return content.toString();
+    }
+    StringBuilder body = new StringBuilder(Math.max(0, end - start) + 11);
+    return body.append("<div>").append(content, Math.min(start, end), end).append("</div>")
+        .toString();
+  }
+
+  private static boolean matchesTag(CharSequence content, int from, String name) {
+    int end = from + name.length();
+    if (end > content.length()) {
+      return false;
+    }
+    for (int i = 0; i < name.length(); i++) {
+      if (Character.toLowerCase(content.charAt(from + i)) != name.charAt(i)) {
+        return false;
+      }
+    }
+    return end == content.length() || content.charAt(end) == '>'
+        || Character.isWhitespace(content.charAt(end));
+  }
+
+  private String fetch(URL url, long ttl) throws IOException {
+    String name = DigestUtils.md5Hex(url.toString());
+    File metaFile = new File(directory, name + ".properties");
+    File bodyFile = new File(directory, name + ".html");
+    Properties meta = readMeta(metaFile, bodyFile, url);
+    long now = System.currentTimeMillis();
+    if (meta != null && now - Long.parseLong(meta.getProperty(KEY_FETCHED, "0")) < ttl) {
+      fresh.incrementAndGet();
+      return readBody(bodyFile);
+    }
+    try {
+      URLConnection connection = url.openConnection();
+      connection.setConnectTimeout(TIMEOUT_MILLIS);
+      connection.setReadTimeout(TIMEOUT_MILLIS);
+      if (connection instanceof HttpURLConnection) {
+        HttpURLConnection http = (HttpURLConnection) connection;
+        if (meta != null) {
+          setHeader(http, "If-None-Match", meta.getProperty(KEY_ETAG));
+          setHeader(http, "If-Modified-Since", meta.getProperty(KEY_LAST_MODIFIED));
+        }
+        int status = http.getResponseCode();
+        if (status == HttpURLConnection.HTTP_NOT_MODIFIED && meta != null) {
+          http.disconnect();
+          meta.setProperty(KEY_FETCHED, String.valueOf(now));
+          writeMeta(metaFile, meta);
+          revalidated.incrementAndGet();
+          return readBody(bodyFile);
+        }
+        if (status >= HttpURLConnection.HTTP_BAD_REQUEST) {
+          http.disconnect();
+          throw new IOException("HTTP " + status + " from " + url);
+        }
+      }
+      StringBuilder content = new StringBuilder();
+      try (Reader in = new InputStreamReader(connection.getInputStream(), charsetOf(connection))) {
+        char[] buffer = new char[8192];
+        for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+          content.append(buffer, 0, read);
+        }
+      }
+      String body = extractBody(content);
+      Properties newMeta = new Properties();
+      newMeta.setProperty(KEY_URL, url.toString());
+      newMeta.setProperty(KEY_FETCHED, String.valueOf(now));
+      if (connection.getHeaderField("ETag") != null) {
+        newMeta.setProperty(KEY_ETAG, connection.getHeaderField("ETag"));
+      }
+      if (connection.getHeaderField("Last-Modified") != null) {
+        newMeta.setProperty(KEY_LAST_MODIFIED, connection.getHeaderField("Last-Modified"));
+      }
+      writeBody(bodyFile, body);
+      writeMeta(metaFile, newMeta);
+      downloaded.incrementAndGet();
+      return body;
+    } catch (IOException e) {
+      if (meta == null) {
+        throw e;
+      }
+      log.warn("Using stored copy of " + url + " since it can't be fetched: " + e.getMessage());
+      stale.incrementAndGet();
+      return readBody(bodyFile);
+    }
+  }
+
+  /**
+   * @param url URL of widget
+   * @param ttl Time in milliseconds a stored body is used without revalidation, or negative for
+   *        default TTL
+   * @return Body of widget
+   * @throws IOException If widget can't be fetched and isn't stored
+   */
+  String get(URL url, long ttl) throws IOException {
+    try {
+      return submit(url, ttl).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while fetching " + url, e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException("Can't fetch " + url + ": " + e.getCause().getMessage(), e.getCause());
+    }
+  }
+
+  /**
+   * Start fetching given URLs concurrently without waiting
+   *
+   * @param urls URLs of widgets
+   * @param ttl Time in milliseconds a stored body is used without revalidation, or negative for
+   *        default TTL
+   */
+  void prefetch(Collection<URL> urls, long ttl) {
+    for (URL url : urls) {
+      submit(url, ttl);
+    }
+  }
+
+  /**
+   * The TTL of the first request of a URL in a build applies since the URL is fetched only once
+   */
+  private Future<String> submit(final URL url, final long ttl) {
+    return bodies.computeIfAbsent(url.toString(),
+        k -> executor.submit(() -> fetch(url, ttl < 0 ? ttlMillis : ttl)));
+  }
+
+  /**
+   * Start another build, in which each URL is fetched or revalidated again
+   */
+  void reset() {
+    bodies.clear();
+  }
+
+  /**
+   * @return Human readable summary of fetched widgets
+   */
+  String summary() {
+    return "Widget cache: " + downloaded + " downloaded, " + revalidated + " not modified, " + fresh
+        + " fresh, " + stale + " stale";
+  }
+
+  private static Charset charsetOf(URLConnection connection) {
+    String contentType = connection.getContentType();
+    if (contentType != null) {
+      for (String param : StringUtils.split(contentType, ';')) {
+        String[] pair = StringUtils.split(param.trim(), '=');
+        if (pair.length == 2 && pair[0].trim().equalsIgnoreCase("charset")) {
+          try {
+            return Charset.forName(StringUtils.strip(pair[1].trim(), "\"'"));
+          } catch (IllegalArgumentException e) {
+            break;
+          }
+        }
+      }
+    }
+    return StandardCharsets.UTF_8;
+  }
+
+  private static String readBody(File bodyFile) throws IOException {
+    return new String(Files.readAllBytes(bodyFile.toPath()), StandardCharsets.UTF_8);
+  }
+
+  private static Properties readMeta(File metaFile, File bodyFile, URL url) throws IOException {
+    if (!metaFile.isFile() || !bodyFile.isFile()) {
+      return null;
+    }
+    Properties meta = new Properties();
+    try (InputStream in = new FileInputStream(metaFile)) {
+      meta.load(in);
+    }
+    return url.toString().equals(meta.getProperty(KEY_URL)) ? meta : null;
+  }
+
+  private static void setHeader(HttpURLConnection connection, String name, String value) {
+    if (value != null) {
+      connection.setRequestProperty(name, value);
+    }
+  }
+
+  private void writeBody(File bodyFile, String body) throws IOException {
+    File temp = File.createTempFile(bodyFile.getName(), ".tmp", mkdirs());
+    Files.write(temp.toPath(), body.getBytes(StandardCharsets.UTF_8));
+    Files.move(temp.toPath(), bodyFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private void writeMeta(File metaFile, Properties meta) throws IOException {
+    File temp = File.createTempFile(metaFile.getName(), ".tmp", mkdirs());
+    try (OutputStream out = new FileOutputStream(temp)) {
+      meta.store(out, null);
+    }
+    Files.move(temp.toPath(), metaFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private File mkdirs() {
+    if (!directory.isDirectory()) {
+      directory.mkdirs();
+    }
+    return directory;
+  }
+}
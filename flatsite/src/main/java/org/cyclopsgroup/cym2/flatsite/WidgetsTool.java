@@ -1,26 +1,67 @@
 package org.cyclopsgroup.cym2.flatsite;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URL;
-import java.nio.charset.StandardCharsets;
-import org.apache.commons.io.IOUtils;
+import java.util.ArrayList;
+import java.util.List;
 
 public class WidgetsTool {
   public static final String TOOL_NAME = "widgets";
 
+  private final WidgetCache cache;
+
+  /**
+   * @param cache Build-wide cache of widget bodies
+   */
+  WidgetsTool(WidgetCache cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Start fetching given URLs concurrently, so that following calls to renderHtmlBody don't wait
+   * for each of them in turn
+   *
+   * @param urls URLs of widgets
+   * @return Empty string so that nothing is rendered
+   * @throws IOException If any of the URLs is malformed
+   */
+  public String prefetch(List<String> urls) throws IOException {
+    List<URL> list = new ArrayList<URL>(urls.size());
+    for (String url : urls) {
+      list.add(new URL(url));
+    }
+    PageDependencies.recordExternal();
+    long start = PageProfile.start();
+    cache.prefetch(list, -1);
+    PageProfile.record(TOOL_NAME, start);
+    return "";
+  }
+
   public String renderHtmlBody(String url) throws IOException {
     return renderHtmlBody(new URL(url));
   }
 
+  /**
+   * @param url URL of widget
+   * @param ttlSeconds Seconds a stored copy of widget is used without checking the URL
+   * @return Body of widget
+   * @throws IOException If widget can't be fetched
+   */
+  public String renderHtmlBody(String url, int ttlSeconds) throws IOException {
+    return get(new URL(url), ttlSeconds * 1000L);
+  }
+
   public String renderHtmlBody(URL url) throws IOException {
-    try (InputStream in = url.openStream()) {
-      String content = IOUtils.toString(in, StandardCharsets.UTF_8);
-      if (content.contains("</body>")) {
-        content = content.replaceAll("^.*<body>", "<div>");
-        content = content.replaceAll("</body>.*$", "</div>");
-      }
-      return content;
+    return get(url, -1);
+  }
+
+  private String get(URL url, long ttl) throws IOException {
+    PageDependencies.recordExternal();
+    long start = PageProfile.start();
+    try {
+      return cache.get(url, ttl);
+    } finally {
+      PageProfile.record(TOOL_NAME, start);
     }
   }
 }
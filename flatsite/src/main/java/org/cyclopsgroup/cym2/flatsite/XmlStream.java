@@ -0,0 +1,260 @@
+package org.cyclopsgroup.cym2.flatsite;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.apache.commons.lang.StringUtils;
+import org.dom4j.DocumentFactory;
+import org.dom4j.Element;
+
+/**
+ * Elements of an XML file that match a simple path, read with StAX while they're iterated. Only
+ * one matching element is held in memory at a time, so templates can loop over files that are too
+ * big to parse into a document. Every iteration reads the file again from the beginning.
+ * <p>
+ * A path is a list of element names separated by slash, where * matches any name and // matches
+ * any number of levels, for example /changelog/release/entry or //entry. A path that doesn't
+ * start with slash matches at any level. Names are compared without namespace. Elements inside a
+ * matching element aren't matched again.
+ */
+public final class XmlStream extends AbstractCollection<Element> {
+  /**
+   * Opens content of XML
+   */
+  interface Source {
+    InputStream open() throws IOException;
+  }
+
+  /**
+   * Reads elements with its own reader, which is closed when iteration reaches the end or when
+   * the iterator is closed
+   */
+  private class ElementIterator implements Iterator<Element>, Closeable {
+    private InputStream in;
+
+    private Element next;
+
+    private XMLStreamReader reader;
+
+    private final List<String> stack = new ArrayList<String>();
+
+    private ElementIterator() {
+      try {
+        in = source.open();
+        reader = INPUT_FACTORY.get().createXMLStreamReader(systemId, in);
+      } catch (IOException | XMLStreamException e) {
+        close();
+        throw new IllegalStateException("Can't read " + systemId + ": " + e.getMessage(), e);
+      }
+    }
+
+    private Element advance() throws XMLStreamException {
+      while (reader.hasNext()) {
+        int event = reader.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          stack.add(reader.getLocalName());
+          if (matches(0, 0)) {
+            Element element = readElement(reader);
+            stack.remove(stack.size() - 1);
+            return element;
+          }
+        } else if (event == XMLStreamConstants.END_ELEMENT) {
+          stack.remove(stack.size() - 1);
+        }
+      }
+      close();
+      return null;
+    }
+
+    @Override
+    public void close() {
+      try {
+        if (reader != null) {
+          reader.close();
+        }
+        if (in != null) {
+          in.close();
+        }
+      } catch (IOException | XMLStreamException e) {
+        // Nothing else to do with a failed close
+      } finally {
+        reader = null;
+        in = null;
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (next == null && reader != null) {
+        long start = PageProfile.start();
+        try {
+          next = advance();
+        } catch (XMLStreamException e) {
+          close();
+          throw new IllegalStateException("Can't read " + systemId + ": " + e.getMessage(), e);
+        } finally {
+          PageProfile.record(XmlTool.TOOL_NAME, start);
+        }
+      }
+      return next != null;
+    }
+
+    private boolean matches(int step, int level) {
+      if (step == steps.size()) {
+        return level == stack.size();
+      }
+      String name = steps.get(step);
+      if (name == null) {
+        for (int i = level; i < stack.size(); i++) {
+          if (matches(step + 1, i)) {
+            return true;
+          }
+        }
+        return false;
+      }
+      return level < stack.size() && (name.equals("*") || name.equals(stack.get(level)))
+          && matches(step + 1, level + 1);
+    }
+
+    @Override
+    public Element next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Element element = next;
+      next = null;
+      return element;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("XML stream is read-only");
+    }
+  }
+
+  private static final ThreadLocal<XMLInputFactory> INPUT_FACTORY =
+      new ThreadLocal<XMLInputFactory>() {
+        @Override
+        protected XMLInputFactory initialValue() {
+          XMLInputFactory factory = XMLInputFactory.newInstance();
+          factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+          return factory;
+        }
+      };
+
+  private final Source source;
+
+  /**
+   * Names of path, NULL stands for any number of levels
+   */
+  private final List<String> steps;
+
+  private final String systemId;
+
+  /**
+   * @param source Source of XML
+   * @param systemId System ID of XML, used to resolve relative references and in errors
+   * @param path Path of elements
+   */
+  XmlStream(Source source, String systemId, String path) {
+    this.source = source;
+    this.systemId = systemId;
+    this.steps = new ArrayList<String>();
+    if (!path.startsWith("/")) {
+      steps.add(null);
+    }
+    String[] names = path.split("/", -1);
+    for (int i = path.startsWith("/") ? 1 : 0; i < names.length; i++) {
+      if (names[i].isEmpty()) {
+        if (i == names.length - 1) {
+          throw new IllegalArgumentException("Path " + path + " doesn't end with a name");
+        }
+        steps.add(null);
+      } else {
+        steps.add(names[i]);
+      }
+    }
+  }
+
+  /**
+   * Check if there's any element, which reads the file until the first one
+   */
+  @Override
+  public boolean isEmpty() {
+    ElementIterator i = new ElementIterator();
+    boolean empty = !i.hasNext();
+    i.close();
+    return empty;
+  }
+
+  @Override
+  public Iterator<Element> iterator() {
+    return new ElementIterator();
+  }
+
+  /**
+   * Build element the reader is at, including its attributes and descendants
+   */
+  private static Element readElement(XMLStreamReader reader) throws XMLStreamException {
+    DocumentFactory factory = DocumentFactory.getInstance();
+    List<Element> elements = new ArrayList<Element>();
+    Element root = null;
+    int event = XMLStreamConstants.START_ELEMENT;
+    while (true) {
+      switch (event) {
+        case XMLStreamConstants.START_ELEMENT:
+          Element element = factory.createElement(factory.createQName(reader.getLocalName(),
+              StringUtils.defaultString(reader.getPrefix()),
+              StringUtils.defaultString(reader.getNamespaceURI())));
+          for (int i = 0; i < reader.getAttributeCount(); i++) {
+            element.addAttribute(factory.createQName(reader.getAttributeLocalName(i),
+                StringUtils.defaultString(reader.getAttributePrefix(i)),
+                StringUtils.defaultString(reader.getAttributeNamespace(i))),
+                reader.getAttributeValue(i));
+          }
+          if (root == null) {
+            root = element;
+          } else {
+            elements.get(elements.size() - 1).add(element);
+          }
+          elements.add(element);
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          elements.remove(elements.size() - 1);
+          if (elements.isEmpty()) {
+            return root;
+          }
+          break;
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.CDATA:
+        case XMLStreamConstants.SPACE:
+          elements.get(elements.size() - 1).addText(reader.getText());
+          break;
+        default:
+          break;
+      }
+      event = reader.next();
+    }
+  }
+
+  /**
+   * Count elements, which reads the whole file
+   */
+  @Override
+  public int size() {
+    int size = 0;
+    for (Iterator<Element> i = iterator(); i.hasNext(); i.next()) {
+      size++;
+    }
+    return size;
+  }
+}
@@ -1,30 +1,146 @@
 package org.cyclopsgroup.cym2.flatsite;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.AbstractCollection;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import org.codehaus.plexus.util.StringUtils;
 import org.dom4j.Document;
 import org.dom4j.DocumentException;
 import org.dom4j.io.SAXReader;
 
 /**
- * A utility for XML manipulation using Dom4j internally
+ * A utility for XML manipulation using Dom4j internally. It's safe to use it from multiple threads.
  *
  * @author <a href="mailto:jiaqi.guo@gmail.com">Jiaqi Guo</a>
  */
 public class XmlTool {
   public static final String TOOL_NAME = "xmltool";
 
+  /**
+   * Iterates groups of elements, and closes the source iterator of a stream when it's closed
+   * before all groups are read
+   */
+  private static final class GroupIterator<T> implements Iterator<List<T>>, Closeable {
+    private final int groupSize;
+
+    private final Iterator<T> source;
+
+    private GroupIterator(Iterator<T> source, int groupSize) {
+      this.source = source;
+      this.groupSize = groupSize;
+    }
+
+    @Override
+    public void close() {
+      closeSource(source);
+    }
+
+    @Override
+    public boolean hasNext() {
+      return source.hasNext();
+    }
+
+    @Override
+    public List<T> next() {
+      if (!source.hasNext()) {
+        throw new NoSuchElementException();
+      }
+      List<T> group = new ArrayList<T>(groupSize);
+      while (group.size() < groupSize && source.hasNext()) {
+        group.add(source.next());
+      }
+      return group;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("Groups are read-only");
+    }
+  }
+
+  /**
+   * Iterates elements of a page, and closes the source iterator of a stream once the page is
+   * exhausted, since the source usually has more elements after the page
+   */
+  private static final class PageIterator<T> implements Iterator<T>, Closeable {
+    private int count;
+
+    private final int pageSize;
+
+    private final Iterator<T> source;
+
+    private PageIterator(Iterator<T> source, int pageSize) {
+      this.source = source;
+      this.pageSize = pageSize;
+    }
+
+    @Override
+    public void close() {
+      closeSource(source);
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (count < pageSize && source.hasNext()) {
+        return true;
+      }
+      close();
+      return false;
+    }
+
+    @Override
+    public T next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      count++;
+      return source.next();
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("Page is read-only");
+    }
+  }
+
+  private static void closeSource(Iterator<?> source) {
+    if (source instanceof Closeable) {
+      try {
+        ((Closeable) source).close();
+      } catch (IOException e) {
+        // Nothing else to do with a failed close
+      }
+    }
+  }
+
+  private final DocumentCache documentCache;
+
   private final File resourceRoot;
 
-  XmlTool(File resourceRoot) {
+  /**
+   * @param resourceRoot Directory relative file paths are resolved against
+   * @param documentCache Cache of parsed documents, or NULL to parse documents every time
+   */
+  XmlTool(File resourceRoot, DocumentCache documentCache) {
     this.resourceRoot = resourceRoot;
+    this.documentCache = documentCache;
   }
 
-  private SAXReader saxReader = new SAXReader();
+  private static final ThreadLocal<SAXReader> SAX_READER = new ThreadLocal<SAXReader>() {
+    @Override
+    protected SAXReader initialValue() {
+      return new SAXReader();
+    }
+  };
 
   /**
    * Split big list into list of small site-limited lists
@@ -36,37 +152,165 @@ public class XmlTool {
    */
   public <T> List<List<T>> groupBy(List<T> list, int groupSize) {
     List<List<T>> groups = new ArrayList<List<T>>(list.size() / groupSize + 1);
-    for (int index = 0; index < list.size(); index++) {
-      List<T> group;
-      if (index % groupSize == 0) {
-        group = new ArrayList<T>(groupSize);
-        groups.add(group);
-      } else {
-        group = groups.get(index / groupSize);
-      }
-      group.add(list.get(index));
+    for (int index = 0; index < list.size(); index += groupSize) {
+      groups.add(new ArrayList<T>(list.subList(index, Math.min(index + groupSize, list.size()))));
     }
-
     return groups;
   }
 
   /**
-   * Parse a File into Dom4j Document
+   * Split elements into groups lazily, so that only one group is held in memory at a time. It's
+   * meant for {@link XmlStream}s, where each iteration reads the stream again.
+   *
+   * @param <T> Type of element
+   * @param items Elements to split
+   * @param groupSize Size of each group
+   * @return Groups, which are read while they're iterated
+   */
+  public <T> Collection<List<T>> groupBy(final Iterable<T> items, final int groupSize) {
+    return new AbstractCollection<List<T>>() {
+      @Override
+      public boolean isEmpty() {
+        GroupIterator<T> i = iterator();
+        boolean empty = !i.hasNext();
+        i.close();
+        return empty;
+      }
+
+      @Override
+      public GroupIterator<T> iterator() {
+        return new GroupIterator<T>(items.iterator(), groupSize);
+      }
+
+      @Override
+      public int size() {
+        return pageCount(items, groupSize);
+      }
+    };
+  }
+
+  /**
+   * Select one page of elements lazily. Elements before the page are skipped without being kept,
+   * and iteration stops at the end of the page.
+   *
+   * @param <T> Type of element
+   * @param items Elements to page
+   * @param pageSize Number of elements in each page
+   * @param pageIndex Index of page starting from 0
+   * @return Elements of the page, which are read while they're iterated
+   */
+  public <T> Collection<T> page(final Iterable<T> items, final int pageSize, final int pageIndex) {
+    return new AbstractCollection<T>() {
+      @Override
+      public boolean isEmpty() {
+        PageIterator<T> i = iterator();
+        boolean empty = !i.hasNext();
+        i.close();
+        return empty;
+      }
+
+      @Override
+      public PageIterator<T> iterator() {
+        Iterator<T> source = items.iterator();
+        for (long i = 0; i < (long) pageSize * pageIndex && source.hasNext(); i++) {
+          source.next();
+        }
+        return new PageIterator<T>(source, pageSize);
+      }
+
+      @Override
+      public int size() {
+        int size = 0;
+        for (Iterator<T> i = iterator(); i.hasNext(); i.next()) {
+          size++;
+        }
+        return size;
+      }
+    };
+  }
+
+  /**
+   * @param items Elements to page
+   * @param pageSize Number of elements in each page
+   * @return Number of pages, which requires a full iteration of elements
+   */
+  public int pageCount(Iterable<?> items, int pageSize) {
+    int size = 0;
+    if (items instanceof List) {
+      size = ((List<?>) items).size();
+    } else {
+      for (Iterator<?> i = items.iterator(); i.hasNext(); i.next()) {
+        size++;
+      }
+    }
+    return (size + pageSize - 1) / pageSize;
+  }
+
+  /**
+   * Parse a File into Dom4j Document. When documents are cached, the returned document is shared
+   * with other pages and can't be modified. Use createCopy() of an element for a modifiable copy.
    *
    * @param filePath Path of file
    * @return Dom4j document object
    * @throws DocumentException
    */
   public Document parseFile(String filePath) throws DocumentException {
-    File file = new File(resourceRoot, filePath);
+    final File file = new File(resourceRoot, filePath);
+    if (!file.exists()) {
+      return null;
+    }
+    PageDependencies.recordFile(file);
+    long start = PageProfile.start();
+    try {
+      if (documentCache == null) {
+        return SAX_READER.get().read(file);
+      }
+      String key =
+          "file:" + file.getAbsolutePath() + "@" + file.length() + "," + file.lastModified();
+      return documentCache.get(key, () -> SAX_READER.get().read(file));
+    } finally {
+      PageProfile.record(TOOL_NAME, start);
+    }
+  }
+
+  /**
+   * Stream elements of a file that match a path without parsing the whole file. Unlike documents
+   * returned by {@link #parseFile(String)}, the file is read again whenever the result is iterated.
+   *
+   * @param filePath Path of file
+   * @param path Path of elements as described in {@link XmlStream}
+   * @return Matching elements, or NULL if file doesn't exist
+   */
+  public XmlStream streamFile(String filePath, String path) {
+    final File file = new File(resourceRoot, filePath);
     if (!file.exists()) {
       return null;
     }
-    return saxReader.read(file);
+    PageDependencies.recordFile(file);
+    return new XmlStream(() -> new FileInputStream(file), file.toURI().toString(), path);
   }
 
   /**
-   * Parse a URL into Dom4j Document
+   * Stream elements of a URL that match a path without parsing the whole content. The URL is read
+   * again whenever the result is iterated.
+   *
+   * @param urlString URL of resource
+   * @param path Path of elements as described in {@link XmlStream}
+   * @return Matching elements
+   * @throws MalformedURLException
+   */
+  public XmlStream streamUrl(String urlString, String path) throws MalformedURLException {
+    if (StringUtils.isBlank(urlString)) {
+      return null;
+    }
+    PageDependencies.recordExternal();
+    final URL url = new URL(urlString);
+    return new XmlStream(() -> url.openStream(), urlString, path);
+  }
+
+  /**
+   * Parse a URL into Dom4j Document. When documents are cached, each URL is only read once in a
+   * build and the returned document can't be modified.
    *
    * @param urlString URL of resource
    * @return Dom4j document
@@ -77,6 +321,16 @@ public class XmlTool {
     if (StringUtils.isBlank(urlString)) {
       return null;
     }
-    return saxReader.read(new URL(urlString));
+    PageDependencies.recordExternal();
+    final URL url = new URL(urlString);
+    long start = PageProfile.start();
+    try {
+      if (documentCache == null) {
+        return SAX_READER.get().read(url);
+      }
+      return documentCache.get("url:" + urlString, () -> SAX_READER.get().read(url));
+    } finally {
+      PageProfile.record(TOOL_NAME, start);
+    }
   }
 }
@@ -0,0 +1,151 @@
+package org.cyclopsgroup.cym2.flatsite;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.NullWriter;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.apache.velocity.app.VelocityEngine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures time of rendering a synthetic site of given number of pages. Each page reads a shared
+ * XML document and is merged with a layout. {@link #render()} renders all pages in one thread
+ * without writing them, {@link #build()} runs the whole mojo including writing pages and copying
+ * resources. Run it with
+ *
+ * <pre>
+ * mvn -pl flatsite test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java \
+ *   -Dexec.args="-cp %classpath org.openjdk.jmh.Main RenderBenchmark"
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@State(Scope.Benchmark)
+public class RenderBenchmark {
+  private static final int ITEM_COUNT = 50;
+
+  private static final int RESOURCE_COUNT = 20;
+
+  private File baseDirectory;
+
+  private FlatSiteMojo mojo;
+
+  @Param({"10", "100", "1000"})
+  public int pages;
+
+  private List<String> templates;
+
+  @Param({"1", "4"})
+  public int threads;
+
+  private VelocityEngine velocityEngine;
+
+  @Benchmark
+  public void build() throws Exception {
+    mojo.execute();
+  }
+
+  @Benchmark
+  public void render() throws IOException {
+    for (String template : templates) {
+      mojo.renderPage(template, velocityEngine, layoutTemplatePath -> NullWriter.INSTANCE);
+    }
+  }
+
+  private static void set(Object mojo, String name, Object value) throws Exception {
+    Field field = FlatSiteMojo.class.getDeclaredField(name);
+    field.setAccessible(true);
+    field.set(mojo, value);
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    baseDirectory = Files.createTempDirectory("flatsite-benchmark").toFile();
+    File sourceDirectory = new File(baseDirectory, "src");
+    StringBuilder data = new StringBuilder("<items>");
+    for (int i = 0; i < ITEM_COUNT; i++) {
+      data.append("<item id=\"").append(i).append("\"><title>Item ").append(i)
+          .append("</title></item>");
+    }
+    FileUtils.writeStringToFile(new File(sourceDirectory, "resources/data.xml"),
+        data.append("</items>").toString(), "UTF-8");
+    for (int i = 0; i < RESOURCE_COUNT; i++) {
+      FileUtils.writeStringToFile(new File(sourceDirectory, "resources/css/style" + i + ".css"),
+          "body { margin: " + i + "px; }", "UTF-8");
+    }
+    FileUtils.writeStringToFile(new File(sourceDirectory, "layout/default_layout.vm"),
+        "<html><head><title>$htmlPath</title>"
+            + "<link rel=\"stylesheet\" href=\"$link.absolute('css/style0.css')\"/></head>"
+            + "<body>$body</body></html>",
+        "UTF-8");
+    for (int i = 0; i < pages; i++) {
+      FileUtils.writeStringToFile(
+          new File(sourceDirectory, "content/section" + (i % 10) + "/page" + i + ".vm"),
+          "#set($doc = $xmltool.parseFile('data.xml'))<h1>Page " + i + "</h1><ul>"
+              + "#foreach($item in $doc.selectNodes('//item'))"
+              + "<li id=\"$item.attributeValue('id')\">$item.elementText('title')</li>#end</ul>",
+          "UTF-8");
+    }
+
+    mojo = new FlatSiteMojo();
+    mojo.setLog(new SystemStreamLog() {
+      @Override
+      public void debug(CharSequence content) {}
+
+      @Override
+      public void info(CharSequence content) {}
+    });
+    set(mojo, "outputDirectory", new File(baseDirectory, "site"));
+    set(mojo, "sourceDirectory", sourceDirectory);
+    set(mojo, "layout", "default_layout.vm");
+    set(mojo, "templateSuffix", ".vm");
+    set(mojo, "layoutKey", "layout");
+    set(mojo, "bodyKey", "body");
+    set(mojo, "buildStateFile", new File(baseDirectory, "state.properties"));
+    set(mojo, "threads", threads);
+    set(mojo, "documentCacheSize", 64);
+    set(mojo, "encoding", "UTF-8");
+    set(mojo, "widgetCacheDirectory", new File(baseDirectory, "widgets"));
+    set(mojo, "widgetCacheTtlSeconds", 3600);
+    set(mojo, "widgetFetchThreads", 1);
+    set(mojo, "resourceMode", "copy");
+    set(mojo, "resourceThreads", threads);
+    set(mojo, "fingerprintStateFile", new File(baseDirectory, "fingerprints.properties"));
+    set(mojo, "resourceStateFile", new File(baseDirectory, "resources.txt"));
+    set(mojo, "profileReportFile", new File(baseDirectory, "profile.json"));
+    set(mojo, "profileTopPages", 20);
+
+    velocityEngine = mojo.createVelocityEngine(null);
+    templates = new ArrayList<String>();
+    mojo.collectTemplates("", templates);
+    mojo.initializeTools();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    mojo.closeTools();
+    FileUtils.deleteDirectory(baseDirectory);
+  }
+}
@@ -0,0 +1,166 @@
+package org.cyclopsgroup.cym2.flatsite;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests of {@link WidgetCache} against a local HTTP server
+ */
+public class WidgetCacheTest extends TestCase {
+  private static final String ETAG = "\"v1\"";
+
+  private static final String LAST_MODIFIED = "Wed, 21 Oct 2015 07:28:00 GMT";
+
+  private static final String PAGE =
+      "<html>\n<head><title>Widget</title></head>\n<body class=\"widget\">\n<p>Hello</p>\n"
+          + "</body>\n</html>";
+
+  private File directory;
+
+  private final List<String> ifModifiedSince = new ArrayList<String>();
+
+  private final List<String> ifNoneMatch = new ArrayList<String>();
+
+  private final AtomicInteger requests = new AtomicInteger();
+
+  private HttpServer server;
+
+  private URL url;
+
+  private void handle(HttpExchange exchange) throws IOException {
+    requests.incrementAndGet();
+    String etag = exchange.getRequestHeaders().getFirst("If-None-Match");
+    ifNoneMatch.add(etag);
+    ifModifiedSince.add(exchange.getRequestHeaders().getFirst("If-Modified-Since"));
+    exchange.getResponseHeaders().set("ETag", ETAG);
+    exchange.getResponseHeaders().set("Last-Modified", LAST_MODIFIED);
+    if (ETAG.equals(etag)) {
+      exchange.sendResponseHeaders(304, -1);
+      exchange.close();
+      return;
+    }
+    byte[] content = PAGE.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+    exchange.sendResponseHeaders(200, content.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(content);
+    }
+  }
+
+  private WidgetCache newCache(long ttlMillis) {
+    return new WidgetCache(directory, ttlMillis, 2, new SystemStreamLog());
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    directory = Files.createTempDirectory("widget-cache-test").toFile();
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/widget", this::handle);
+    server.start();
+    url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/widget");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    server.stop(0);
+    FileUtils.deleteDirectory(directory);
+  }
+
+  public void testExtractBodyWithAttributes() {
+    assertEquals("<div>x</div>", WidgetCache.extractBody("<BODY id=\"a\" class='b'>x</Body>"));
+  }
+
+  public void testExtractBodyMultipleLines() {
+    assertEquals("<div>\n<p>Hello</p>\n</div>", WidgetCache.extractBody(PAGE));
+  }
+
+  public void testExtractBodyWithoutBody() {
+    assertEquals("<p>Hello</p>", WidgetCache.extractBody("<p>Hello</p>"));
+    assertEquals("<bodyx>Hello</bodyx>", WidgetCache.extractBody("<bodyx>Hello</bodyx>"));
+  }
+
+  public void testExtractBodyWithoutEnd() {
+    assertEquals("<div>\n<p>Hello</p></div>",
+        WidgetCache.extractBody("<html><body>\n<p>Hello</p>"));
+  }
+
+  public void testFirstFetch() throws IOException {
+    try (WidgetCache cache = newCache(60000)) {
+      assertEquals("<div>\n<p>Hello</p>\n</div>", cache.get(url, -1));
+      assertEquals("<div>\n<p>Hello</p>\n</div>", cache.get(url, -1));
+      assertEquals(1, requests.get());
+      assertNull(ifNoneMatch.get(0));
+      assertTrue(cache.summary(), cache.summary().contains("1 downloaded"));
+    }
+  }
+
+  public void testMissingWithoutStoredCopy() {
+    server.stop(0);
+    try (WidgetCache cache = newCache(60000)) {
+      cache.get(url, -1);
+      fail("Fetching from a stopped server without stored copy should fail");
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  public void testRevalidationAfterReset() throws IOException {
+    try (WidgetCache cache = newCache(0)) {
+      cache.get(url, -1);
+      cache.get(url, -1);
+      assertEquals(1, requests.get());
+      cache.reset();
+      assertEquals("<div>\n<p>Hello</p>\n</div>", cache.get(url, -1));
+      assertEquals(2, requests.get());
+      assertEquals(ETAG, ifNoneMatch.get(1));
+    }
+  }
+
+  public void testReuseWithinTtl() throws IOException {
+    try (WidgetCache cache = newCache(60000)) {
+      cache.get(url, -1);
+    }
+    try (WidgetCache cache = newCache(60000)) {
+      assertEquals("<div>\n<p>Hello</p>\n</div>", cache.get(url, -1));
+      assertEquals(1, requests.get());
+      assertTrue(cache.summary(), cache.summary().contains("1 fresh"));
+    }
+  }
+
+  public void testRevalidation() throws IOException {
+    try (WidgetCache cache = newCache(0)) {
+      cache.get(url, -1);
+    }
+    try (WidgetCache cache = newCache(0)) {
+      assertEquals("<div>\n<p>Hello</p>\n</div>", cache.get(url, -1));
+      assertEquals(2, requests.get());
+      assertEquals(ETAG, ifNoneMatch.get(1));
+      assertEquals(LAST_MODIFIED, ifModifiedSince.get(1));
+      assertTrue(cache.summary(), cache.summary().contains("1 not modified"));
+    }
+  }
+
+  public void testStaleCopyWhenServerIsDown() throws IOException {
+    try (WidgetCache cache = newCache(0)) {
+      cache.get(url, -1);
+    }
+    server.stop(0);
+    try (WidgetCache cache = newCache(0)) {
+      assertEquals("<div>\n<p>Hello</p>\n</div>", cache.get(url, -1));
+      assertTrue(cache.summary(), cache.summary().contains("1 stale"));
+    }
+  }
+}
@@ -0,0 +1,238 @@
+package org.cyclopsgroup.cym2.protoc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Content addressed cache of generated sources shared by modules and builds. A key is the digest
+ * of protoc version, flags, and relative paths and content of proto files, so the same protos
+ * generate the same key wherever they're checked out. Each entry is a zip archive of the generated
+ * tree. Archives are written to a temporary file and moved into place, so concurrent builds never
+ * see a partial archive. Modification time of an archive is its last use, and least recently used
+ * archives are deleted when the cache grows over its maximum size. Versions of protoc executables
+ * are kept in the cache too, so that a build with an empty target directory finds its key without
+ * launching protoc.
+ */
+class GeneratedSourceCache {
+  private static final String SUFFIX = ".zip";
+
+  private static final String VERSIONS_FILE = "protoc-versions.properties";
+
+  private final File directory;
+
+  private final Log log;
+
+  private final long maxBytes;
+
+  /**
+   * @param directory Directory of archives
+   * @param maxBytes Maximum total size of archives
+   * @param log Maven log
+   */
+  GeneratedSourceCache(File directory, long maxBytes, Log log) {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    this.log = log;
+  }
+
+  /**
+   * @param protocVersion Version of protoc
+   * @param flags Flags of protoc that affect generated sources, without paths
+   * @param inputDir Input directory
+   * @param protoFiles Sorted proto files in input directory
+   * @return Key of generated sources
+   * @throws IOException If any proto file can't be read
+   */
+  static String key(String protocVersion, List<String> flags, File inputDir,
+      List<File> protoFiles) throws IOException {
+    MessageDigest digest = GenerationState.sha256();
+    digest.update(protocVersion.getBytes(StandardCharsets.UTF_8));
+    for (String flag : flags) {
+      digest.update((byte) 0);
+      digest.update(flag.getBytes(StandardCharsets.UTF_8));
+    }
+    for (File proto : protoFiles) {
+      digest.update((byte) 0);
+      digest.update(relativePath(inputDir, proto).getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) 0);
+      digest.update(FileUtils.readFileToByteArray(proto));
+    }
+    return GenerationState.toHex(digest.digest());
+  }
+
+  /**
+   * @param executable Resolved protoc executable
+   * @return Version recorded for the executable with the same path, size and modification time,
+   *         or NULL
+   * @throws IOException If versions can't be read
+   */
+  String getProtocVersion(File executable) throws IOException {
+    return loadVersions().getProperty(GenerationState.executableKey(executable));
+  }
+
+  private Properties loadVersions() throws IOException {
+    Properties versions = new Properties();
+    try (InputStream in = Files.newInputStream(new File(directory, VERSIONS_FILE).toPath())) {
+      versions.load(in);
+    } catch (NoSuchFileException e) {
+      // No version is recorded yet
+    }
+    return versions;
+  }
+
+  private static String relativePath(File directory, File file) {
+    return directory.toURI().relativize(file.toURI()).getPath();
+  }
+
+  private void evict() {
+    File[] archives = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+    if (archives == null) {
+      return;
+    }
+    long total = 0;
+    long[] lastModified = new long[archives.length];
+    for (int i = 0; i < archives.length; i++) {
+      lastModified[i] = archives[i].lastModified();
+      total += archives[i].length();
+    }
+    Integer[] order = new Integer[archives.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> Long.compare(lastModified[a], lastModified[b]));
+    for (int i = 0; i < order.length && total > maxBytes; i++) {
+      File archive = archives[order[i]];
+      long size = archive.length();
+      // Another build may have deleted it already
+      if (archive.delete()) {
+        log.debug("Evicted " + archive + " from protoc cache");
+      }
+      total -= size;
+    }
+  }
+
+  /**
+   * Extract generated sources of a key into output directory
+   *
+   * @param key Key of generated sources
+   * @param outputDir Output directory
+   * @return Extracted files, or NULL if key isn't cached
+   * @throws IOException If archive can't be extracted
+   */
+  List<File> restore(String key, File outputDir) throws IOException {
+    File archive = new File(directory, key + SUFFIX);
+    List<File> files = new ArrayList<File>();
+    try (ZipInputStream in = new ZipInputStream(Files.newInputStream(archive.toPath()))) {
+      String root = outputDir.getCanonicalPath() + File.separator;
+      for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+        File file = new File(outputDir, entry.getName());
+        if (!file.getCanonicalPath().startsWith(root)) {
+          throw new IOException("Entry " + entry.getName() + " of " + archive
+              + " is outside of output directory");
+        }
+        FileUtils.forceMkdir(file.getParentFile());
+        try (OutputStream out = Files.newOutputStream(file.toPath())) {
+          IOUtils.copy(in, out);
+        }
+        files.add(file);
+      }
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (ZipException e) {
+      log.warn("Ignoring broken archive " + archive + ": " + e.getMessage());
+      archive.delete();
+      return null;
+    }
+    try {
+      Files.setLastModifiedTime(archive.toPath(), FileTime.fromMillis(System.currentTimeMillis()));
+    } catch (IOException e) {
+      log.debug("Can't touch " + archive + ": " + e.getMessage());
+    }
+    return files;
+  }
+
+  /**
+   * Record version of an executable. Concurrent builds may overwrite each other's versions, which
+   * are only asked again.
+   *
+   * @param executable Resolved protoc executable
+   * @param version Version reported by the executable
+   * @throws IOException If versions can't be written
+   */
+  void setProtocVersion(File executable, String version) throws IOException {
+    FileUtils.forceMkdir(directory);
+    Properties versions = loadVersions();
+    versions.setProperty(GenerationState.executableKey(executable), version);
+    File temp = File.createTempFile(VERSIONS_FILE, ".tmp", directory);
+    try {
+      try (OutputStream out = Files.newOutputStream(temp.toPath())) {
+        versions.store(out, "Versions of protoc executables");
+      }
+      Files.move(temp.toPath(), new File(directory, VERSIONS_FILE).toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temp.toPath());
+    }
+  }
+
+  /**
+   * Store generated sources of a key and evict least recently used archives
+   *
+   * @param key Key of generated sources
+   * @param outputDir Output directory
+   * @param outputs Generated files in output directory
+   * @throws IOException If archive can't be written
+   */
+  void store(String key, File outputDir, Collection<File> outputs) throws IOException {
+    FileUtils.forceMkdir(directory);
+    File archive = new File(directory, key + SUFFIX);
+    if (archive.isFile()) {
+      return;
+    }
+    File temp = File.createTempFile(key, ".tmp", directory);
+    try {
+      try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(temp.toPath()))) {
+        for (File output : outputs) {
+          out.putNextEntry(new ZipEntry(relativePath(outputDir, output)));
+          try (InputStream in = Files.newInputStream(output.toPath())) {
+            IOUtils.copy(in, out);
+          }
+          out.closeEntry();
+        }
+      }
+      try {
+        Files.move(temp.toPath(), archive.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp.toPath(), archive.toPath());
+      }
+      log.debug("Stored " + outputs.size() + " generated sources into " + archive);
+    } catch (FileAlreadyExistsException e) {
+      // Another build stored the same key first
+    } finally {
+      Files.deleteIfExists(temp.toPath());
+    }
+    evict();
+  }
+}
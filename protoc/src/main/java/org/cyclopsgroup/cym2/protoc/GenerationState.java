@@ -0,0 +1,205 @@
+package org.cyclopsgroup.cym2.protoc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Persisted record of the last successful protoc run: digest of its inputs and arguments, and the
+ * files it generated. Generation is skipped when the digest doesn't change and all generated files
+ * still exist. The version of protoc is kept with the size and modification time of its
+ * executable, so that it's only asked again when the executable changes.
+ */
+class GenerationState {
+  private static final String KEY_DIGEST = "digest";
+
+  private static final String KEY_EXECUTABLE = "protoc.executable";
+
+  private static final String KEY_OUTPUTS = "outputs";
+
+  private static final String KEY_VERSION = "protoc.version";
+
+  private final Properties properties = new Properties();
+
+  private final File stateFile;
+
+  /**
+   * @param stateFile File where state is kept
+   */
+  GenerationState(File stateFile) {
+    this.stateFile = stateFile;
+  }
+
+  /**
+   * @param args Arguments of protoc
+   * @param protoFiles Input files
+   * @param protocVersion Version of protoc
+   * @return Hex SHA-256 digest of arguments, protoc version, paths and content of input files
+   * @throws IOException If any input can't be read
+   */
+  static String digest(List<String> args, Collection<File> protoFiles, String protocVersion)
+      throws IOException {
+    MessageDigest digest = sha256();
+    digest.update(protocVersion.getBytes(StandardCharsets.UTF_8));
+    for (String arg : args) {
+      digest.update((byte) 0);
+      digest.update(arg.getBytes(StandardCharsets.UTF_8));
+    }
+    for (File proto : protoFiles) {
+      digest.update((byte) 0);
+      digest.update(proto.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+      digest.update(FileUtils.readFileToByteArray(proto));
+    }
+    return toHex(digest.digest());
+  }
+
+  /**
+   * @param executable Resolved protoc executable
+   * @return Key that changes when the executable is replaced
+   */
+  static String executableKey(File executable) {
+    return executable.getAbsolutePath() + "@" + executable.length() + ","
+        + executable.lastModified();
+  }
+
+  /**
+   * @return New SHA-256 message digest
+   */
+  static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 isn't supported", e);
+    }
+  }
+
+  /**
+   * @param bytes Bytes to convert
+   * @return Lower case hex string of bytes
+   */
+  static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(String.format("%02x", b & 0xff));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * Record a successful run
+   *
+   * @param digest Digest of inputs of the run
+   * @param outputDir Output directory
+   * @param outputs Files the run generated
+   */
+  void generated(String digest, File outputDir, Collection<File> outputs) {
+    Set<String> paths = new TreeSet<String>();
+    for (File output : outputs) {
+      paths.add(outputDir.toURI().relativize(output.toURI()).getPath());
+    }
+    properties.setProperty(KEY_DIGEST, digest);
+    properties.setProperty(KEY_OUTPUTS, StringUtils.join(paths, '\n'));
+  }
+
+  /**
+   * @param outputDir Output directory of generated files
+   * @return Generated files of last run
+   */
+  List<File> getOutputs(File outputDir) {
+    List<File> outputs = new ArrayList<File>();
+    for (String path : StringUtils.split(properties.getProperty(KEY_OUTPUTS, ""), '\n')) {
+      outputs.add(new File(outputDir, path));
+    }
+    return outputs;
+  }
+
+  /**
+   * @param executable Resolved protoc executable, or NULL if it's not found
+   * @return Version of protoc recorded for the same executable, or NULL
+   */
+  String getProtocVersion(File executable) {
+    if (executable == null
+        || !executableKey(executable).equals(properties.getProperty(KEY_EXECUTABLE))) {
+      return null;
+    }
+    return properties.getProperty(KEY_VERSION);
+  }
+
+  /**
+   * @param digest Digest of current inputs
+   * @param outputDir Output directory of generated files
+   * @return True if last run had the same digest and its outputs still exist
+   */
+  boolean isUpToDate(String digest, File outputDir) {
+    if (!digest.equals(properties.getProperty(KEY_DIGEST))) {
+      return false;
+    }
+    for (File output : getOutputs(outputDir)) {
+      if (!output.isFile()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Read state from file if it exists
+   *
+   * @throws IOException If file can't be read
+   */
+  void load() throws IOException {
+    properties.clear();
+    if (stateFile.isFile()) {
+      try (InputStream in = new FileInputStream(stateFile)) {
+        properties.load(in);
+      }
+    }
+  }
+
+  /**
+   * Forget last run, so that next build runs protoc again
+   */
+  void invalidate() {
+    properties.remove(KEY_DIGEST);
+  }
+
+  /**
+   * Write state into file
+   *
+   * @throws IOException If file can't be written
+   */
+  void save() throws IOException {
+    File directory = stateFile.getAbsoluteFile().getParentFile();
+    FileUtils.forceMkdir(directory);
+    File temp = File.createTempFile(stateFile.getName(), ".tmp", directory);
+    try (OutputStream out = new FileOutputStream(temp)) {
+      properties.store(out, "State of protoc generation");
+    }
+    Files.move(temp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * @param executable Resolved protoc executable
+   * @param version Version reported by the executable
+   */
+  void setProtocVersion(File executable, String version) {
+    properties.setProperty(KEY_EXECUTABLE, executableKey(executable));
+    properties.setProperty(KEY_VERSION, version);
+  }
+}
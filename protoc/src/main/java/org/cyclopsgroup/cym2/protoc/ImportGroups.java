@@ -0,0 +1,91 @@
+package org.cyclopsgroup.cym2.protoc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Splits proto files into groups that are connected by imports, and packs the groups into batches
+ * of similar size. Files that import each other stay in the same batch so that each protoc process
+ * parses a shared import only once.
+ */
+final class ImportGroups {
+  private static final Pattern IMPORT = Pattern.compile(
+      "^\\s*import\\s+(?:public\\s+|weak\\s+)?\"([^\"]+)\"\\s*;", Pattern.MULTILINE);
+
+  private ImportGroups() {}
+
+  private static File find(Map<File, File> parents, File file) {
+    File parent = parents.get(file);
+    if (parent.equals(file)) {
+      return file;
+    }
+    File root = find(parents, parent);
+    parents.put(file, root);
+    return root;
+  }
+
+  /**
+   * @param protoPath Directory imports are resolved against
+   * @param protoFiles Proto files in the directory
+   * @param maxBatches Maximum number of batches
+   * @return Batches of files, each of which is a union of import groups
+   * @throws IOException If any proto file can't be read
+   */
+  static List<List<File>> partition(File protoPath, List<File> protoFiles, int maxBatches)
+      throws IOException {
+    Map<File, File> parents = new HashMap<File, File>();
+    for (File proto : protoFiles) {
+      parents.put(proto.getAbsoluteFile(), proto.getAbsoluteFile());
+    }
+    for (File proto : protoFiles) {
+      Matcher matcher = IMPORT.matcher(FileUtils.readFileToString(proto, StandardCharsets.UTF_8));
+      while (matcher.find()) {
+        File imported = new File(protoPath, matcher.group(1)).getAbsoluteFile();
+        // Imports outside of input directory, such as well known types, don't connect files
+        if (parents.containsKey(imported)) {
+          parents.put(find(parents, proto.getAbsoluteFile()), find(parents, imported));
+        }
+      }
+    }
+    Map<File, List<File>> groups = new LinkedHashMap<File, List<File>>();
+    for (File proto : protoFiles) {
+      File root = find(parents, proto.getAbsoluteFile());
+      List<File> group = groups.get(root);
+      if (group == null) {
+        group = new ArrayList<File>();
+        groups.put(root, group);
+      }
+      group.add(proto);
+    }
+
+    // Largest group first into the smallest batch
+    List<List<File>> sorted = new ArrayList<List<File>>(groups.values());
+    Collections.sort(sorted, (a, b) -> Integer.compare(b.size(), a.size()));
+    List<List<File>> batches = new ArrayList<List<File>>();
+    for (List<File> group : sorted) {
+      List<File> smallest = null;
+      if (batches.size() < maxBatches) {
+        smallest = new ArrayList<File>();
+        batches.add(smallest);
+      } else {
+        for (List<File> batch : batches) {
+          if (smallest == null || batch.size() < smallest.size()) {
+            smallest = batch;
+          }
+        }
+      }
+      smallest.addAll(group);
+    }
+    return batches;
+  }
+}
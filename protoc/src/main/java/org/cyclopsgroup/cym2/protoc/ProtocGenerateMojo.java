@@ -2,11 +2,21 @@ package org.cyclopsgroup.cym2.protoc;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.StringUtils;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
@@ -24,6 +34,46 @@ public class ProtocGenerateMojo extends AbstractMojo {
   @Parameter(defaultValue = "${project.basedir}/src/main/proto")
   private String inputDirectory;
 
+  /**
+   * File that records digest of inputs and files generated by last run. By default it's a file
+   * next to output directory.
+   */
+  @Parameter
+  private String stateFile;
+
+  /**
+   * If true, protoc runs even if inputs, version and arguments didn't change since last run
+   */
+  @Parameter(property = "protoc.force", defaultValue = "false")
+  private boolean force;
+
+  /**
+   * Maximum number of concurrent protoc processes, 0 for the number of processors. Proto files are
+   * split into groups connected by imports, and groups are spread over processes.
+   */
+  @Parameter(property = "protoc.threads", defaultValue = "0")
+  private int threads;
+
+  /**
+   * If true, generated sources are shared through a cache keyed by the content of protos, protoc
+   * version and flags, so that any module or build with the same protos doesn't run protoc again
+   */
+  @Parameter(property = "protoc.cache", defaultValue = "false")
+  private boolean cacheEnabled;
+
+  /**
+   * Directory of cached generated sources
+   */
+  @Parameter(property = "protoc.cacheDirectory",
+      defaultValue = "${settings.localRepository}/.cache/cym2-protoc")
+  private String cacheDirectory;
+
+  /**
+   * Maximum size of cache in megabytes, least recently used entries are deleted beyond it
+   */
+  @Parameter(property = "protoc.cacheMaxSize", defaultValue = "512")
+  private int cacheMaxSize;
+
   /**
    * @inheritDoc
    */
@@ -35,7 +85,7 @@ public class ProtocGenerateMojo extends AbstractMojo {
       return;
     }
     List<File> protoFiles =
-        new ArrayList<File>(FileUtils.listFiles(inputDir, new String[] {"proto"}, false));
+        new ArrayList<File>(FileUtils.listFiles(inputDir, new String[] {"proto"}, true));
     if (protoFiles.isEmpty()) {
       getLog().info("No proto file is found in " + inputDir + ", exit.");
       return;
@@ -45,17 +95,87 @@ public class ProtocGenerateMojo extends AbstractMojo {
 
     try {
       File outputDir = new File(outputDirectory);
+      args.add("--java_out=" + outputDir.getAbsolutePath());
+      List<String> commonArgs = new ArrayList<String>(args);
+      Collections.sort(protoFiles);
+      for (File proto : protoFiles) {
+        args.add(proto.getAbsolutePath());
+      }
+      GenerationState state = new GenerationState(stateFile == null ? new File(
+          outputDir.getAbsoluteFile().getParentFile(), outputDir.getName() + "-protoc.properties")
+          : new File(stateFile));
+      state.load();
+      GeneratedSourceCache cache = null;
+      if (cacheEnabled) {
+        cache = new GeneratedSourceCache(new File(cacheDirectory), cacheMaxSize * 1024L * 1024L,
+            getLog());
+      }
+      File executable = resolveExecutable();
+      String version = state.getProtocVersion(executable);
+      if (version == null && cache != null && executable != null) {
+        version = cache.getProtocVersion(executable);
+      }
+      if (version == null) {
+        version = protocVersion();
+        if (cache != null && executable != null) {
+          cache.setProtocVersion(executable, version);
+        }
+      }
+      if (executable != null) {
+        state.setProtocVersion(executable, version);
+      }
+      String digest = GenerationState.digest(args, protoFiles, version);
+      if (!force && state.isUpToDate(digest, outputDir)) {
+        getLog().info("Generated sources in " + outputDir + " are up to date");
+        return;
+      }
+
       if (!outputDir.exists()) {
         this.getLog().info("Creating directory " + outputDir + " since it doesn't exist");
         FileUtils.forceMkdir(outputDir);
       }
-      args.add("--java_out=" + outputDir.getAbsolutePath());
-      for (File proto : protoFiles) {
-        args.add(proto.getAbsolutePath());
+      String cacheKey = null;
+      List<File> restored = null;
+      if (cache != null) {
+        cacheKey = GeneratedSourceCache.key(version, Arrays.asList("--java_out"), inputDir,
+            protoFiles);
+        restored = cache.restore(cacheKey, outputDir);
+      }
+      Set<File> outputs = new HashSet<File>();
+      if (restored != null) {
+        getLog().info("Restored " + restored.size() + " generated sources from cache entry "
+            + cacheKey);
+        outputs.addAll(restored);
+      } else {
+        // Output directory may be shared with other generators, so outputs of protoc are the
+        // files it writes, which are all written again in every run
+        long start = System.currentTimeMillis() / 1000 * 1000;
+        int processes = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        int failures =
+            generate(commonArgs, ImportGroups.partition(inputDir, protoFiles, processes));
+        if (failures > 0) {
+          state.invalidate();
+          state.save();
+          throw new MojoFailureException(
+              failures + " " + protocExecutable + " processes failed, see errors above");
+        }
+        for (File file : FileUtils.listFiles(outputDir, null, true)) {
+          if (file.lastModified() >= start) {
+            outputs.add(file);
+          }
+        }
+        if (cache != null) {
+          cache.store(cacheKey, outputDir, outputs);
+        }
       }
-      getLog().info("Running process with arguments: " + args + "...");
-      Process proc = new ProcessBuilder(args.toArray(ArrayUtils.EMPTY_STRING_ARRAY)).start();
-      proc.waitFor();
+      for (File previous : state.getOutputs(outputDir)) {
+        if (!outputs.contains(previous) && previous.isFile()) {
+          getLog().info("Deleting " + previous + " since its proto no longer generates it");
+          previous.delete();
+        }
+      }
+      state.generated(digest, outputDir, outputs);
+      state.save();
     } catch (IOException e) {
       throw new MojoExecutionException("Can't generate proto files: " + e.getMessage(), e);
     } catch (InterruptedException e) {
@@ -63,4 +183,99 @@ public class ProtocGenerateMojo extends AbstractMojo {
           "Process " + protocExecutable + " is interrupted: " + e.getMessage(), e);
     }
   }
+
+  /**
+   * Run one protoc process for each batch concurrently
+   *
+   * @return Number of processes that failed
+   */
+  private int generate(List<String> commonArgs, List<List<File>> batches)
+      throws IOException, InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(batches.size());
+    try {
+      List<Future<Integer>> exitCodes = new ArrayList<Future<Integer>>(batches.size());
+      for (List<File> batch : batches) {
+        final List<String> command = new ArrayList<String>(commonArgs);
+        for (File proto : batch) {
+          command.add(proto.getAbsolutePath());
+        }
+        getLog().info("Running process with arguments: " + command + "...");
+        exitCodes.add(executor.submit(() -> run(command)));
+      }
+      int failures = 0;
+      for (Future<Integer> exitCode : exitCodes) {
+        try {
+          if (exitCode.get() != 0) {
+            failures++;
+          }
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException) {
+            throw (IOException) e.getCause();
+          }
+          throw new IOException("Can't run " + protocExecutable + ": " + e.getCause(),
+              e.getCause());
+        }
+      }
+      return failures;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * @return Output of protoc --version
+   * @throws IOException If protoc can't run or exits with an error, so no version is recorded
+   */
+  private String protocVersion() throws IOException, InterruptedException {
+    Process proc = new ProcessBuilder(protocExecutable, "--version").redirectErrorStream(true)
+        .start();
+    String version = IOUtils.toString(proc.getInputStream(), Charset.defaultCharset()).trim();
+    int exitCode = proc.waitFor();
+    if (exitCode != 0) {
+      throw new IOException(
+          protocExecutable + " --version exited with " + exitCode + ":\n" + version);
+    }
+    return version;
+  }
+
+  /**
+   * Run a process and drain its output while it runs, so that it never blocks on a full pipe
+   *
+   * @return Exit code of process
+   */
+  private int run(List<String> command) throws IOException, InterruptedException {
+    Process proc = new ProcessBuilder(command.toArray(ArrayUtils.EMPTY_STRING_ARRAY))
+        .redirectErrorStream(true).start();
+    String output = IOUtils.toString(proc.getInputStream(), Charset.defaultCharset()).trim();
+    int exitCode = proc.waitFor();
+    if (exitCode != 0) {
+      getLog().error("Process " + command + " exited with " + exitCode + ":\n" + output);
+    } else if (!output.isEmpty()) {
+      getLog().warn(output);
+    }
+    return exitCode;
+  }
+
+  /**
+   * @return File of protoc executable, or NULL if it can't be found
+   */
+  private File resolveExecutable() {
+    File executable = new File(protocExecutable);
+    if (protocExecutable.indexOf('/') != -1 || protocExecutable.indexOf(File.separatorChar) != -1) {
+      return executable.isFile() ? executable : null;
+    }
+    String path = System.getenv("PATH");
+    if (path == null) {
+      return null;
+    }
+    for (String directory : StringUtils.split(path, File.pathSeparatorChar)) {
+      for (String name : new String[] {protocExecutable, protocExecutable + ".exe"}) {
+        executable = new File(directory, name);
+        if (executable.isFile() && executable.canExecute()) {
+          return executable;
+        }
+      }
+    }
+    return null;
+  }
 }
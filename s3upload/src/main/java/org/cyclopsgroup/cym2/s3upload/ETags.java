@@ -0,0 +1,91 @@
+package org.cyclopsgroup.cym2.s3upload;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import com.amazonaws.util.BinaryUtils;
+
+/**
+ * Computes ETags of local files the same way S3 computes them for uploaded objects
+ */
+final class ETags {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * @param file Local file
+   * @param partSize Size of each part if file is uploaded in multiple parts, or 0 if file is
+   *        uploaded with single request
+   * @return Hex MD5 of file content for single part upload, or MD5 of all part MD5s followed by
+   *         number of parts for multipart upload
+   * @throws IOException If file can't be read
+   */
+  static String of(File file, long partSize) throws IOException {
+    try (InputStream in = new FileInputStream(file)) {
+      return of(in, file.length(), partSize);
+    }
+  }
+
+  /**
+   * @param in Input stream of content
+   * @param length Length of content
+   * @param partSize Size of each part if content is uploaded in multiple parts, or 0 if content is
+   *        uploaded with single request
+   * @return ETag of content
+   * @throws IOException If content can't be read
+   * @see #of(File, long)
+   */
+  static String of(InputStream in, long length, long partSize) throws IOException {
+    MessageDigest digest = newMd5();
+    if (partSize <= 0) {
+      update(digest, in, length);
+      return BinaryUtils.toHex(digest.digest());
+    }
+
+    MessageDigest partsDigest = newMd5();
+    int parts = 0;
+    long remaining = length;
+    while (remaining > 0) {
+      digest.reset();
+      remaining -= update(digest, in, Math.min(partSize, remaining));
+      partsDigest.update(digest.digest());
+      parts++;
+    }
+    return BinaryUtils.toHex(partsDigest.digest()) + "-" + parts;
+  }
+
+  private static MessageDigest newMd5() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("MD5 is not supported", e);
+    }
+  }
+
+  /**
+   * @param eTag ETag returned by S3, possibly quoted
+   * @return ETag without quotes
+   */
+  static String normalize(String eTag) {
+    return eTag == null ? null : eTag.replace("\"", "");
+  }
+
+  private static long update(MessageDigest digest, InputStream in, long length)
+      throws IOException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    long total = 0;
+    while (total < length) {
+      int read = in.read(buffer, 0, (int) Math.min(buffer.length, length - total));
+      if (read < 0) {
+        break;
+      }
+      digest.update(buffer, 0, read);
+      total += read;
+    }
+    return total;
+  }
+
+  private ETags() {}
+}
@@ -0,0 +1,250 @@
+package org.cyclopsgroup.cym2.s3upload;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.codehaus.plexus.util.AbstractScanner;
+import org.codehaus.plexus.util.SelectorUtils;
+
+/**
+ * Walks directories of file sets with multiple threads and feeds matched files into a bounded
+ * queue, so that consumers can start working before scanning finishes. Include and exclude
+ * patterns follow the same rules as the directory scanner behind FileSetManager.
+ */
+class FileSetScanner implements Closeable {
+  /**
+   * A file that matches a file set
+   */
+  static final class ScannedFile {
+    private final File file;
+
+    private final UploadFileSet fileSet;
+
+    private final String path;
+
+    private ScannedFile(UploadFileSet fileSet, String path, File file) {
+      this.fileSet = fileSet;
+      this.path = path;
+      this.file = file;
+    }
+
+    File getFile() {
+      return file;
+    }
+
+    UploadFileSet getFileSet() {
+      return fileSet;
+    }
+
+    /**
+     * @return Path relative to directory of file set, separated by slash
+     */
+    String getPath() {
+      return path;
+    }
+  }
+
+  /**
+   * Include and exclude patterns of a file set
+   */
+  private static class Selector {
+    private final String[] excludes;
+
+    private final UploadFileSet fileSet;
+
+    private final String[] includes;
+
+    private Selector(UploadFileSet fileSet) {
+      this.fileSet = fileSet;
+      List<String> includeList = fileSet.getIncludes();
+      includes = normalize(includeList.isEmpty() ? Arrays.asList("**") : includeList);
+      List<String> excludeList = new ArrayList<String>(fileSet.getExcludes());
+      if (fileSet.isUseDefaultExcludes()) {
+        excludeList.addAll(Arrays.asList(AbstractScanner.DEFAULTEXCLUDES));
+      }
+      excludes = normalize(excludeList);
+    }
+
+    private boolean isExcludedDirectory(String path) {
+      String suffix = File.separator + "**";
+      for (String exclude : excludes) {
+        if (exclude.endsWith(suffix) && SelectorUtils
+            .matchPath(exclude.substring(0, exclude.length() - suffix.length()), path, true)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private boolean isSelected(String path) {
+      return matchesAny(includes, path) && !matchesAny(excludes, path);
+    }
+
+    private boolean mayContainSelected(String path) {
+      if (isExcludedDirectory(path)) {
+        return false;
+      }
+      for (String include : includes) {
+        if (SelectorUtils.matchPatternStart(include, path, true)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private static boolean matchesAny(String[] patterns, String path) {
+      for (String pattern : patterns) {
+        if (SelectorUtils.matchPath(pattern, path, true)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private static String[] normalize(List<String> patterns) {
+      String[] result = new String[patterns.size()];
+      for (int i = 0; i < result.length; i++) {
+        String pattern = patterns.get(i).trim().replace('/', File.separatorChar)
+            .replace('\\', File.separatorChar);
+        if (pattern.endsWith(File.separator)) {
+          pattern += "**";
+        }
+        result[i] = pattern;
+      }
+      return result;
+    }
+  }
+
+  private static final ScannedFile END = new ScannedFile(null, null, null);
+
+  private final ExecutorService executor;
+
+  private final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+
+  private final AtomicInteger pendingDirectories = new AtomicInteger();
+
+  private final BlockingQueue<ScannedFile> queue;
+
+  private final AtomicLong scannedFiles = new AtomicLong();
+
+  /**
+   * @param threads Number of threads that walk directories
+   * @param queueSize Maximum number of matched files waiting to be consumed
+   */
+  FileSetScanner(int threads, int queueSize) {
+    this.executor = Executors.newFixedThreadPool(threads);
+    this.queue = new ArrayBlockingQueue<ScannedFile>(queueSize);
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  private void directoryDone() throws InterruptedException {
+    if (pendingDirectories.decrementAndGet() == 0) {
+      queue.put(END);
+    }
+  }
+
+  /**
+   * @return Number of matched files so far
+   */
+  long getScannedFiles() {
+    return scannedFiles.get();
+  }
+
+  private void scan(final Selector selector, final Path directory, final String prefix) {
+    pendingDirectories.incrementAndGet();
+    executor.execute(() -> {
+      try {
+        scanDirectory(selector, directory, prefix);
+      } catch (IOException e) {
+        failure.compareAndSet(null, e);
+      } catch (RuntimeException e) {
+        failure.compareAndSet(null, new IOException("Can't scan " + directory, e));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      try {
+        directoryDone();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+  }
+
+  private void scanDirectory(Selector selector, Path directory, String prefix)
+      throws IOException, InterruptedException {
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+      for (Path entry : entries) {
+        String name = entry.getFileName().toString();
+        String path = prefix + name;
+        String osPath = path.replace('/', File.separatorChar);
+        if (!selector.fileSet.isFollowSymlinks() && Files.isSymbolicLink(entry)) {
+          continue;
+        }
+        if (Files.isDirectory(entry)) {
+          if (selector.mayContainSelected(osPath)) {
+            scan(selector, entry, path + "/");
+          }
+        } else if (selector.isSelected(osPath)) {
+          queue.put(new ScannedFile(selector.fileSet, path, entry.toFile()));
+          scannedFiles.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  /**
+   * Start scanning given file sets in background
+   *
+   * @param fileSets File sets to scan
+   * @throws InterruptedException If it's interrupted while handing over the end of scan
+   */
+  void start(List<UploadFileSet> fileSets) throws InterruptedException {
+    // Hold one extra count so the end isn't signaled before all file sets are submitted
+    pendingDirectories.incrementAndGet();
+    for (UploadFileSet fs : fileSets) {
+      File directory = new File(fs.getDirectory());
+      if (directory.isDirectory()) {
+        scan(new Selector(fs), directory.toPath(), "");
+      }
+    }
+    directoryDone();
+  }
+
+  /**
+   * @return Next matched file, or NULL when all file sets have been scanned
+   * @throws IOException If scanning of any directory failed, as soon as the failure is known
+   * @throws InterruptedException If waiting is interrupted
+   */
+  ScannedFile take() throws IOException, InterruptedException {
+    ScannedFile file = queue.take();
+    if (failure.get() != null) {
+      if (file == END) {
+        queue.put(END);
+      }
+      throw failure.get();
+    }
+    if (file == END) {
+      queue.put(END);
+      return null;
+    }
+    return file;
+  }
+}
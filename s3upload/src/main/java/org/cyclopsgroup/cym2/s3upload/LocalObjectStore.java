@@ -0,0 +1,115 @@
+package org.cyclopsgroup.cym2.s3upload;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Object store that keeps objects as files in a local directory. Every request can be delayed to
+ * simulate network latency, which makes it usable for testing and benchmarking without AWS. Only
+ * content is stored, headers are ignored.
+ */
+class LocalObjectStore implements ObjectStore {
+  private static final int MAX_DELETE_BATCH_SIZE = 1000;
+
+  private final File directory;
+
+  private final long latencyMillis;
+
+  /**
+   * @param directory Root directory of objects
+   * @param latencyMillis Milliseconds each request is delayed
+   */
+  LocalObjectStore(File directory, long latencyMillis) {
+    this.directory = directory;
+    this.latencyMillis = latencyMillis;
+  }
+
+  @Override
+  public void close() {}
+
+  @Override
+  public void delete(List<String> keys) throws IOException {
+    simulateLatency();
+    for (String key : keys) {
+      Files.deleteIfExists(fileOf(key).toPath());
+    }
+  }
+
+  @Override
+  public String eTagOf(String key, ObjectContent content) throws IOException {
+    try (InputStream in = content.openStream()) {
+      return ETags.of(in, content.getLength(), 0);
+    }
+  }
+
+  private File fileOf(String key) {
+    return new File(directory, key);
+  }
+
+  @Override
+  public int getMaxDeleteBatchSize() {
+    return MAX_DELETE_BATCH_SIZE;
+  }
+
+  @Override
+  public boolean hasHeaders(String key, ObjectContent content) {
+    return true;
+  }
+
+  @Override
+  public Map<String, StoredObject> list(String prefix) throws IOException {
+    simulateLatency();
+    Map<String, StoredObject> objects = new HashMap<String, StoredObject>();
+    if (!directory.isDirectory()) {
+      return objects;
+    }
+    Path root = directory.toPath();
+    List<Path> files;
+    try (Stream<Path> paths = Files.walk(root)) {
+      files = paths.filter(Files::isRegularFile).collect(Collectors.toList());
+    }
+    for (Path file : files) {
+      String key = root.relativize(file).toString().replace(File.separatorChar, '/');
+      if (key.startsWith(prefix)) {
+        objects.put(key, new StoredObject(key, Files.size(file), ETags.of(file.toFile(), 0)));
+      }
+    }
+    return objects;
+  }
+
+  @Override
+  public void put(String key, ObjectContent content) throws IOException, InterruptedException {
+    simulateLatency();
+    Path file = fileOf(key).toPath();
+    Files.createDirectories(file.getParent());
+    try (InputStream in = content.openStream()) {
+      Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private void simulateLatency() throws IOException {
+    if (latencyMillis <= 0) {
+      return;
+    }
+    try {
+      Thread.sleep(latencyMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Simulated request is interrupted", e);
+    }
+  }
+
+  @Override
+  public String uriOf(String key) {
+    return fileOf(key).getAbsolutePath();
+  }
+}
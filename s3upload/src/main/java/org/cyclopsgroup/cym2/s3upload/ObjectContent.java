@@ -0,0 +1,101 @@
+package org.cyclopsgroup.cym2.s3upload;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Content of an object to store, either a local file or a byte array in memory, with headers
+ */
+final class ObjectContent {
+  private String cacheControl;
+
+  private String contentEncoding;
+
+  private String contentType;
+
+  private final byte[] data;
+
+  private final File file;
+
+  private final long length;
+
+  private ObjectContent(File file, byte[] data, long length) {
+    this.file = file;
+    this.data = data;
+    this.length = length;
+  }
+
+  /**
+   * @param file Local file
+   * @return Content backed by given file
+   */
+  static ObjectContent of(File file) {
+    return new ObjectContent(file, null, file.length());
+  }
+
+  /**
+   * @param data Byte array that is not copied and must not change while content is used
+   * @param length Number of bytes from the beginning of array
+   * @return Content backed by given byte array
+   */
+  static ObjectContent of(byte[] data, int length) {
+    return new ObjectContent(null, data, length);
+  }
+
+  String getCacheControl() {
+    return cacheControl;
+  }
+
+  String getContentEncoding() {
+    return contentEncoding;
+  }
+
+  String getContentType() {
+    return contentType;
+  }
+
+  /**
+   * @return Local file of content, or NULL if content is in memory
+   */
+  File getFile() {
+    return file;
+  }
+
+  long getLength() {
+    return length;
+  }
+
+  /**
+   * @return Description of headers, which is equal for contents stored with the same headers
+   */
+  String headers() {
+    return "Content-Type: " + StringUtils.defaultString(contentType) + ", Cache-Control: "
+        + StringUtils.defaultString(cacheControl) + ", Content-Encoding: "
+        + StringUtils.defaultString(contentEncoding);
+  }
+
+  /**
+   * @return A new input stream of content that caller needs to close
+   * @throws IOException If file can't be opened
+   */
+  InputStream openStream() throws IOException {
+    return file == null ? new ByteArrayInputStream(data, 0, (int) length)
+        : new FileInputStream(file);
+  }
+
+  void setCacheControl(String cacheControl) {
+    this.cacheControl = cacheControl;
+  }
+
+  void setContentEncoding(String contentEncoding) {
+    this.contentEncoding = contentEncoding;
+  }
+
+  void setContentType(String contentType) {
+    this.contentType = contentType;
+  }
+}
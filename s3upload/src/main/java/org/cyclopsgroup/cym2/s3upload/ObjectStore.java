@@ -0,0 +1,63 @@
+package org.cyclopsgroup.cym2.s3upload;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Destination where uploaded objects are stored
+ */
+interface ObjectStore extends Closeable {
+  /**
+   * Delete given objects with one request
+   *
+   * @param keys Keys of objects to delete, no more than {@link #getMaxDeleteBatchSize()}
+   * @throws IOException If deletion fails
+   */
+  void delete(List<String> keys) throws IOException;
+
+  /**
+   * @param key Key of object
+   * @param content Content to store
+   * @return ETag the store would assign to given content
+   * @throws IOException If content can't be read
+   */
+  String eTagOf(String key, ObjectContent content) throws IOException;
+
+  /**
+   * @return Maximum number of keys {@link #delete(List)} accepts
+   */
+  int getMaxDeleteBatchSize();
+
+  /**
+   * @param key Key of existing object
+   * @param content Content whose headers are compared
+   * @return True if the object is stored with the headers given content would be stored with
+   * @throws IOException If headers of object can't be read
+   */
+  boolean hasHeaders(String key, ObjectContent content) throws IOException;
+
+  /**
+   * @param prefix Prefix of keys, or empty string for all objects
+   * @return Map of key to object of all objects whose key starts with given prefix
+   * @throws IOException If objects can't be listed
+   */
+  Map<String, StoredObject> list(String prefix) throws IOException;
+
+  /**
+   * Store content under given key and wait until it's done
+   *
+   * @param key Key of object
+   * @param content Content to store
+   * @throws IOException If content can't be stored
+   * @throws InterruptedException If waiting is interrupted
+   */
+  void put(String key, ObjectContent content) throws IOException, InterruptedException;
+
+  /**
+   * @param key Key of object
+   * @return Human readable location of object for logging
+   */
+  String uriOf(String key);
+}
@@ -0,0 +1,195 @@
+package org.cyclopsgroup.cym2.s3upload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import org.apache.commons.lang.StringUtils;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
+
+/**
+ * Object store backed by an S3 bucket. Objects larger than the multipart threshold are uploaded in
+ * parts concurrently. Content type of an object without explicit one is guessed from its key.
+ */
+class S3ObjectStore implements ObjectStore {
+  private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+  /**
+   * Content types of common web files, which are pinned since guesses of {@link URLConnection}
+   * vary between JDKs, and a changed content type uploads an unchanged object again
+   */
+  private static final Map<String, String> CONTENT_TYPES = new HashMap<String, String>();
+
+  private static final int MAX_DELETE_BATCH_SIZE = 1000;
+
+  /**
+   * Maximum number of parts of a multipart upload
+   */
+  private static final int MAX_PARTS = 10000;
+
+  static {
+    CONTENT_TYPES.put("atom", "application/atom+xml");
+    CONTENT_TYPES.put("css", "text/css");
+    CONTENT_TYPES.put("gif", "image/gif");
+    CONTENT_TYPES.put("gz", "application/x-gzip");
+    CONTENT_TYPES.put("htm", "text/html");
+    CONTENT_TYPES.put("html", "text/html");
+    CONTENT_TYPES.put("ico", "image/x-icon");
+    CONTENT_TYPES.put("jpeg", "image/jpeg");
+    CONTENT_TYPES.put("jpg", "image/jpeg");
+    CONTENT_TYPES.put("js", "application/x-javascript");
+    CONTENT_TYPES.put("json", "application/json");
+    CONTENT_TYPES.put("mp3", "audio/mpeg");
+    CONTENT_TYPES.put("mp4", "video/mp4");
+    CONTENT_TYPES.put("pdf", "application/pdf");
+    CONTENT_TYPES.put("png", "image/png");
+    CONTENT_TYPES.put("svg", "image/svg+xml");
+    CONTENT_TYPES.put("txt", "text/plain");
+    CONTENT_TYPES.put("webm", "video/webm");
+    CONTENT_TYPES.put("xhtml", "application/xhtml+xml");
+    CONTENT_TYPES.put("xml", "application/xml");
+    CONTENT_TYPES.put("zip", "application/zip");
+  }
+
+  private final String bucket;
+
+  private final long multipartThreshold;
+
+  private final long partSize;
+
+  private final AmazonS3 s3;
+
+  private final TransferManager transferManager;
+
+  /**
+   * @param s3 S3 client
+   * @param bucket Name of bucket
+   * @param threads Number of concurrent part uploads
+   * @param partSize Size of each part in bytes for multipart uploads
+   * @param multipartThreshold Minimal object size in bytes to use multipart upload
+   */
+  S3ObjectStore(AmazonS3 s3, String bucket, final int threads, long partSize,
+      long multipartThreshold) {
+    this.s3 = s3;
+    this.bucket = bucket;
+    this.partSize = partSize;
+    this.multipartThreshold = multipartThreshold;
+    this.transferManager = TransferManagerBuilder.standard().withS3Client(s3)
+        .withExecutorFactory(() -> Executors.newFixedThreadPool(threads))
+        .withMinimumUploadPartSize(partSize).withMultipartUploadThreshold(multipartThreshold)
+        .build();
+  }
+
+  /**
+   * @return Content type of a key by its extension, or application/octet-stream if it's unknown
+   */
+  private static String contentTypeOf(String key) {
+    String name = key.substring(key.lastIndexOf('/') + 1);
+    int dot = name.lastIndexOf('.');
+    String contentType =
+        dot == -1 ? null : CONTENT_TYPES.get(name.substring(dot + 1).toLowerCase(Locale.US));
+    if (contentType == null) {
+      contentType = URLConnection.guessContentTypeFromName(name);
+    }
+    return contentType == null ? DEFAULT_CONTENT_TYPE : contentType;
+  }
+
+  @Override
+  public void close() {
+    transferManager.shutdownNow(true);
+  }
+
+  @Override
+  public void delete(List<String> keys) {
+    s3.deleteObjects(new DeleteObjectsRequest(bucket).withQuiet(true)
+        .withKeys(keys.toArray(new String[keys.size()])));
+  }
+
+  @Override
+  public String eTagOf(String key, ObjectContent content) throws IOException {
+    // Same part size as transfer manager picks for the upload, so that ETags match
+    long length = content.getLength();
+    long uploadPartSize = 0;
+    if (length > multipartThreshold) {
+      uploadPartSize = Math.max((length + MAX_PARTS - 1) / MAX_PARTS, partSize);
+    }
+    try (InputStream in = content.openStream()) {
+      return ETags.of(in, length, uploadPartSize);
+    }
+  }
+
+  @Override
+  public int getMaxDeleteBatchSize() {
+    return MAX_DELETE_BATCH_SIZE;
+  }
+
+  @Override
+  public boolean hasHeaders(String key, ObjectContent content) {
+    ObjectMetadata stored = s3.getObjectMetadata(bucket, key);
+    ObjectMetadata expected = metadataOf(key, content);
+    return StringUtils.equals(stored.getContentType(), expected.getContentType())
+        && StringUtils.equals(stored.getCacheControl(), expected.getCacheControl())
+        && StringUtils.equals(stored.getContentEncoding(), expected.getContentEncoding());
+  }
+
+  @Override
+  public Map<String, StoredObject> list(String prefix) {
+    Map<String, StoredObject> objects = new HashMap<String, StoredObject>();
+    ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucket)
+        .withPrefix(StringUtils.trimToNull(prefix));
+    ListObjectsV2Result result;
+    do {
+      result = s3.listObjectsV2(request);
+      for (S3ObjectSummary summary : result.getObjectSummaries()) {
+        objects.put(summary.getKey(), new StoredObject(summary.getKey(), summary.getSize(),
+            ETags.normalize(summary.getETag())));
+      }
+      request.setContinuationToken(result.getNextContinuationToken());
+    } while (result.isTruncated());
+    return objects;
+  }
+
+  @Override
+  public void put(String key, ObjectContent content) throws IOException, InterruptedException {
+    transferManager.upload(requestOf(key, content)).waitForCompletion();
+  }
+
+  private ObjectMetadata metadataOf(String key, ObjectContent content) {
+    ObjectMetadata metadata = new ObjectMetadata();
+    metadata.setContentLength(content.getLength());
+    metadata.setContentType(StringUtils.isNotBlank(content.getContentType())
+        ? content.getContentType() : contentTypeOf(key));
+    if (StringUtils.isNotBlank(content.getCacheControl())) {
+      metadata.setCacheControl(content.getCacheControl());
+    }
+    if (StringUtils.isNotBlank(content.getContentEncoding())) {
+      metadata.setContentEncoding(content.getContentEncoding());
+    }
+    return metadata;
+  }
+
+  private PutObjectRequest requestOf(String key, ObjectContent content) throws IOException {
+    ObjectMetadata metadata = metadataOf(key, content);
+    if (content.getFile() != null) {
+      return new PutObjectRequest(bucket, key, content.getFile()).withMetadata(metadata);
+    }
+    return new PutObjectRequest(bucket, key, content.openStream(), metadata);
+  }
+
+  @Override
+  public String uriOf(String key) {
+    return "s3://" + bucket + "/" + key;
+  }
+}
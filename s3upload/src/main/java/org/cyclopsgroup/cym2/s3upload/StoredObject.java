@@ -0,0 +1,33 @@
+package org.cyclopsgroup.cym2.s3upload;
+
+/**
+ * Object that exists in {@link ObjectStore}
+ */
+final class StoredObject {
+  private final String eTag;
+
+  private final String key;
+
+  private final long size;
+
+  StoredObject(String key, long size, String eTag) {
+    this.key = key;
+    this.size = size;
+    this.eTag = eTag;
+  }
+
+  /**
+   * @return ETag of object without quotes
+   */
+  String getETag() {
+    return eTag;
+  }
+
+  String getKey() {
+    return key;
+  }
+
+  long getSize() {
+    return size;
+  }
+}
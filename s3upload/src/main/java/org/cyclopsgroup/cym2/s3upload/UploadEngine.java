@@ -0,0 +1,363 @@
+package org.cyclopsgroup.cym2.s3upload;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.lang.StringUtils;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Uploads files to an {@link ObjectStore} with a fixed number of workers. The number of submitted
+ * but unfinished uploads is bounded so that the caller blocks instead of queuing up unlimited work.
+ * When the existing remote object is given, the file is only uploaded if its size, ETag or headers
+ * differ. Files in file sets with gzip enabled are compressed into a per-thread memory buffer and
+ * uploaded from there, or from a temporary file when they're too big for the buffer. Orphan objects
+ * are deleted in batches by the same workers.
+ */
+class UploadEngine implements Closeable {
+  /**
+   * Growable byte buffer that exposes its content without copying. Content that grows beyond
+   * {@link #MAX_BUFFERED_BYTES} is moved into a temporary file, which is deleted on reset.
+   */
+  private static class ContentBuffer extends ByteArrayOutputStream {
+    private OutputStream spill;
+
+    private File spillFile;
+
+    @Override
+    public void close() throws IOException {
+      if (spill != null) {
+        spill.close();
+      }
+    }
+
+    @Override
+    public synchronized void reset() {
+      super.reset();
+      if (spillFile != null) {
+        try {
+          spill.close();
+        } catch (IOException e) {
+          // Nothing else to do with a failed close
+        }
+        spillFile.delete();
+        spillFile = null;
+        spill = null;
+      }
+    }
+
+    private ObjectContent toContent() {
+      return spillFile == null ? ObjectContent.of(buf, count) : ObjectContent.of(spillFile);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+      try {
+        if (spill == null && count + len > MAX_BUFFERED_BYTES) {
+          spillFile = File.createTempFile("s3upload", ".tmp");
+          spill = new BufferedOutputStream(new FileOutputStream(spillFile), BUFFER_SIZE);
+          spill.write(buf, 0, count);
+        }
+        if (spill != null) {
+          spill.write(b, off, len);
+        } else {
+          super.write(b, off, len);
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    @Override
+    public synchronized void write(int b) {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+  }
+
+  /**
+   * Unit of work executed by workers
+   */
+  private interface Task {
+    void run() throws Exception;
+  }
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final int MAX_BUFFERED_BYTES = 8 * 1024 * 1024;
+
+  private static final String VARIANT_GZIP = "gzip";
+
+  private final ThreadLocal<ContentBuffer> buffers = new ThreadLocal<ContentBuffer>() {
+    @Override
+    protected ContentBuffer initialValue() {
+      return new ContentBuffer();
+    }
+  };
+
+  private final AtomicLong deletedObjects = new AtomicLong();
+
+  private final ExecutorService executor;
+
+  private final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+
+  private final Log log;
+
+  private final UploadManifest manifest;
+
+  private final int maxPendingUploads;
+
+  private final Semaphore pendingUploads;
+
+  private final AtomicLong skippedBytes = new AtomicLong();
+
+  private final AtomicLong skippedFiles = new AtomicLong();
+
+  private final ObjectStore store;
+
+  private final AtomicLong uploadedBytes = new AtomicLong();
+
+  private final AtomicLong uploadedFiles = new AtomicLong();
+
+  /**
+   * @param store Destination of uploads
+   * @param threads Number of concurrent uploads
+   * @param maxPendingUploads Maximum number of uploads that are submitted but not finished
+   * @param manifest Cache of local ETags
+   * @param log Maven log
+   */
+  UploadEngine(ObjectStore store, int threads, int maxPendingUploads, UploadManifest manifest,
+      Log log) {
+    this.store = store;
+    this.log = log;
+    this.manifest = manifest;
+    this.maxPendingUploads = maxPendingUploads;
+    this.pendingUploads = new Semaphore(maxPendingUploads);
+    this.executor = Executors.newFixedThreadPool(threads);
+  }
+
+  private void applyOptions(ObjectContent content, UploadFileSet options) {
+    content.setContentType(options.getContentType());
+    content.setCacheControl(options.getCacheControl());
+    if (StringUtils.isNotBlank(options.getContentEncoding())) {
+      content.setContentEncoding(options.getContentEncoding());
+    } else if (options.isGzip()) {
+      content.setContentEncoding(VARIANT_GZIP);
+    }
+  }
+
+  /**
+   * Wait until all submitted uploads finish
+   *
+   * @throws IOException If any of the uploads failed
+   * @throws InterruptedException If waiting is interrupted
+   */
+  void awaitCompletion() throws IOException, InterruptedException {
+    pendingUploads.acquire(maxPendingUploads);
+    pendingUploads.release(maxPendingUploads);
+    synchronized (failures) {
+      if (failures.isEmpty()) {
+        return;
+      }
+      IOException e = new IOException(failures.size() + " of the uploads failed, first error: "
+          + failures.get(0).getMessage(), failures.get(0));
+      for (Exception f : failures.subList(1, failures.size())) {
+        e.addSuppressed(f);
+      }
+      throw e;
+    }
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Submit keys to delete with multi-object delete requests. Keys are split into batches that are
+   * deleted concurrently with other pending work.
+   *
+   * @param keys Keys of objects to delete
+   * @throws InterruptedException If waiting for a free slot is interrupted
+   */
+  void delete(List<String> keys) throws InterruptedException {
+    int batchSize = store.getMaxDeleteBatchSize();
+    for (int from = 0; from < keys.size(); from += batchSize) {
+      final List<String> batch =
+          new ArrayList<String>(keys.subList(from, Math.min(keys.size(), from + batchSize)));
+      submit("Deleting " + batch.size() + " objects", () -> {
+        log.debug("Deleting " + batch.size() + " objects from " + store.uriOf(""));
+        store.delete(batch);
+        deletedObjects.addAndGet(batch.size());
+      });
+    }
+  }
+
+  private String eTagOf(String key, File file, ObjectContent content) throws IOException {
+    String eTag = manifest.getETag(file, "");
+    if (eTag == null) {
+      eTag = store.eTagOf(key, content);
+      manifest.putETag(file, "", eTag);
+    }
+    return eTag;
+  }
+
+  /**
+   * @return True if remote object is stored with the headers of given content, which are read from
+   *         the store unless manifest knows them
+   */
+  private boolean hasHeaders(String key, ObjectContent content, StoredObject remote)
+      throws IOException {
+    String headers = content.headers();
+    if (headers.equals(manifest.getHeaders(key, remote.getETag()))) {
+      return true;
+    }
+    if (!store.hasHeaders(key, content)) {
+      log.debug("Headers of " + store.uriOf(key) + " changed");
+      return false;
+    }
+    manifest.putHeaders(key, remote.getETag(), headers);
+    return true;
+  }
+
+  /**
+   * @param eTag ETag of content if it's known, or NULL
+   */
+  private void put(String key, File file, ObjectContent content, String eTag)
+      throws IOException, InterruptedException {
+    log.debug("Uploading file " + file + " to " + store.uriOf(key));
+    store.put(key, content);
+    if (eTag != null) {
+      manifest.putHeaders(key, eTag, content.headers());
+    }
+    uploadedFiles.incrementAndGet();
+    uploadedBytes.addAndGet(content.getLength());
+  }
+
+  private void skipped(File file, long size) {
+    log.debug("Skipping unchanged file " + file);
+    skippedFiles.incrementAndGet();
+    skippedBytes.addAndGet(size);
+  }
+
+  private void submit(final String description, final Task task) throws InterruptedException {
+    pendingUploads.acquire();
+    try {
+      executor.execute(() -> {
+        try {
+          task.run();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          failures.add(e);
+        } catch (Exception e) {
+          log.error(description + " failed: " + e.getMessage());
+          failures.add(e);
+        } finally {
+          pendingUploads.release();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      pendingUploads.release();
+      throw e;
+    }
+  }
+
+  /**
+   * @return Human readable summary of uploaded and skipped files
+   */
+  String summary() {
+    return String.format(
+        "Uploaded %d files (%d bytes), skipped %d unchanged files (%d bytes), deleted %d objects",
+        uploadedFiles.get(), uploadedBytes.get(), skippedFiles.get(), skippedBytes.get(),
+        deletedObjects.get());
+  }
+
+  /**
+   * Submit a file to upload. This method blocks when there are too many pending uploads.
+   *
+   * @param key Destination object key
+   * @param file Local file to upload
+   * @param options Options of file set the file belongs to
+   * @param remote Existing remote object with the same key, or NULL to always upload
+   * @throws InterruptedException If waiting for a free slot is interrupted
+   */
+  void upload(final String key, final File file, final UploadFileSet options,
+      final StoredObject remote) throws InterruptedException {
+    submit("Uploading " + file, () -> {
+      if (options.isGzip()) {
+        uploadCompressed(key, file, options, remote);
+      } else {
+        uploadFile(key, file, options, remote);
+      }
+    });
+  }
+
+  private void uploadCompressed(String key, File file, UploadFileSet options,
+      StoredObject remote) throws IOException, InterruptedException {
+    // Content is known to be the same without compressing it again, so only headers may differ
+    boolean sameContent =
+        remote != null && remote.getETag().equals(manifest.getETag(file, VARIANT_GZIP));
+    if (sameContent) {
+      ObjectContent headers = ObjectContent.of(file);
+      applyOptions(headers, options);
+      if (hasHeaders(key, headers, remote)) {
+        skipped(file, remote.getSize());
+        return;
+      }
+    }
+
+    ContentBuffer buffer = buffers.get();
+    buffer.reset();
+    try {
+      try (OutputStream out = new GZIPOutputStream(buffer, BUFFER_SIZE)) {
+        Files.copy(file.toPath(), out);
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+      ObjectContent content = buffer.toContent();
+      applyOptions(content, options);
+      String eTag = null;
+      if (remote != null) {
+        eTag = store.eTagOf(key, content);
+        manifest.putETag(file, VARIANT_GZIP, eTag);
+        if (!sameContent && eTag.equals(remote.getETag()) && hasHeaders(key, content, remote)) {
+          skipped(file, content.getLength());
+          return;
+        }
+      }
+      put(key, file, content, eTag);
+    } finally {
+      // Deletes the temporary file of big content
+      buffer.reset();
+    }
+  }
+
+  private void uploadFile(String key, File file, UploadFileSet options, StoredObject remote)
+      throws IOException, InterruptedException {
+    ObjectContent content = ObjectContent.of(file);
+    applyOptions(content, options);
+    String eTag = null;
+    if (remote != null && remote.getSize() == content.getLength()) {
+      eTag = eTagOf(key, file, content);
+      if (eTag.equals(remote.getETag()) && hasHeaders(key, content, remote)) {
+        skipped(file, content.getLength());
+        return;
+      }
+    }
+    put(key, file, content, eTag);
+  }
+}
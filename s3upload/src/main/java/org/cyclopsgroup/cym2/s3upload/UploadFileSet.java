@@ -0,0 +1,64 @@
+package org.cyclopsgroup.cym2.s3upload;
+
+import org.apache.maven.shared.model.fileset.FileSet;
+
+/**
+ * File set with options that control how files are stored in S3
+ */
+public class UploadFileSet extends FileSet {
+  private static final long serialVersionUID = 1L;
+
+  private String cacheControl;
+
+  private String contentEncoding;
+
+  private String contentType;
+
+  private boolean gzip;
+
+  /**
+   * @return Value of Cache-Control header of uploaded objects, or NULL if it's not set
+   */
+  public String getCacheControl() {
+    return cacheControl;
+  }
+
+  /**
+   * @return Value of Content-Encoding header of uploaded objects. It defaults to gzip if files are
+   *         compressed.
+   */
+  public String getContentEncoding() {
+    return contentEncoding;
+  }
+
+  /**
+   * @return Value of Content-Type header of uploaded objects, or NULL to guess it from file name
+   */
+  public String getContentType() {
+    return contentType;
+  }
+
+  /**
+   * @return True if files are compressed with gzip while they are uploaded. Since each file is
+   *         compressed in memory, it's meant for text files such as HTML, CSS and Javascript.
+   */
+  public boolean isGzip() {
+    return gzip;
+  }
+
+  public void setCacheControl(String cacheControl) {
+    this.cacheControl = cacheControl;
+  }
+
+  public void setContentEncoding(String contentEncoding) {
+    this.contentEncoding = contentEncoding;
+  }
+
+  public void setContentType(String contentType) {
+    this.contentType = contentType;
+  }
+
+  public void setGzip(boolean gzip) {
+    this.gzip = gzip;
+  }
+}
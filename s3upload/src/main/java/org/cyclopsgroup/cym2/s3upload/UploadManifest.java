@@ -0,0 +1,133 @@
+package org.cyclopsgroup.cym2.s3upload;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Local cache of ETags computed for uploaded files, so that unchanged files don't have to be hashed
+ * again in later runs. An entry is valid as long as size and last modified time of the file stay
+ * the same. Headers of uploaded objects are cached too, so that they don't have to be read again
+ * as long as the object keeps its ETag.
+ */
+class UploadManifest {
+  private static final String KEY_SETTINGS = "#settings";
+
+  private static final String OBJECT_PREFIX = "object:";
+
+  private final Map<String, String> entries = new ConcurrentHashMap<String, String>();
+
+  private final File file;
+
+  private final String settings;
+
+  /**
+   * @param file File where manifest is persisted
+   * @param settings Description of settings that affect ETags, the existing manifest is discarded
+   *        when it was written with different settings
+   */
+  UploadManifest(File file, String settings) {
+    this.file = file;
+    this.settings = settings;
+  }
+
+  /**
+   * @param source Local file
+   * @param variant Variant of the content, such as compression, or empty string for raw content
+   * @return Cached ETag of given file or NULL if file is changed or not cached
+   */
+  String getETag(File source, String variant) {
+    String entry = entries.get(keyOf(source, variant));
+    if (entry == null) {
+      return null;
+    }
+    String[] parts = entry.split(" ", 3);
+    if (parts.length != 3 || Long.parseLong(parts[0]) != source.length()
+        || Long.parseLong(parts[1]) != source.lastModified()) {
+      return null;
+    }
+    return parts[2];
+  }
+
+  /**
+   * @param key Key of object
+   * @param eTag ETag of stored object
+   * @return Headers the object was stored with, or NULL if they're unknown or the object has a
+   *         different ETag since
+   */
+  String getHeaders(String key, String eTag) {
+    String entry = entries.get(OBJECT_PREFIX + key);
+    if (entry == null || !entry.startsWith(eTag + " ")) {
+      return null;
+    }
+    return entry.substring(eTag.length() + 1);
+  }
+
+  private static String keyOf(File source, String variant) {
+    return variant.isEmpty() ? source.getAbsolutePath() : source.getAbsolutePath() + "#" + variant;
+  }
+
+  /**
+   * Load manifest from file if it exists
+   *
+   * @throws IOException If file can't be read
+   */
+  void load() throws IOException {
+    if (!file.isFile()) {
+      return;
+    }
+    Properties props = new Properties();
+    try (InputStream in = new FileInputStream(file)) {
+      props.load(in);
+    }
+    if (!settings.equals(props.getProperty(KEY_SETTINGS))) {
+      return;
+    }
+    props.remove(KEY_SETTINGS);
+    for (String key : props.stringPropertyNames()) {
+      entries.put(key, props.getProperty(key));
+    }
+  }
+
+  /**
+   * @param source Local file
+   * @param variant Variant of the content, such as compression, or empty string for raw content
+   * @param eTag ETag of given file
+   */
+  void putETag(File source, String variant, String eTag) {
+    entries.put(keyOf(source, variant),
+        source.length() + " " + source.lastModified() + " " + eTag);
+  }
+
+  /**
+   * @param key Key of object
+   * @param eTag ETag of stored object
+   * @param headers Headers the object is stored with
+   */
+  void putHeaders(String key, String eTag, String headers) {
+    entries.put(OBJECT_PREFIX + key, eTag + " " + headers);
+  }
+
+  /**
+   * Write manifest into file
+   *
+   * @throws IOException If file can't be written
+   */
+  void save() throws IOException {
+    Properties props = new Properties();
+    props.putAll(entries);
+    props.setProperty(KEY_SETTINGS, settings);
+    if (file.getParentFile() != null && !file.getParentFile().isDirectory()) {
+      file.getParentFile().mkdirs();
+    }
+    try (OutputStream out = new FileOutputStream(file)) {
+      props.store(out, "s3upload manifest");
+    }
+  }
+}
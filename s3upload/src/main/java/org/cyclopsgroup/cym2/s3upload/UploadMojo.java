@@ -1,7 +1,21 @@
 package org.cyclopsgroup.cym2.s3upload;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import org.apache.commons.lang.StringUtils;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
@@ -11,22 +25,22 @@ import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.settings.Server;
 import org.apache.maven.settings.Settings;
-import org.apache.maven.shared.model.fileset.FileSet;
-import org.apache.maven.shared.model.fileset.util.FileSetManager;
+import org.cyclopsgroup.cym2.s3upload.FileSetScanner.ScannedFile;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.AWSCredentialsProviderChain;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.auth.EnvironmentVariableCredentialsProvider;
 import com.amazonaws.auth.InstanceProfileCredentialsProvider;
-import com.amazonaws.regions.Regions;
-import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.client.builder.AwsClientBuilder.EndpointConfiguration;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 
 @Mojo(name = "upload")
 public class UploadMojo extends AbstractMojo {
+  private static final long MB = 1024L * 1024L;
+
   @Parameter
-  private List<FileSet> fileSets;
+  private List<UploadFileSet> fileSets;
 
   @Parameter
   private String bucket;
@@ -46,6 +60,98 @@ public class UploadMojo extends AbstractMojo {
   @Parameter
   private boolean instanceProfileUsed;
 
+  /**
+   * Number of files or parts uploaded concurrently
+   */
+  @Parameter(defaultValue = "8")
+  private int threads;
+
+  /**
+   * Size in MB of each part of a multipart upload
+   */
+  @Parameter(defaultValue = "8")
+  private int partSizeMb;
+
+  /**
+   * Files larger than this size in MB are uploaded with multipart upload
+   */
+  @Parameter(defaultValue = "16")
+  private int multipartThresholdMb;
+
+  /**
+   * Maximum number of files waiting to be uploaded before scanning is paused
+   */
+  @Parameter(defaultValue = "64")
+  private int maxPendingUploads;
+
+  /**
+   * Number of threads that walk directories of file sets
+   */
+  @Parameter(defaultValue = "4")
+  private int scanThreads;
+
+  /**
+   * Seconds between two progress log messages, 0 or less to turn progress logging off
+   */
+  @Parameter(defaultValue = "10")
+  private int progressIntervalSeconds;
+
+  /**
+   * If true, only files that don't exist in bucket or differ in size or ETag are uploaded
+   */
+  @Parameter(defaultValue = "false")
+  private boolean sync;
+
+  /**
+   * File that caches ETags of local files between runs in sync mode
+   */
+  @Parameter(defaultValue = "${project.build.directory}/s3upload-manifest.properties")
+  private File manifestFile;
+
+  /**
+   * If true, objects under output directory of file sets that don't have a local file are deleted.
+   * Build fails if directory of any file set doesn't exist.
+   */
+  @Parameter(defaultValue = "false")
+  private boolean mirror;
+
+  /**
+   * If true, objects that would be deleted in mirror mode are only reported
+   */
+  @Parameter(defaultValue = "false")
+  private boolean mirrorDryRun;
+
+  /**
+   * AWS region of bucket, or signing region of custom endpoint
+   */
+  @Parameter(defaultValue = "us-east-1")
+  private String region;
+
+  /**
+   * Custom endpoint URL of an S3 compatible store
+   */
+  @Parameter
+  private String endpoint;
+
+  /**
+   * If true, bucket name is put in URL path instead of host name, which some S3 compatible stores
+   * require
+   */
+  @Parameter(defaultValue = "false")
+  private boolean pathStyleAccess;
+
+  /**
+   * If set, objects are stored in this local directory instead of S3, for testing
+   */
+  @Parameter
+  private File localStoreDirectory;
+
+  /**
+   * Milliseconds each request to local store is delayed to simulate network latency
+   */
+  @Parameter(defaultValue = "0")
+  private long localStoreLatencyMillis;
+
   private class SelfDefinedCredentials implements AWSCredentialsProvider {
     @Override
     public AWSCredentials getCredentials() {
@@ -68,28 +174,156 @@ public class UploadMojo extends AbstractMojo {
     public void refresh() {}
   }
 
+  private void deleteOrphans(UploadEngine engine, ObjectStore store,
+      Collection<Map<String, StoredObject>> remoteObjects, Set<String> localKeys)
+      throws InterruptedException {
+    Set<String> orphans = new TreeSet<String>();
+    for (Map<String, StoredObject> objects : remoteObjects) {
+      for (String key : objects.keySet()) {
+        if (!localKeys.contains(key)) {
+          orphans.add(key);
+        }
+      }
+    }
+    if (mirrorDryRun) {
+      for (String key : orphans) {
+        getLog().info("Dry run, would delete " + store.uriOf(key));
+      }
+      getLog().info("Dry run, " + orphans.size() + " objects would be deleted");
+      return;
+    }
+    getLog().info("Deleting " + orphans.size() + " objects that don't exist locally");
+    engine.delete(new ArrayList<String>(orphans));
+  }
+
+  private ObjectStore createObjectStore() {
+    if (localStoreDirectory != null) {
+      getLog().info("Objects are stored in local directory " + localStoreDirectory);
+      return new LocalObjectStore(new File(localStoreDirectory, bucket), localStoreLatencyMillis);
+    }
+    AWSCredentialsProvider creds =
+        new AWSCredentialsProviderChain(new EnvironmentVariableCredentialsProvider(),
+            new InstanceProfileCredentialsProvider(true), new SelfDefinedCredentials());
+    AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard().withCredentials(creds)
+        .withPathStyleAccessEnabled(pathStyleAccess);
+    if (StringUtils.isNotBlank(endpoint)) {
+      builder.withEndpointConfiguration(new EndpointConfiguration(endpoint, region));
+    } else {
+      builder.withRegion(region);
+    }
+    return new S3ObjectStore(builder.build(), bucket, threads, partSizeMb * MB,
+        multipartThresholdMb * MB);
+  }
+
+  /**
+   * @return Remote objects of a listing that runs in background, once it finishes
+   */
+  private static Map<String, StoredObject> listed(Future<Map<String, StoredObject>> listing)
+      throws IOException, InterruptedException {
+    try {
+      return listing.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException("Can't list objects: " + e.getCause(), e.getCause());
+    }
+  }
+
   /**
    * @inheritDoc
    */
   @Override
   public void execute() throws MojoExecutionException, MojoFailureException {
-    AWSCredentialsProvider creds =
-        new AWSCredentialsProviderChain(new EnvironmentVariableCredentialsProvider(),
-            new InstanceProfileCredentialsProvider(true), new SelfDefinedCredentials());
-    AmazonS3 s3 = AmazonS3ClientBuilder.standard().withRegion(Regions.US_EAST_1)
-        .withCredentials(creds).build();
-    FileSetManager fileSetManager = new FileSetManager(getLog());
-    for (FileSet fs : fileSets) {
-      String destPath = StringUtils.trimToEmpty(fs.getOutputDirectory());
-      if (StringUtils.isNotBlank(destPath) && !destPath.endsWith("/")) {
-        destPath += "/";
+    for (UploadFileSet fs : fileSets) {
+      if (new File(fs.getDirectory()).isDirectory()) {
+        continue;
       }
-      for (String file : fileSetManager.getIncludedFiles(fs)) {
-        File source = new File(fs.getDirectory(), file);
-
-        getLog().info("Uploading file " + source + " to s3://" + bucket + "/" + destPath + file);
-        s3.putObject(bucket, destPath + file, source);
+      if (mirror) {
+        // Otherwise every object under its output directory would be deleted as an orphan
+        throw new MojoFailureException("Directory " + fs.getDirectory()
+            + " of file set doesn't exist, it can't be mirrored");
+      }
+      getLog().warn("Skipping file set since directory " + fs.getDirectory() + " doesn't exist");
+    }
+    UploadManifest manifest = new UploadManifest(manifestFile,
+        "partSize=" + partSizeMb + ",multipartThreshold=" + multipartThresholdMb);
+    Map<UploadFileSet, String> destPaths = new HashMap<UploadFileSet, String>();
+    Map<String, Future<Map<String, StoredObject>>> listings =
+        new HashMap<String, Future<Map<String, StoredObject>>>();
+    Set<String> localKeys = new HashSet<String>();
+    ScheduledExecutorService progressLogger = Executors.newSingleThreadScheduledExecutor();
+    ExecutorService lister = Executors.newFixedThreadPool(threads);
+    try (ObjectStore store = createObjectStore();
+        UploadEngine engine =
+            new UploadEngine(store, threads, maxPendingUploads, manifest, getLog());
+        FileSetScanner scanner = new FileSetScanner(scanThreads, maxPendingUploads)) {
+      // Scanning and listing of remote objects run in background while files are uploaded
+      scanner.start(fileSets);
+      if (progressIntervalSeconds > 0) {
+        progressLogger.scheduleAtFixedRate(() -> getLog().info(
+            "Found " + scanner.getScannedFiles() + " files. " + engine.summary()),
+            progressIntervalSeconds, progressIntervalSeconds, TimeUnit.SECONDS);
+      }
+      if (sync) {
+        manifest.load();
+      }
+      for (UploadFileSet fs : fileSets) {
+        String destPath = StringUtils.trimToEmpty(fs.getOutputDirectory());
+        if (StringUtils.isNotBlank(destPath) && !destPath.endsWith("/")) {
+          destPath += "/";
+        }
+        destPaths.put(fs, destPath);
+        if ((sync || mirror) && !listings.containsKey(destPath)) {
+          final String prefix = destPath;
+          listings.put(destPath, lister.submit(() -> {
+            getLog().info("Listing objects in " + store.uriOf(prefix));
+            Map<String, StoredObject> remote = store.list(prefix);
+            getLog().info("Found " + remote.size() + " objects in " + store.uriOf(prefix));
+            return remote;
+          }));
+        }
+      }
+      for (ScannedFile file = scanner.take(); file != null; file = scanner.take()) {
+        String destPath = destPaths.get(file.getFileSet());
+        String key = destPath + file.getPath();
+        Future<Map<String, StoredObject>> listing = listings.get(destPath);
+        StoredObject remote = null;
+        if (sync) {
+          // Only waits for listing of the prefix this file goes to
+          remote = listed(listing).get(key);
+        } else if (mirror && listing.isDone()) {
+          // Fails early instead of after all files are uploaded
+          listed(listing);
+        }
+        if (mirror) {
+          localKeys.add(key);
+        }
+        engine.upload(key, file.getFile(), file.getFileSet(), remote);
+      }
+      if (mirror) {
+        List<Map<String, StoredObject>> remoteObjects =
+            new ArrayList<Map<String, StoredObject>>(listings.size());
+        for (Future<Map<String, StoredObject>> listing : listings.values()) {
+          remoteObjects.add(listed(listing));
+        }
+        deleteOrphans(engine, store, remoteObjects, localKeys);
+      }
+      engine.awaitCompletion();
+      getLog().info(engine.summary());
+      if (sync) {
+        manifest.save();
       }
+    } catch (IOException e) {
+      throw new MojoExecutionException("Can't upload files: " + e.getMessage(), e);
+    } catch (InterruptedException e) {
+      throw new MojoExecutionException("Uploading is interrupted: " + e.getMessage(), e);
+    } finally {
+      progressLogger.shutdownNow();
+      lister.shutdownNow();
     }
   }
 }
@@ -0,0 +1,160 @@
+package org.cyclopsgroup.cym2.s3upload;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.monitor.logging.DefaultLog;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.shared.model.fileset.util.FileSetManager;
+import org.codehaus.plexus.logging.Logger;
+import org.codehaus.plexus.logging.console.ConsoleLogger;
+import org.cyclopsgroup.cym2.s3upload.FileSetScanner.ScannedFile;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures throughput of scanning, hashing and uploading a synthetic file tree to a
+ * {@link LocalObjectStore} with simulated latency. Operations per second are files per second,
+ * the bytes counter gives bytes per second. Run it with
+ *
+ * <pre>
+ * mvn -pl s3upload test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java \
+ *   -Dexec.args="-cp %classpath org.openjdk.jmh.Main UploadPipelineBenchmark"
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@State(Scope.Benchmark)
+public class UploadPipelineBenchmark {
+  /**
+   * Number of bytes processed, reported as a rate
+   */
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class Bytes {
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      bytes = 0;
+    }
+  }
+
+  /**
+   * Settings of the upload pipeline
+   */
+  @State(Scope.Benchmark)
+  public static class Pipeline {
+    @Param({"0", "10"})
+    public long latencyMillis;
+
+    @Param({"1", "8", "32"})
+    public int threads;
+  }
+
+  private static final int DIRECTORY_COUNT = 10;
+
+  private static final int FILE_COUNT = 500;
+
+  private static final int FILE_SIZE = 16 * 1024;
+
+  private static final int SCAN_THREADS = 4;
+
+  private final Log log = new DefaultLog(new ConsoleLogger(Logger.LEVEL_WARN, "benchmark"));
+
+  private File baseDirectory;
+
+  private UploadFileSet fileSet;
+
+  private UploadManifest manifest;
+
+  @Benchmark
+  @OperationsPerInvocation(FILE_COUNT)
+  public void hash(Bytes counter, Blackhole blackhole) throws IOException {
+    for (String file : new FileSetManager(log).getIncludedFiles(fileSet)) {
+      File source = new File(fileSet.getDirectory(), file);
+      blackhole.consume(ETags.of(source, 0));
+      counter.bytes += source.length();
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(FILE_COUNT)
+  public void parallelScan(Blackhole blackhole) throws IOException, InterruptedException {
+    try (FileSetScanner scanner = new FileSetScanner(SCAN_THREADS, FILE_COUNT)) {
+      scanner.start(Collections.singletonList(fileSet));
+      for (ScannedFile file = scanner.take(); file != null; file = scanner.take()) {
+        blackhole.consume(file);
+      }
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(FILE_COUNT)
+  public String[] scan() {
+    return new FileSetManager(log).getIncludedFiles(fileSet);
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    baseDirectory = Files.createTempDirectory("s3upload-benchmark").toFile();
+    File sourceDirectory = new File(baseDirectory, "source");
+    Random random = new Random(0);
+    byte[] content = new byte[FILE_SIZE];
+    for (int i = 0; i < FILE_COUNT; i++) {
+      random.nextBytes(content);
+      FileUtils.writeByteArrayToFile(
+          new File(sourceDirectory, "dir" + (i % DIRECTORY_COUNT) + "/file" + i + ".bin"),
+          content);
+    }
+    fileSet = new UploadFileSet();
+    fileSet.setDirectory(sourceDirectory.getAbsolutePath());
+    fileSet.setOutputDirectory("site/");
+    manifest = new UploadManifest(new File(baseDirectory, "manifest.properties"), "");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(baseDirectory);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(FILE_COUNT)
+  public void upload(Pipeline pipeline, Bytes counter) throws IOException, InterruptedException {
+    File storeDirectory = new File(baseDirectory, "store");
+    int pendingUploads = pipeline.threads * 4;
+    try (ObjectStore store = new LocalObjectStore(storeDirectory, pipeline.latencyMillis);
+        UploadEngine engine =
+            new UploadEngine(store, pipeline.threads, pendingUploads, manifest, log);
+        FileSetScanner scanner = new FileSetScanner(SCAN_THREADS, pendingUploads)) {
+      scanner.start(Collections.singletonList(fileSet));
+      for (ScannedFile file = scanner.take(); file != null; file = scanner.take()) {
+        engine.upload(fileSet.getOutputDirectory() + file.getPath(), file.getFile(), fileSet,
+            null);
+        counter.bytes += file.getFile().length();
+      }
+      engine.awaitCompletion();
+    }
+  }
+}
@@ -0,0 +1,418 @@
+package org.cyclopsgroup.cym2.uberjar;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.cyclopsgroup.cym2.uberjar.boot.ArchiveReader;
+
+/**
+ * Writes a zip archive whose entries are either stored or deflated ahead of time. Unlike
+ * {@link java.util.jar.JarOutputStream}, size and CRC of a stored entry are computed by reading
+ * its file once before it's copied, and deflated entries can be compressed by a pool of threads
+ * while they're still written in the order they're added. Archives with more than 65535 entries
+ * or bigger than 4GB get ZIP64 end records.
+ */
+final class ArchiveWriter implements Closeable {
+  /**
+   * An entry whose data is ready to be written as it is. Data is released once it's written, so
+   * that only the fields of central directory are kept until the archive is closed.
+   */
+  static final class Entry {
+    private final long compressedSize;
+
+    private final long crc;
+
+    private byte[] data;
+
+    private final long dosTime;
+
+    private final int method;
+
+    private final String name;
+
+    private long offset;
+
+    private final long size;
+
+    private Entry(String name, long dosTime, int method, long crc, long size, long compressedSize,
+        byte[] data) {
+      this.name = name;
+      this.dosTime = dosTime;
+      this.method = method;
+      this.crc = crc;
+      this.size = size;
+      this.compressedSize = compressedSize;
+      this.data = data;
+    }
+  }
+
+  private static final long MAX_32 = 0xFFFFFFFFL;
+
+  private static final int MAX_16 = 0xFFFF;
+
+  private String comment = "";
+
+  private final List<Entry> entries = new ArrayList<Entry>();
+
+  private final ExecutorService executor;
+
+  private final int level;
+
+  private final Set<String> names = new HashSet<String>();
+
+  private final CountingOutputStream output;
+
+  private final Deque<Future<Entry>> pending = new ArrayDeque<Future<Entry>>();
+
+  private final int threads;
+
+  /**
+   * @param file Archive file to write
+   * @param level Deflater level of deflated entries
+   * @param threads Number of threads that deflate entries, 1 to deflate them in calling thread
+   * @throws IOException If file can't be opened
+   */
+  ArchiveWriter(File file, int level, int threads) throws IOException {
+    this.output = new CountingOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file), IOUtils.DEFAULT_BUFFER_SIZE * 16));
+    this.level = level;
+    this.threads = threads;
+    this.executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+  }
+
+  /**
+   * Add an entry deflated from content, which may be compressed by another thread
+   *
+   * @param name Name of entry
+   * @param time Modification time of entry
+   * @param content Content of entry, which is read by the thread that compresses it
+   * @throws IOException If a previous entry can't be written
+   */
+  void addDeflated(String name, long time, Callable<byte[]> content) throws IOException {
+    claim(name);
+    if (executor == null) {
+      try {
+        write(deflate(name, time, content.call(), level));
+      } catch (IOException | RuntimeException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new IOException("Can't read content of " + name + ": " + e.getMessage(), e);
+      }
+      return;
+    }
+    if (pending.size() >= threads * 2) {
+      write(take());
+    }
+    pending.add(executor.submit(() -> deflate(name, time, content.call(), level)));
+  }
+
+  /**
+   * Add an entry copied from another archive as it is, without inflating it
+   *
+   * @param entry Entry of another archive
+   * @param data Data of entry in the other archive
+   * @throws IOException If entry can't be written
+   */
+  void addRaw(ArchiveReader.Entry entry, ByteBuffer data) throws IOException {
+    claim(entry.getName());
+    drain();
+    writeHeader(new Entry(entry.getName(), entry.getDosTime(), entry.getMethod(), entry.getCrc(),
+        entry.getSize(), entry.getCompressedSize(), null));
+    ByteBuffer source = data.duplicate();
+    byte[] buffer = new byte[Math.min(source.remaining(), IOUtils.DEFAULT_BUFFER_SIZE * 16)];
+    while (source.hasRemaining()) {
+      int length = Math.min(source.remaining(), buffer.length);
+      source.get(buffer, 0, length);
+      output.write(buffer, 0, length);
+    }
+  }
+
+  /**
+   * Add a stored entry whose CRC is computed in a pass over the file before it's copied
+   *
+   * @param name Name of entry
+   * @param time Modification time of entry
+   * @param file File to store
+   * @throws IOException If file can't be read or entry can't be written
+   */
+  void addStored(String name, long time, File file) throws IOException {
+    claim(name);
+    drain();
+    long size = file.length();
+    if (size > MAX_32) {
+      throw new ZipException(file + " is too large to be stored in an archive");
+    }
+    CRC32 crc = new CRC32();
+    byte[] buffer = new byte[IOUtils.DEFAULT_BUFFER_SIZE * 16];
+    try (InputStream in = Files.newInputStream(file.toPath())) {
+      for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+        crc.update(buffer, 0, read);
+      }
+    }
+    writeHeader(new Entry(name, dosTime(time), ZipEntry.STORED, crc.getValue(), size, size, null));
+    try (InputStream in = Files.newInputStream(file.toPath())) {
+      if (IOUtils.copyLarge(in, output, buffer) != size) {
+        throw new IOException(file + " changed while it's added into archive");
+      }
+    }
+  }
+
+  /**
+   * Add a stored entry
+   *
+   * @param name Name of entry
+   * @param time Modification time of entry
+   * @param content Content of entry
+   * @throws IOException If entry can't be written
+   */
+  void addStored(String name, long time, byte[] content) throws IOException {
+    claim(name);
+    drain();
+    CRC32 crc = new CRC32();
+    crc.update(content);
+    write(new Entry(name, dosTime(time), ZipEntry.STORED, crc.getValue(), content.length,
+        content.length, content));
+  }
+
+  private void claim(String name) throws ZipException {
+    if (!names.add(name)) {
+      throw new ZipException("Duplicate entry " + name);
+    }
+  }
+
+  /**
+   * Write all pending entries, central directory and end records, and close the file
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      drain();
+      long directoryOffset = output.getByteCount();
+      for (Entry entry : entries) {
+        writeCentralHeader(entry);
+      }
+      long directorySize = output.getByteCount() - directoryOffset;
+      writeEnd(directoryOffset, directorySize);
+      output.flush();
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+      output.close();
+    }
+  }
+
+  /**
+   * @param name Name of entry
+   * @param time Modification time of entry
+   * @param content Content of entry
+   * @param level Deflater level
+   * @return Deflated entry
+   */
+  private static Entry deflate(String name, long time, byte[] content, int level) {
+    CRC32 crc = new CRC32();
+    crc.update(content);
+    Deflater deflater = new Deflater(level, true);
+    try {
+      deflater.setInput(content);
+      deflater.finish();
+      ByteArrayOutputStream data = new ByteArrayOutputStream(content.length / 2 + 64);
+      byte[] buffer = new byte[IOUtils.DEFAULT_BUFFER_SIZE];
+      while (!deflater.finished()) {
+        data.write(buffer, 0, deflater.deflate(buffer));
+      }
+      return new Entry(name, dosTime(time), ZipEntry.DEFLATED, crc.getValue(), content.length,
+          data.size(), data.toByteArray());
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static long dosTime(long time) {
+    Calendar calendar = Calendar.getInstance();
+    calendar.setTimeInMillis(time);
+    int year = calendar.get(Calendar.YEAR);
+    if (year < 1980) {
+      return (1 << 21) | (1 << 16);
+    }
+    return (year - 1980L) << 25 | (calendar.get(Calendar.MONTH) + 1L) << 21
+        | (long) calendar.get(Calendar.DAY_OF_MONTH) << 16
+        | (long) calendar.get(Calendar.HOUR_OF_DAY) << 11
+        | (long) calendar.get(Calendar.MINUTE) << 5 | calendar.get(Calendar.SECOND) >> 1;
+  }
+
+  private void drain() throws IOException {
+    while (!pending.isEmpty()) {
+      write(take());
+    }
+  }
+
+  /**
+   * @return Offsets of local headers of all entries written so far, after pending ones are
+   *         written
+   * @throws IOException If pending entries can't be written
+   */
+  Map<String, Long> getOffsets() throws IOException {
+    drain();
+    Map<String, Long> offsets = new LinkedHashMap<String, Long>();
+    for (Entry entry : entries) {
+      offsets.put(entry.name, entry.offset);
+    }
+    return offsets;
+  }
+
+  /**
+   * @param comment Comment of archive, which is written at the end
+   */
+  void setComment(String comment) {
+    if (comment.getBytes(StandardCharsets.UTF_8).length > MAX_16) {
+      throw new IllegalArgumentException("Comment of archive is too long");
+    }
+    this.comment = comment;
+  }
+
+  private Entry take() throws IOException {
+    try {
+      return pending.removeFirst().get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while deflating entries", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Can't deflate entry: " + e.getCause(), e.getCause());
+    }
+  }
+
+  private void write(Entry entry) throws IOException {
+    writeHeader(entry);
+    output.write(entry.data);
+    entry.data = null;
+  }
+
+  private void writeCentralHeader(Entry entry) throws IOException {
+    byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+    boolean zip64 = entry.offset >= MAX_32;
+    writeInt(0x02014b50);
+    writeShort(zip64 ? 45 : 20);
+    writeShort(zip64 ? 45 : versionNeeded(entry));
+    writeShort(0x800);
+    writeShort(entry.method);
+    writeInt(entry.dosTime);
+    writeInt(entry.crc);
+    writeInt(entry.compressedSize);
+    writeInt(entry.size);
+    writeShort(name.length);
+    writeShort(zip64 ? 12 : 0);
+    writeShort(0);
+    writeShort(0);
+    writeShort(0);
+    writeInt(0);
+    writeInt(zip64 ? MAX_32 : entry.offset);
+    output.write(name);
+    if (zip64) {
+      writeShort(0x0001);
+      writeShort(8);
+      writeLong(entry.offset);
+    }
+  }
+
+  private void writeEnd(long directoryOffset, long directorySize) throws IOException {
+    boolean zip64 =
+        entries.size() >= MAX_16 || directoryOffset >= MAX_32 || directorySize >= MAX_32;
+    if (zip64) {
+      long recordOffset = output.getByteCount();
+      writeInt(0x06064b50);
+      writeLong(44);
+      writeShort(45);
+      writeShort(45);
+      writeInt(0);
+      writeInt(0);
+      writeLong(entries.size());
+      writeLong(entries.size());
+      writeLong(directorySize);
+      writeLong(directoryOffset);
+      writeInt(0x07064b50);
+      writeInt(0);
+      writeLong(recordOffset);
+      writeInt(1);
+    }
+    writeInt(0x06054b50);
+    writeShort(0);
+    writeShort(0);
+    writeShort(Math.min(entries.size(), MAX_16));
+    writeShort(Math.min(entries.size(), MAX_16));
+    writeInt(Math.min(directorySize, MAX_32));
+    writeInt(Math.min(directoryOffset, MAX_32));
+    byte[] commentBytes = comment.getBytes(StandardCharsets.UTF_8);
+    writeShort(commentBytes.length);
+    output.write(commentBytes);
+  }
+
+  private void writeHeader(Entry entry) throws IOException {
+    if (entry.compressedSize > MAX_32 || entry.size > MAX_32) {
+      throw new ZipException("Entry " + entry.name + " is too large");
+    }
+    byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+    entry.offset = output.getByteCount();
+    entries.add(entry);
+    writeInt(0x04034b50);
+    writeShort(versionNeeded(entry));
+    writeShort(0x800);
+    writeShort(entry.method);
+    writeInt(entry.dosTime);
+    writeInt(entry.crc);
+    writeInt(entry.compressedSize);
+    writeInt(entry.size);
+    writeShort(name.length);
+    writeShort(0);
+    output.write(name);
+  }
+
+  private void writeInt(long value) throws IOException {
+    writeShort((int) (value & MAX_16));
+    writeShort((int) ((value >>> 16) & MAX_16));
+  }
+
+  private void writeLong(long value) throws IOException {
+    writeInt(value & MAX_32);
+    writeInt(value >>> 32);
+  }
+
+  private void writeShort(int value) throws IOException {
+    output.write(value & 0xFF);
+    output.write((value >>> 8) & 0xFF);
+  }
+
+  private static int versionNeeded(Entry entry) {
+    return entry.method == ZipEntry.STORED ? 10 : 20;
+  }
+}
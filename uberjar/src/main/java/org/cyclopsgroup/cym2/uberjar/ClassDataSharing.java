@@ -0,0 +1,131 @@
+package org.cyclopsgroup.cym2.uberjar;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Builds an application class data sharing archive of a flat uberjar. Main class runs once with
+ * training arguments to dump the list of classes it loads, then the JVM dumps those classes into
+ * an archive, which later JVMs map instead of loading and verifying the classes again. Uberjar is
+ * the only classpath element, and main class runs without the flat launcher, so that all classes
+ * are loaded by application class loader, whose classes are the ones that can be archived. A
+ * launch script next to uberjar starts main class the same way with the archive. Archive only
+ * matches uberjar at the path where it's built.
+ */
+class ClassDataSharing {
+  private final String java;
+
+  private final Log log;
+
+  private final long timeoutSeconds;
+
+  /**
+   * @param java Java executable, which must be the one that runs uberjar later
+   * @param timeoutSeconds Seconds a training run may take before it fails
+   * @param log Maven log
+   */
+  ClassDataSharing(String java, long timeoutSeconds, Log log) {
+    this.java = java;
+    this.timeoutSeconds = timeoutSeconds;
+    this.log = log;
+  }
+
+  /**
+   * Build archive, class list and launch script next to uberjar
+   *
+   * @param uberjar Flat uberjar
+   * @param mainClass Main class of uberjar
+   * @param trainingArguments Arguments of main class in training run
+   * @return Launch script
+   * @throws IOException If files can't be written
+   * @throws MojoFailureException If training run or dump fails
+   */
+  File build(File uberjar, String mainClass, List<String> trainingArguments)
+      throws IOException, MojoFailureException {
+    File directory = uberjar.getAbsoluteFile().getParentFile();
+    String baseName = FilenameUtils.getBaseName(uberjar.getName());
+    File classList = new File(directory, baseName + ".classlist");
+    File archive = new File(directory, baseName + ".jsa");
+    File script = new File(directory, baseName + ".sh");
+    FileUtils.deleteQuietly(archive);
+
+    log.info("Training " + mainClass + " with arguments " + trainingArguments);
+    List<String> training = new ArrayList<String>(Arrays.asList(java, "-Xshare:off",
+        "-XX:DumpLoadedClassList=" + classList, "-cp", uberjar.getAbsolutePath(), mainClass));
+    training.addAll(trainingArguments);
+    run(training, directory);
+    int classes = 0;
+    for (String line : FileUtils.readLines(classList, StandardCharsets.UTF_8)) {
+      if (!line.isEmpty() && !line.startsWith("#") && !line.startsWith("@")) {
+        classes++;
+      }
+    }
+
+    log.info("Dumping " + classes + " loaded classes into " + archive);
+    run(Arrays.asList(java, "-Xshare:dump", "-XX:SharedClassListFile=" + classList,
+        "-XX:SharedArchiveFile=" + archive, "-cp", uberjar.getAbsolutePath()), directory);
+
+    // Archive records path of uberjar, JVM ignores archive if uberjar is anywhere else
+    FileUtils.writeStringToFile(script, "#!/bin/sh\n"
+        + "# Generated by uberjar-maven-plugin, the archive only works with the JVM that built it\n"
+        + "DIR=\"$(cd \"$(dirname \"$0\")\" && pwd)\"\n"
+        + "exec \"${JAVA_HOME:+$JAVA_HOME/bin/}java\" -Xshare:auto"
+        + " -XX:SharedArchiveFile=\"$DIR\"/" + quote(archive.getName()) + " $JAVA_OPTS"
+        + " -cp \"$DIR\"/" + quote(uberjar.getName()) + " " + quote(mainClass) + " \"$@\"\n",
+        StandardCharsets.UTF_8);
+    script.setExecutable(true);
+    log.info("Launch script with class data sharing archive is " + script);
+    return script;
+  }
+
+  /**
+   * @param specificationVersion Java specification version, such as 1.8 or 11
+   * @return True if the JVM archives classes of application class loader without extra flags,
+   *         which is Java 11 or later, since Java 10 also requires -XX:+UseAppCDS
+   */
+  static boolean isSupported(String specificationVersion) {
+    if (specificationVersion == null || specificationVersion.startsWith("1.")) {
+      return false;
+    }
+    try {
+      return Integer.parseInt(StringUtils.substringBefore(specificationVersion, ".")) >= 11;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  private static String quote(String value) {
+    return "'" + value.replace("'", "'\\''") + "'";
+  }
+
+  private void run(List<String> command, File directory)
+      throws IOException, MojoFailureException {
+    log.debug("Running " + StringUtils.join(command, ' '));
+    Process process = new ProcessBuilder(command).directory(directory).inheritIO().start();
+    try {
+      if (!process.waitFor(timeoutSeconds, TimeUnit.SECONDS)) {
+        process.destroyForcibly();
+        throw new MojoFailureException(
+            "Command didn't finish in " + timeoutSeconds + " seconds: " + command);
+      }
+    } catch (InterruptedException e) {
+      process.destroyForcibly();
+      Thread.currentThread().interrupt();
+      throw new MojoFailureException("Interrupted while running " + command);
+    }
+    if (process.exitValue() != 0) {
+      throw new MojoFailureException(
+          "Command exited with " + process.exitValue() + ": " + command);
+    }
+  }
+}
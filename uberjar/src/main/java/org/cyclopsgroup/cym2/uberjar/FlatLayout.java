@@ -0,0 +1,184 @@
+package org.cyclopsgroup.cym2.uberjar;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import org.apache.commons.lang.StringUtils;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.logging.Log;
+import org.cyclopsgroup.cym2.uberjar.boot.ArchiveReader;
+
+/**
+ * Merges entries of jars into the top level of uberjar. Entries are copied as they're compressed
+ * in their jars. When more than one jar has a file of the same name with different content, the
+ * duplicate policy picks one or fails, and service provider files can be merged instead.
+ * Manifests, signatures and jar indexes of merged jars don't apply to uberjar and are dropped.
+ */
+class FlatLayout {
+  /**
+   * Policy of duplicate files
+   */
+  enum Duplicates {
+    /**
+     * Fail the build
+     */
+    FAIL,
+    /**
+     * Keep the one in the first jar of classpath
+     */
+    FIRST,
+    /**
+     * Keep the one in the last jar of classpath
+     */
+    LAST;
+  }
+
+  /**
+   * An entry of a jar picked to be in uberjar
+   */
+  private static final class Source {
+    private final ArchiveReader.Entry entry;
+
+    private final File jar;
+
+    private final ArchiveReader reader;
+
+    private Source(File jar, ArchiveReader reader, ArchiveReader.Entry entry) {
+      this.jar = jar;
+      this.reader = reader;
+      this.entry = entry;
+    }
+  }
+
+  private static final Pattern DROPPED = Pattern.compile(
+      "META-INF/(MANIFEST\\.MF|INDEX\\.LIST|[^/]+\\.(SF|DSA|RSA|EC))|(META-INF/versions/\\d+/)?"
+          + "module-info\\.class",
+      Pattern.CASE_INSENSITIVE);
+
+  private static final String SERVICES = "META-INF/services/";
+
+  private final Duplicates duplicates;
+
+  private final Log log;
+
+  private final boolean mergeServices;
+
+  private final Minimizer minimizer;
+
+  /**
+   * @param duplicates Policy of duplicate files
+   * @param mergeServices True to merge service provider files
+   * @param minimizer Minimizer that decides which entries are kept, or NULL to keep all
+   * @param log Maven log
+   */
+  FlatLayout(Duplicates duplicates, boolean mergeServices, Minimizer minimizer, Log log) {
+    this.duplicates = duplicates;
+    this.mergeServices = mergeServices;
+    this.minimizer = minimizer;
+    this.log = log;
+  }
+
+  /**
+   * @param jar Jar file
+   * @return Reader of mapped jar
+   * @throws IOException If jar can't be mapped or isn't a zip archive
+   */
+  static ArchiveReader map(File jar) throws IOException {
+    try (FileChannel channel = FileChannel.open(jar.toPath(), StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException(jar + " is too large to be merged");
+      }
+      ByteBuffer content = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return new ArchiveReader(content);
+    }
+  }
+
+  /**
+   * Write entries of jars into uberjar
+   *
+   * @param output Uberjar being written
+   * @param jars Jars in the order of classpath
+   * @throws IOException If a jar can't be read or uberjar can't be written
+   * @throws MojoFailureException If duplicate files aren't allowed but found
+   */
+  void write(ArchiveWriter output, List<File> jars) throws IOException, MojoFailureException {
+    Map<String, Source> sources = new LinkedHashMap<String, Source>();
+    Map<String, Set<String>> services = new LinkedHashMap<String, Set<String>>();
+    List<String> conflicts = new ArrayList<String>();
+    for (File jar : jars) {
+      ArchiveReader reader = map(jar);
+      for (ArchiveReader.Entry entry : reader.getEntries()) {
+        String name = entry.getName();
+        if (DROPPED.matcher(name).matches() || (minimizer != null && !minimizer.keeps(name))) {
+          continue;
+        }
+        if (mergeServices && name.startsWith(SERVICES) && !name.endsWith("/")
+            && name.length() > SERVICES.length()) {
+          Set<String> providers = services.get(name);
+          if (providers == null) {
+            providers = new LinkedHashSet<String>();
+            services.put(name, providers);
+          }
+          for (String line : new String(reader.read(entry), StandardCharsets.UTF_8).split("\n")) {
+            line = StringUtils.substringBefore(line, "#").trim();
+            if (!line.isEmpty()) {
+              providers.add(line);
+            }
+          }
+          continue;
+        }
+        Source existing = sources.get(name);
+        if (existing == null) {
+          sources.put(name, new Source(jar, reader, entry));
+          continue;
+        }
+        if (name.endsWith("/") || (existing.entry.getCrc() == entry.getCrc()
+            && existing.entry.getSize() == entry.getSize())) {
+          continue;
+        }
+        String conflict = name + " in " + existing.jar.getName() + " and " + jar.getName();
+        switch (duplicates) {
+          case FAIL:
+            conflicts.add(conflict);
+            break;
+          case LAST:
+            log.warn("Duplicate " + conflict + ", keeping the last one");
+            sources.put(name, new Source(jar, reader, entry));
+            break;
+          default:
+            log.warn("Duplicate " + conflict + ", keeping the first one");
+            break;
+        }
+      }
+    }
+    if (!conflicts.isEmpty()) {
+      for (String conflict : conflicts) {
+        log.error("Duplicate " + conflict);
+      }
+      throw new MojoFailureException(conflicts.size() + " files have different content in more "
+          + "than one jar, see errors above");
+    }
+
+    for (Source source : sources.values()) {
+      output.addRaw(source.entry, source.reader.getData(source.entry));
+    }
+    long now = System.currentTimeMillis();
+    for (Map.Entry<String, Set<String>> service : services.entrySet()) {
+      byte[] content = (StringUtils.join(service.getValue(), '\n') + "\n")
+          .getBytes(StandardCharsets.UTF_8);
+      output.addDeflated(service.getKey(), now, () -> content);
+    }
+    log.info("Merged " + sources.size() + " entries and " + services.size()
+        + " service provider files from " + jars.size() + " jars");
+  }
+}
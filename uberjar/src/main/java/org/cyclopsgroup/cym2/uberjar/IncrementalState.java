@@ -0,0 +1,204 @@
+package org.cyclopsgroup.cym2.uberjar;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.ZipException;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.cyclopsgroup.cym2.uberjar.boot.ArchiveReader;
+
+/**
+ * Sources of entries in the last uberjar, and the last uberjar itself, so that an entry whose
+ * source didn't change is copied from it as it is instead of being read and compressed again. A
+ * source is unchanged if its path and size are the same, and either its modification time or its
+ * SHA-256 digest is the same. The last uberjar is renamed before it's mapped, so that the new one
+ * can be written in its place.
+ */
+class IncrementalState {
+  private static final String KEY_ARCHIVE = "archive";
+
+  private static final String PREFIX_ENTRY = "entry.";
+
+  private final Properties current = new Properties();
+
+  private final Map<String, String> digests = new HashMap<String, String>();
+
+  private ArchiveReader previous;
+
+  private File previousFile;
+
+  private final Properties recorded = new Properties();
+
+  private int reused;
+
+  private final File stateFile;
+
+  /**
+   * @param stateFile File where state is kept
+   */
+  IncrementalState(File stateFile) {
+    this.stateFile = stateFile;
+  }
+
+  private static String archiveKey(File archive) {
+    return archive.length() + "," + archive.lastModified();
+  }
+
+  /**
+   * Delete last uberjar
+   */
+  void close() {
+    previous = null;
+    if (previousFile != null && !previousFile.delete()) {
+      // Mapped file can't be deleted on some platforms until buffer is collected
+      previousFile.deleteOnExit();
+    }
+  }
+
+  /**
+   * Copy entry from last uberjar if its source didn't change
+   *
+   * @param output Archive being written
+   * @param name Name of entry
+   * @param source Source of entry
+   * @param method Expected compression method of entry
+   * @return True if entry is copied
+   * @throws IOException If last uberjar or source can't be read, or entry can't be written
+   */
+  boolean copy(ArchiveWriter output, String name, File source, int method) throws IOException {
+    if (previous == null) {
+      return false;
+    }
+    ArchiveReader.Entry entry = previous.getEntry(name);
+    String[] record = StringUtils.split(recorded.getProperty(PREFIX_ENTRY + name, ""), '|');
+    if (entry == null || entry.getMethod() != method || record.length != 4
+        || !record[0].equals(source.getAbsolutePath())
+        || !record[1].equals(String.valueOf(source.length()))) {
+      return false;
+    }
+    String digest = record[2].equals(String.valueOf(source.lastModified())) ? record[3]
+        : digest(source);
+    if (!digest.equals(record[3])) {
+      return false;
+    }
+    digests.put(source.getAbsolutePath(), digest);
+    output.addRaw(entry, previous.getData(entry));
+    record(name, source);
+    reused++;
+    return true;
+  }
+
+  private String digest(File source) throws IOException {
+    String digest = digests.get(source.getAbsolutePath());
+    if (digest != null) {
+      return digest;
+    }
+    MessageDigest sha;
+    try {
+      sha = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 isn't supported", e);
+    }
+    byte[] buffer = new byte[IOUtils.DEFAULT_BUFFER_SIZE * 16];
+    try (InputStream in = new FileInputStream(source)) {
+      for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+        sha.update(buffer, 0, read);
+      }
+    }
+    StringBuilder hex = new StringBuilder();
+    for (byte b : sha.digest()) {
+      hex.append(String.format("%02x", b & 0xff));
+    }
+    digest = hex.toString();
+    digests.put(source.getAbsolutePath(), digest);
+    return digest;
+  }
+
+  /**
+   * @return Number of entries copied from last uberjar
+   */
+  int getReused() {
+    return reused;
+  }
+
+  /**
+   * Read state from file if it exists
+   *
+   * @throws IOException If file can't be read
+   */
+  void load() throws IOException {
+    recorded.clear();
+    if (stateFile.isFile()) {
+      try (InputStream in = new FileInputStream(stateFile)) {
+        recorded.load(in);
+      }
+    }
+  }
+
+  /**
+   * Take the last uberjar if it's the one state was saved for
+   *
+   * @param uberjarFile Last uberjar, which is renamed
+   * @return True if last uberjar can be copied from
+   * @throws IOException If last uberjar can't be renamed or mapped
+   */
+  boolean open(File uberjarFile) throws IOException {
+    if (!uberjarFile.isFile() || !archiveKey(uberjarFile).equals(recorded.get(KEY_ARCHIVE))
+        || uberjarFile.length() > Integer.MAX_VALUE) {
+      return false;
+    }
+    previousFile = new File(uberjarFile.getPath() + ".previous");
+    Files.move(uberjarFile.toPath(), previousFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    try (FileChannel channel = FileChannel.open(previousFile.toPath(), StandardOpenOption.READ)) {
+      ByteBuffer content = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      previous = new ArchiveReader(content);
+    } catch (ZipException e) {
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Record source of an entry written into new uberjar
+   *
+   * @param name Name of entry
+   * @param source Source of entry
+   * @throws IOException If source can't be read
+   */
+  void record(String name, File source) throws IOException {
+    current.setProperty(PREFIX_ENTRY + name, source.getAbsolutePath() + "|" + source.length() + "|"
+        + source.lastModified() + "|" + digest(source));
+  }
+
+  /**
+   * Write state of new uberjar into file
+   *
+   * @param uberjarFile New uberjar
+   * @throws IOException If file can't be written
+   */
+  void save(File uberjarFile) throws IOException {
+    current.setProperty(KEY_ARCHIVE, archiveKey(uberjarFile));
+    File directory = stateFile.getAbsoluteFile().getParentFile();
+    FileUtils.forceMkdir(directory);
+    File temp = File.createTempFile(stateFile.getName(), ".tmp", directory);
+    try (OutputStream out = new FileOutputStream(temp)) {
+      current.store(out, "State of uberjar");
+    }
+    Files.move(temp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+}
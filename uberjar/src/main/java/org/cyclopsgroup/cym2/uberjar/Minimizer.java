@@ -0,0 +1,285 @@
+package org.cyclopsgroup.cym2.uberjar;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import org.apache.commons.lang.StringUtils;
+import org.apache.maven.plugin.logging.Log;
+import org.cyclopsgroup.cym2.uberjar.boot.ArchiveReader;
+
+/**
+ * Finds classes of dependencies that are reachable from project's own classes, and leaves the
+ * rest out of uberjar. A class reaches every class named in its constant pool, including type
+ * descriptors, generic signatures and string constants that are class names, which covers most
+ * reflection. Providers in META-INF/services are kept when their service is reachable or isn't in
+ * any jar, and classes matching keep patterns are always kept. Resources are always kept.
+ */
+class Minimizer {
+  /**
+   * A class file in a jar
+   */
+  private static final class Source {
+    private final ArchiveReader.Entry entry;
+
+    private final ArchiveReader reader;
+
+    private Source(ArchiveReader reader, ArchiveReader.Entry entry) {
+      this.reader = reader;
+      this.entry = entry;
+    }
+  }
+
+  private static final Pattern DESCRIPTOR = Pattern.compile("L([\\w$/]+)[;<]");
+
+  private static final String SERVICES = "META-INF/services/";
+
+  private static final Pattern VERSIONED = Pattern.compile("META-INF/versions/\\d+/(.+)");
+
+  private final Map<String, List<Source>> classes = new HashMap<String, List<Source>>();
+
+  private final List<Pattern> keepPatterns = new ArrayList<Pattern>();
+
+  private final Log log;
+
+  private final Set<String> reachable = new HashSet<String>();
+
+  private final Map<File, ArchiveReader> readers = new LinkedHashMap<File, ArchiveReader>();
+
+  private final Map<String, Set<String>> services = new HashMap<String, Set<String>>();
+
+  /**
+   * @param keepClasses Names of classes always kept. A name ending with <code>.*</code> matches
+   *     classes in a package, and <code>.**</code> also matches classes in its subpackages.
+   * @param log Maven log
+   */
+  Minimizer(String[] keepClasses, Log log) {
+    this.log = log;
+    if (keepClasses != null) {
+      for (String keep : keepClasses) {
+        String regex = Pattern.quote(keep.trim().replace('.', '/'));
+        regex = regex.replace("/**", "/\\E.+\\Q").replace("/*", "/\\E[^/]+\\Q");
+        keepPatterns.add(Pattern.compile(regex));
+      }
+    }
+  }
+
+  /**
+   * @param name Name of entry
+   * @return Name of class in internal form if entry is a class, or NULL
+   */
+  private static String className(String name) {
+    Matcher versioned = VERSIONED.matcher(name);
+    String path = versioned.matches() ? versioned.group(1) : name;
+    if (!path.endsWith(".class") || path.endsWith("module-info.class")
+        || path.endsWith("package-info.class")) {
+      return null;
+    }
+    return path.substring(0, path.length() - 6);
+  }
+
+  /**
+   * @param content Content of class file
+   * @return Names of classes in internal form, and other strings that might be class names
+   * @throws IOException If content isn't a class file
+   */
+  private static Set<String> references(byte[] content) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+    if (in.readInt() != 0xCAFEBABE) {
+      throw new IOException("Content isn't a class file");
+    }
+    in.readInt();
+    Set<String> references = new HashSet<String>();
+    int count = in.readUnsignedShort();
+    for (int i = 1; i < count; i++) {
+      int tag = in.readUnsignedByte();
+      switch (tag) {
+        case 1:
+          String value = in.readUTF();
+          Matcher descriptor = DESCRIPTOR.matcher(value);
+          while (descriptor.find()) {
+            references.add(descriptor.group(1));
+          }
+          // Class names, and dotted names that might be loaded by reflection
+          references.add(value.replace('.', '/'));
+          break;
+        case 7: case 8: case 16: case 19: case 20:
+          in.skipBytes(2);
+          break;
+        case 15:
+          in.skipBytes(3);
+          break;
+        case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+          in.skipBytes(4);
+          break;
+        case 5: case 6:
+          in.skipBytes(8);
+          i++;
+          break;
+        default:
+          throw new IOException("Unknown constant pool tag " + tag);
+      }
+    }
+    return references;
+  }
+
+  /**
+   * Find reachable classes and report what's left out of each dependency
+   *
+   * @param artifactJar Jar of project, whose classes are all reachable
+   * @param dependencies Dependency jars in the order of classpath
+   * @throws IOException If a jar can't be read
+   */
+  void analyze(File artifactJar, List<File> dependencies) throws IOException {
+    List<File> jars = new ArrayList<File>();
+    jars.add(artifactJar);
+    jars.addAll(dependencies);
+    for (File jar : jars) {
+      ArchiveReader reader = FlatLayout.map(jar);
+      readers.put(jar, reader);
+      for (ArchiveReader.Entry entry : reader.getEntries()) {
+        String name = entry.getName();
+        String className = className(name);
+        if (className != null) {
+          List<Source> sources = classes.get(className);
+          if (sources == null) {
+            sources = new ArrayList<Source>(1);
+            classes.put(className, sources);
+          }
+          sources.add(new Source(reader, entry));
+        } else if (name.startsWith(SERVICES) && name.length() > SERVICES.length()) {
+          String service = name.substring(SERVICES.length()).replace('.', '/');
+          Set<String> providers = services.get(service);
+          if (providers == null) {
+            providers = new LinkedHashSet<String>();
+            services.put(service, providers);
+          }
+          for (String line : new String(reader.read(entry), StandardCharsets.UTF_8).split("\n")) {
+            line = StringUtils.substringBefore(line, "#").trim();
+            if (!line.isEmpty()) {
+              providers.add(line.replace('.', '/'));
+            }
+          }
+        }
+      }
+    }
+
+    Deque<String> queue = new ArrayDeque<String>();
+    for (ArchiveReader.Entry entry : readers.get(artifactJar).getEntries()) {
+      reach(className(entry.getName()), queue);
+    }
+    for (String className : classes.keySet()) {
+      for (Pattern keep : keepPatterns) {
+        if (keep.matcher(className).matches()) {
+          reach(className, queue);
+        }
+      }
+    }
+    for (Map.Entry<String, Set<String>> service : services.entrySet()) {
+      if (!classes.containsKey(service.getKey())) {
+        for (String provider : service.getValue()) {
+          reach(provider, queue);
+        }
+      }
+    }
+    while (!queue.isEmpty()) {
+      String className = queue.poll();
+      for (Source source : classes.get(className)) {
+        for (String reference : references(source.reader.read(source.entry))) {
+          reach(reference, queue);
+        }
+      }
+      Set<String> providers = services.get(className);
+      if (providers != null) {
+        for (String provider : providers) {
+          reach(provider, queue);
+        }
+      }
+    }
+
+    long totalSaved = 0;
+    for (File jar : dependencies) {
+      int classCount = 0;
+      int leftOut = 0;
+      long size = 0;
+      long saved = 0;
+      for (ArchiveReader.Entry entry : readers.get(jar).getEntries()) {
+        size += entry.getCompressedSize();
+        if (className(entry.getName()) != null) {
+          classCount++;
+        }
+        if (!keeps(entry.getName())) {
+          leftOut++;
+          saved += entry.getCompressedSize();
+        }
+      }
+      log.info("Minimized " + jar.getName() + ": left out " + leftOut + " of " + classCount
+          + " classes, saved " + saved + " of " + size + " bytes");
+      totalSaved += saved;
+    }
+    log.info("Minimizing saved " + totalSaved + " bytes in " + dependencies.size()
+        + " dependencies, " + reachable.size() + " of " + classes.size() + " classes are kept");
+  }
+
+  /**
+   * @param name Name of entry in a jar
+   * @return True if entry is a resource, a reachable class or a provider file of a kept service
+   */
+  boolean keeps(String name) {
+    if (name.startsWith(SERVICES) && name.length() > SERVICES.length()) {
+      String service = name.substring(SERVICES.length()).replace('.', '/');
+      return !classes.containsKey(service) || reachable.contains(service);
+    }
+    String className = className(name);
+    return className == null || reachable.contains(className);
+  }
+
+  /**
+   * Write a copy of jar with only entries that are kept
+   *
+   * @param jar Dependency jar passed to {@link #analyze(File, List)}
+   * @param directory Directory of minimized jars
+   * @return Minimized jar, or the jar itself if everything is kept
+   * @throws IOException If minimized jar can't be written
+   */
+  File minimize(File jar, File directory) throws IOException {
+    ArchiveReader reader = readers.get(jar);
+    List<ArchiveReader.Entry> kept = new ArrayList<ArchiveReader.Entry>();
+    for (ArchiveReader.Entry entry : reader.getEntries()) {
+      if (keeps(entry.getName())) {
+        kept.add(entry);
+      }
+    }
+    if (kept.size() == reader.getEntries().size()) {
+      return jar;
+    }
+    directory.mkdirs();
+    File minimized = new File(directory, jar.getName());
+    try (ArchiveWriter output = new ArchiveWriter(minimized, Deflater.DEFAULT_COMPRESSION, 1)) {
+      for (ArchiveReader.Entry entry : kept) {
+        output.addRaw(entry, reader.getData(entry));
+      }
+    }
+    return minimized;
+  }
+
+  private void reach(String className, Deque<String> queue) {
+    if (className != null && classes.containsKey(className) && reachable.add(className)) {
+      queue.add(className);
+    }
+  }
+}
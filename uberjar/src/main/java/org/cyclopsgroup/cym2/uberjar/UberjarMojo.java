@@ -1,24 +1,34 @@
 package org.cyclopsgroup.cym2.uberjar;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Map;
+import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.artifact.DependencyResolutionRequiredException;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.project.MavenProject;
+import org.cyclopsgroup.cym2.uberjar.boot.PackageIndex;
 
 /**
  * @description Create executable uber jar
@@ -27,6 +37,14 @@ import org.apache.maven.project.MavenProject;
  * @requiresDependencyResolution runtime
  */
 public class UberjarMojo extends AbstractMojo {
+  private static final String BOOT_PACKAGE = "org/cyclopsgroup/cym2/uberjar/boot/";
+
+  private static final String[] FLAT_BOOT_CLASSES = {"ArchiveReader", "ArchiveReader$Entry",
+      "FlatLauncher", "IndexedClassLoader", "MainMethod", "PackageIndex"};
+
+  private static final String[] MAPPED_BOOT_CLASSES = {"ArchiveReader", "ArchiveReader$Entry",
+      "MainMethod", "MappedLauncher", "NestedJarClassLoader", "NestedJarClassLoader$Connection",
+      "nested/Handler"};
 
   /**
    * @parameter expression="${basedir}/target/${project.artifactId}-${project.version}.jar"
@@ -34,6 +52,67 @@ public class UberjarMojo extends AbstractMojo {
    */
   private File artifactJarFile;
 
+  /**
+   * If true, main class of a flat uberjar runs once with training arguments, and the classes it
+   * loads are dumped into a class data sharing archive next to uberjar, along with a launch script
+   * that starts main class with the archive. Maven must run on Java 11 or later.
+   *
+   * @parameter expression="${uberjar.classDataSharing}" default-value="false"
+   */
+  private boolean classDataSharing;
+
+  /**
+   * What to do with files of the same name but different content in more than one jar in flat
+   * layout. <code>first</code> keeps the one in the first jar, <code>last</code> keeps the one in
+   * the last jar, and <code>fail</code> fails the build.
+   *
+   * @parameter expression="${uberjar.duplicateEntries}" default-value="first"
+   */
+  private String duplicateEntries;
+
+  /**
+   * If true, entries whose source didn't change are copied from the last uberjar as they are,
+   * instead of being read and compressed again
+   *
+   * @parameter expression="${uberjar.incremental}" default-value="false"
+   */
+  private boolean incremental;
+
+  /**
+   * Classes that minimize keeps even if they aren't reachable, such as ones only loaded by
+   * reflection with computed names. A name ending with <code>.*</code> matches classes in a
+   * package, and <code>.**</code> also matches classes in its subpackages.
+   *
+   * @parameter
+   */
+  private String[] keepClasses;
+
+  /**
+   * Layout of uberjar. <code>nested</code> keeps jars in WORLDS-INF/lib and boots with
+   * classworlds. <code>flat</code> merges entries of all jars into the top level, with a package
+   * index that a bundled launcher uses to find classes.
+   *
+   * @parameter expression="${uberjar.layout}" default-value="nested"
+   */
+  private String layout;
+
+  /**
+   * Launcher of nested layout. <code>classworlds</code> boots with classworlds-boot.
+   * <code>mapped</code> bundles a small launcher that maps uberjar once and reads classes and
+   * resources straight from nested jars, which must be stored.
+   *
+   * @parameter expression="${uberjar.launcher}" default-value="classworlds"
+   */
+  private String launcher;
+
+  /**
+   * How dependency jars are added into uberjar. <code>stored</code> keeps them as they are, since
+   * jars are compressed already, and <code>deflated</code> compresses them again.
+   *
+   * @parameter expression="${uberjar.libraryEntryMethod}" default-value="stored"
+   */
+  private String libraryEntryMethod;
+
   /**
    * Name of main class invoked by classworlds
    *
@@ -43,6 +122,29 @@ public class UberjarMojo extends AbstractMojo {
    */
   private String mainClass;
 
+  /**
+   * If true, service provider files in META-INF/services of all jars are merged in flat layout,
+   * instead of being handled as duplicates
+   *
+   * @parameter expression="${uberjar.mergeServices}" default-value="true"
+   */
+  private boolean mergeServices;
+
+  /**
+   * If true, classes of dependencies that project's classes can't reach are left out of uberjar.
+   * Bytes saved in each dependency are reported.
+   *
+   * @parameter expression="${uberjar.minimize}" default-value="false"
+   */
+  private boolean minimize;
+
+  /**
+   * If true, deflated entries are compressed by all available processors concurrently
+   *
+   * @parameter expression="${uberjar.parallelDeflate}" default-value="false"
+   */
+  private boolean parallelDeflate;
+
   /**
    * @parameter expression="${plugin.artifactMap}"
    * @readonly
@@ -57,6 +159,29 @@ public class UberjarMojo extends AbstractMojo {
    */
   private MavenProject project;
 
+  /**
+   * File that records sources of entries in the last uberjar for incremental packaging. By default
+   * it's a file next to uberjar.
+   *
+   * @parameter expression="${uberjar.stateFile}"
+   */
+  private File stateFile;
+
+  /**
+   * Space separated arguments of main class in the training run of class data sharing. Main class
+   * should exercise the code that it runs at startup and exit.
+   *
+   * @parameter expression="${uberjar.trainingArguments}"
+   */
+  private String trainingArguments;
+
+  /**
+   * Seconds the training run of class data sharing may take before the build fails
+   *
+   * @parameter expression="${uberjar.trainingTimeout}" default-value="300"
+   */
+  private int trainingTimeout;
+
   /**
    * Name of generated uberjar file
    *
@@ -65,7 +190,12 @@ public class UberjarMojo extends AbstractMojo {
    */
   private File uberjarFile;
 
-  private void addAllEntries(JarOutputStream output, File jarFile) throws IOException {
+  /**
+   * State of incremental packaging, or NULL if it's not incremental
+   */
+  private IncrementalState incrementalState;
+
+  private void addAllEntries(ArchiveWriter output, File jarFile) throws IOException {
     getLog().info("Adding everything in " + jarFile + " into uberjar...");
     try (JarFile file = new JarFile(jarFile)) {
       for (Enumeration<JarEntry> en = file.entries(); en.hasMoreElements();) {
@@ -76,31 +206,75 @@ public class UberjarMojo extends AbstractMojo {
         if (entry.getName().toLowerCase().equals("meta-inf/manifest.mf")) {
           continue;
         }
-        output.putNextEntry(new JarEntry(entry));
+        if (incrementalState != null
+            && incrementalState.copy(output, entry.getName(), jarFile, ZipEntry.DEFLATED)) {
+          continue;
+        }
         getLog().debug("Adding entry " + entry.getName() + "(" + entry.getSize() + " bytes)");
+        byte[] content;
         try (InputStream entryInput = file.getInputStream(entry)) {
-          IOUtils.copy(entryInput, output);
-          output.flush();
+          content = IOUtils.toByteArray(entryInput);
         }
+        output.addDeflated(entry.getName(), entry.getTime(), () -> content);
+        if (incrementalState != null) {
+          incrementalState.record(entry.getName(), jarFile);
+        }
+      }
+    }
+  }
+
+  private void addBootClasses(ArchiveWriter output, String[] classNames) throws IOException {
+    for (String className : classNames) {
+      String name = BOOT_PACKAGE + className + ".class";
+      byte[] content;
+      try (InputStream in = getClass().getClassLoader().getResourceAsStream(name)) {
+        content = IOUtils.toByteArray(in);
       }
+      output.addDeflated(name, System.currentTimeMillis(), () -> content);
     }
   }
 
-  private void addFileEntry(JarOutputStream output, File file, String name) throws IOException {
+  private void addFileEntry(ArchiveWriter output, File file, String name) throws IOException {
     if (!file.isFile()) {
       getLog().warn("File " + file + " does not exist, skip it");
       return;
     }
 
-    JarEntry entry = new JarEntry(name);
-    entry.setSize(file.length());
-    entry.setTime(file.lastModified());
-    output.putNextEntry(entry);
-    try (FileInputStream input = new FileInputStream(file)) {
-      getLog().info("Adding " + entry.getName());
-      IOUtils.copy(input, output);
-      output.flush();
+    boolean stored = libraryEntryMethod.equals("stored");
+    if (incrementalState != null && incrementalState.copy(output, name, file,
+        stored ? ZipEntry.STORED : ZipEntry.DEFLATED)) {
+      getLog().debug("Copied unchanged " + name + " from last uberjar");
+      return;
+    }
+    getLog().info("Adding " + name);
+    if (stored) {
+      output.addStored(name, file.lastModified(), file);
+    } else {
+      output.addDeflated(name, file.lastModified(), () -> FileUtils.readFileToByteArray(file));
+    }
+    if (incrementalState != null) {
+      incrementalState.record(name, file);
+    }
+  }
+
+  /**
+   * @return Dependency jars in runtime classpath, in the order of classpath
+   */
+  private List<File> dependencies() throws MojoExecutionException {
+    List<File> dependencies = new ArrayList<File>();
+    try {
+      for (Object classpathElement : project.getRuntimeClasspathElements()) {
+        File dependency = new File((String) classpathElement);
+        if (dependency.isFile()) {
+          dependencies.add(dependency);
+        } else {
+          getLog().info("Ignore " + dependency + " since it's not a file");
+        }
+      }
+    } catch (DependencyResolutionRequiredException e) {
+      throw new MojoExecutionException("Dependencies are not resolved, code problem", e);
     }
+    return dependencies;
   }
 
   /**
@@ -118,6 +292,58 @@ public class UberjarMojo extends AbstractMojo {
       return;
     }
 
+    if (!libraryEntryMethod.equals("stored") && !libraryEntryMethod.equals("deflated")) {
+      throw new MojoFailureException("Library entry method " + libraryEntryMethod
+          + " is neither stored nor deflated");
+    }
+
+    FlatLayout.Duplicates duplicates;
+    try {
+      duplicates = FlatLayout.Duplicates.valueOf(duplicateEntries.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new MojoFailureException(
+          "Duplicate entries policy " + duplicateEntries + " is none of first, last and fail");
+    }
+    boolean flat = layout.equals("flat");
+    if (!flat && !layout.equals("nested")) {
+      throw new MojoFailureException("Layout " + layout + " is neither nested nor flat");
+    }
+    boolean mapped = launcher.equals("mapped");
+    if (!mapped && !launcher.equals("classworlds")) {
+      throw new MojoFailureException("Launcher " + launcher + " is neither classworlds nor mapped");
+    }
+    if (mapped && !flat && !libraryEntryMethod.equals("stored")) {
+      throw new MojoFailureException(
+          "Mapped launcher reads nested jars in place, library entry method must be stored");
+    }
+    if (classDataSharing && !flat) {
+      throw new MojoFailureException("Class data sharing only archives classes of jars in "
+          + "classpath, it requires flat layout");
+    }
+    String javaVersion = System.getProperty("java.specification.version");
+    if (classDataSharing && !ClassDataSharing.isSupported(javaVersion)) {
+      throw new MojoFailureException("Class data sharing archives application classes with the"
+          + " JVM that runs Maven, which requires Java 11 or later, but Maven runs on Java "
+          + javaVersion + " in " + System.getProperty("java.home"));
+    }
+
+    incrementalState = null;
+    if (incremental && flat) {
+      getLog().info("Incremental packaging doesn't apply to flat layout, which copies entries "
+          + "from jars without compressing them again");
+    } else if (incremental) {
+      incrementalState = new IncrementalState(stateFile != null ? stateFile
+          : new File(uberjarFile.getParentFile(),
+              FilenameUtils.getBaseName(uberjarFile.getName()) + "-uberjar.properties"));
+      try {
+        incrementalState.load();
+        if (incrementalState.open(uberjarFile)) {
+          getLog().info("Copying unchanged entries from last " + uberjarFile);
+        }
+      } catch (IOException e) {
+        getLog().warn("Can't read last uberjar, packaging everything: " + e.getMessage());
+      }
+    }
     if (uberjarFile.isFile()) {
       getLog().info("Deleting existing " + uberjarFile);
       uberjarFile.delete();
@@ -126,58 +352,138 @@ public class UberjarMojo extends AbstractMojo {
       uberjarFile.getParentFile().mkdirs();
     }
 
+    List<File> dependencies = dependencies();
+    Minimizer minimizer = null;
+    if (minimize) {
+      minimizer = new Minimizer(keepClasses, getLog());
+      try {
+        minimizer.analyze(artifactJarFile, dependencies);
+      } catch (IOException e) {
+        throw new MojoExecutionException("Can't find reachable classes", e);
+      }
+    }
+    if (flat) {
+      packageFlat(new FlatLayout(duplicates, mergeServices, minimizer, getLog()), dependencies);
+      if (classDataSharing) {
+        String java = new File(System.getProperty("java.home"), "bin/java").getPath();
+        try {
+          new ClassDataSharing(java, trainingTimeout, getLog()).build(uberjarFile, mainClass,
+              Arrays.asList(StringUtils.split(StringUtils.defaultString(trainingArguments))));
+        } catch (IOException e) {
+          throw new MojoExecutionException("Can't build class data sharing archive", e);
+        }
+      }
+      return;
+    }
+
     // Create string writer for classworlds.conf
     StringWriter classworldsConfigContent = new StringWriter();
     PrintWriter classworldsConfig = new PrintWriter(classworldsConfigContent);
     classworldsConfig.println("main is " + mainClass + " from app");
     classworldsConfig.println("[app]");
 
-    try {
-      FileOutputStream fileOutput = new FileOutputStream(uberjarFile);
-      JarOutputStream output = new JarOutputStream(fileOutput);
-      for (Object classpathElement : project.getRuntimeClasspathElements()) {
-        File dependency = new File((String) classpathElement);
-        if (dependency.isFile()) {
-          addFileEntry(output, dependency, "WORLDS-INF/lib/" + dependency.getName());
-          classworldsConfig.println("  load ${classworlds.lib}/" + dependency.getName());
-        } else {
-          getLog().info("Ignore " + dependency + " since it's not a file");
-        }
+    int deflateThreads = parallelDeflate ? Runtime.getRuntime().availableProcessors() : 1;
+    try (ArchiveWriter output =
+        new ArchiveWriter(uberjarFile, Deflater.DEFAULT_COMPRESSION, deflateThreads)) {
+      File minimizedDirectory = new File(uberjarFile.getParentFile(),
+          FilenameUtils.getBaseName(uberjarFile.getName()) + "-minimized");
+      for (File dependency : dependencies) {
+        File source = minimizer == null ? dependency
+            : minimizer.minimize(dependency, minimizedDirectory);
+        addFileEntry(output, source, "WORLDS-INF/lib/" + dependency.getName());
+        classworldsConfig.println("  load ${classworlds.lib}/" + dependency.getName());
       }
 
       // Add classworlds.conf into uberjar
       addFileEntry(output, artifactJarFile, "WORLDS-INF/lib/" + artifactJarFile.getName());
       classworldsConfig.println("  load ${classworlds.lib}/" + artifactJarFile.getName());
       getLog().info("Adding " + "WORLDS-INF/conf/classworlds.conf");
-      JarEntry configEntry = new JarEntry("WORLDS-INF/conf/classworlds.conf");
-      configEntry.setSize(classworldsConfig.toString().length());
-      configEntry.setTime(System.currentTimeMillis());
-      output.putNextEntry(configEntry);
       classworldsConfig.flush();
-      output.write(classworldsConfigContent.toString().getBytes());
+      byte[] classworldsConfigBytes =
+          classworldsConfigContent.toString().getBytes(StandardCharsets.UTF_8);
+      output.addDeflated("WORLDS-INF/conf/classworlds.conf", System.currentTimeMillis(),
+          () -> classworldsConfigBytes);
 
-      // Add classworlds.jar into uberjar
-      Artifact classworldsArtifact = pluginArtifactMap.get("classworlds:classworlds");
-      addFileEntry(output, classworldsArtifact.getFile(), "WORLDS-INF/classworlds.jar");
+      byte[] manifest;
+      if (mapped) {
+        // Mapped launcher reads classworlds.conf and replaces classworlds
+        addBootClasses(output, MAPPED_BOOT_CLASSES);
+        manifest = manifest("MappedLauncher");
+      } else {
+        // Add classworlds.jar into uberjar
+        Artifact classworldsArtifact = pluginArtifactMap.get("classworlds:classworlds");
+        addFileEntry(output, classworldsArtifact.getFile(), "WORLDS-INF/classworlds.jar");
 
-      // Copy everything from classworlds-boot.jar into uberjar
-      Artifact classworldsBootArtifact = pluginArtifactMap.get("classworlds:classworlds-boot");
-      addAllEntries(output, classworldsBootArtifact.getFile());
+        // Copy everything from classworlds-boot.jar into uberjar
+        Artifact classworldsBootArtifact =
+            pluginArtifactMap.get("classworlds:classworlds-boot");
+        addAllEntries(output, classworldsBootArtifact.getFile());
+        try (InputStream manifestInput =
+            getClass().getClassLoader().getResourceAsStream("classworlds-manifest.txt")) {
+          manifest = IOUtils.toByteArray(manifestInput);
+        }
+      }
 
       // Add manifest file into uberjar
-      JarEntry manifestEntry = new JarEntry("META-INF/MANIFEST.MF");
-      manifestEntry.setTime(System.currentTimeMillis());
-      output.putNextEntry(manifestEntry);
       getLog().info("Adding Manifest file...");
-      IOUtils.copy(getClass().getClassLoader().getResourceAsStream("classworlds-manifest.txt"),
-          output);
+      output.addDeflated("META-INF/MANIFEST.MF", System.currentTimeMillis(), () -> manifest);
+    } catch (IOException e) {
+      throw new MojoExecutionException("Execution exception", e);
+    } finally {
+      if (incrementalState != null) {
+        incrementalState.close();
+      }
+    }
+
+    if (incrementalState != null) {
+      getLog().info(
+          "Copied " + incrementalState.getReused() + " unchanged entries from last uberjar");
+      try {
+        incrementalState.save(uberjarFile);
+      } catch (IOException e) {
+        throw new MojoExecutionException("Can't save state of uberjar: " + e.getMessage(), e);
+      }
+    }
+  }
 
-      output.flush();
-      output.close();
+  /**
+   * @param launcherClass Simple name of launcher class in boot package
+   * @return Content of manifest whose main class is the launcher
+   */
+  private static byte[] manifest(String launcherClass) throws IOException {
+    Manifest manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS,
+        BOOT_PACKAGE.replace('/', '.') + launcherClass);
+    manifest.getMainAttributes().putValue("Created-By", "CyclopsGroup.org");
+    manifest.getMainAttributes().putValue("Built-By", "uberjar-maven-plugin");
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    manifest.write(content);
+    return content.toByteArray();
+  }
+
+  private void packageFlat(FlatLayout flatLayout, List<File> dependencies)
+      throws MojoExecutionException, MojoFailureException {
+    int deflateThreads = parallelDeflate ? Runtime.getRuntime().availableProcessors() : 1;
+    try (ArchiveWriter output =
+        new ArchiveWriter(uberjarFile, Deflater.DEFAULT_COMPRESSION, deflateThreads)) {
+      byte[] manifest = manifest("FlatLauncher");
+      output.addDeflated("META-INF/MANIFEST.MF", System.currentTimeMillis(), () -> manifest);
+
+      // Project's own classes come first like they do in runtime classpath
+      List<File> jars = new ArrayList<File>();
+      jars.add(artifactJarFile);
+      jars.addAll(dependencies);
+      flatLayout.write(output, jars);
+      addBootClasses(output, FLAT_BOOT_CLASSES);
+
+      Map<String, Long> offsets = output.getOffsets();
+      byte[] index = PackageIndex.write(mainClass, offsets);
+      output.addDeflated(PackageIndex.ENTRY_NAME, System.currentTimeMillis(), () -> index);
+      output.setComment(
+          PackageIndex.COMMENT_PREFIX + output.getOffsets().get(PackageIndex.ENTRY_NAME));
     } catch (IOException e) {
       throw new MojoExecutionException("Execution exception", e);
-    } catch (DependencyResolutionRequiredException e) {
-      throw new MojoExecutionException("Dependencies are not resolved, code problem", e);
     }
   }
 }
@@ -0,0 +1,303 @@
+package org.cyclopsgroup.cym2.uberjar.boot;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Central directory of a zip archive that is entirely in a buffer, usually a mapped file. Data of
+ * an entry is a slice of the buffer as it's stored in archive, so that it can be copied without
+ * inflating it, or read in place if the entry is stored. Only standard library is used, since
+ * this class is also bundled into uberjars.
+ */
+public final class ArchiveReader {
+  /**
+   * Entry in central directory
+   */
+  public static final class Entry {
+    private final long compressedSize;
+
+    private final long crc;
+
+    private final long dosTime;
+
+    private final long headerOffset;
+
+    private final int method;
+
+    private final String name;
+
+    private final long size;
+
+    Entry(String name, int method, long dosTime, long crc, long size,
+        long compressedSize, long headerOffset) {
+      this.name = name;
+      this.method = method;
+      this.dosTime = dosTime;
+      this.crc = crc;
+      this.size = size;
+      this.compressedSize = compressedSize;
+      this.headerOffset = headerOffset;
+    }
+
+    public long getCompressedSize() {
+      return compressedSize;
+    }
+
+    public long getCrc() {
+      return crc;
+    }
+
+    /**
+     * @return Modification time in MS-DOS format, as it's stored in archive
+     */
+    public long getDosTime() {
+      return dosTime;
+    }
+
+    public long getHeaderOffset() {
+      return headerOffset;
+    }
+
+    public int getMethod() {
+      return method;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public long getSize() {
+      return size;
+    }
+  }
+
+  private static final long MAX_32 = 0xFFFFFFFFL;
+
+  private final ByteBuffer archive;
+
+  private final Map<String, Entry> entries;
+
+  /**
+   * @param archive Content of archive
+   * @throws ZipException If content isn't a zip archive
+   */
+  public ArchiveReader(ByteBuffer archive) throws ZipException {
+    this.archive = archive.slice().order(ByteOrder.LITTLE_ENDIAN);
+    try {
+      this.entries = Collections.unmodifiableMap(readDirectory());
+    } catch (IndexOutOfBoundsException e) {
+      throw new ZipException("Archive is truncated");
+    }
+  }
+
+  private static int findEnd(ByteBuffer archive) throws ZipException {
+    int limit = Math.max(0, archive.limit() - 22 - 0xFFFF);
+    for (int end = archive.limit() - 22; end >= limit; end--) {
+      if (archive.getInt(end) == 0x06054b50) {
+        return end;
+      }
+    }
+    throw new ZipException("End of central directory isn't found");
+  }
+
+  /**
+   * @param entry Entry in this archive
+   * @return Data of entry as it's stored in archive, compressed if entry is deflated
+   * @throws ZipException If local header of entry is broken
+   */
+  public ByteBuffer getData(Entry entry) throws ZipException {
+    return slice(archive, dataOffset(archive, entry.headerOffset), entry.compressedSize);
+  }
+
+  /**
+   * @return All entries in the order of central directory
+   */
+  public Collection<Entry> getEntries() {
+    return entries.values();
+  }
+
+  /**
+   * @param name Name of entry
+   * @return Entry of the name, or NULL if it doesn't exist
+   */
+  public Entry getEntry(String name) {
+    return entries.get(name);
+  }
+
+  /**
+   * @param entry Entry in this archive
+   * @return Content of entry, inflated if it's deflated
+   * @throws ZipException If entry can't be read
+   */
+  public byte[] read(Entry entry) throws ZipException {
+    return content(getData(entry), entry.method, entry.size);
+  }
+
+  /**
+   * @param archive Content of archive
+   * @return Comment of archive
+   * @throws ZipException If content isn't a zip archive
+   */
+  public static String readComment(ByteBuffer archive) throws ZipException {
+    ByteBuffer buffer = archive.slice().order(ByteOrder.LITTLE_ENDIAN);
+    int end = findEnd(buffer);
+    byte[] comment = new byte[buffer.getShort(end + 20) & 0xFFFF];
+    ((Buffer) buffer).position(end + 22);
+    buffer.get(comment);
+    return new String(comment, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Read an entry from its local header without central directory. It only works for archives
+   * whose local headers have sizes, such as the ones written by uberjar plugin.
+   *
+   * @param archive Content of archive
+   * @param headerOffset Offset of local header of entry
+   * @return Content of entry, inflated if it's deflated
+   * @throws ZipException If entry can't be read
+   */
+  public static byte[] readLocal(ByteBuffer archive, long headerOffset) throws ZipException {
+    ByteBuffer buffer = archive.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    int start = dataOffset(buffer, headerOffset);
+    int header = (int) headerOffset;
+    if ((buffer.getShort(header + 6) & 0x08) != 0) {
+      throw new ZipException("Size of entry at " + headerOffset + " isn't in local header");
+    }
+    return content(slice(buffer, start, buffer.getInt(header + 18) & MAX_32),
+        buffer.getShort(header + 8) & 0xFFFF, buffer.getInt(header + 22) & MAX_32);
+  }
+
+  private static byte[] content(ByteBuffer data, int method, long size) throws ZipException {
+    if (size > Integer.MAX_VALUE) {
+      throw new ZipException("Entry is too large to read");
+    }
+    byte[] content = new byte[(int) size];
+    if (method == ZipEntry.STORED) {
+      data.get(content);
+      return content;
+    }
+    if (method != ZipEntry.DEFLATED) {
+      throw new ZipException("Unsupported compression method " + method);
+    }
+    byte[] compressed = new byte[data.remaining()];
+    data.get(compressed);
+    Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(compressed);
+      int length = 0;
+      while (length < content.length) {
+        int read = inflater.inflate(content, length, content.length - length);
+        if (read == 0 && (inflater.finished() || inflater.needsInput())) {
+          throw new ZipException("Entry is shorter than its size");
+        }
+        length += read;
+      }
+      return content;
+    } catch (DataFormatException e) {
+      throw new ZipException("Can't inflate entry: " + e.getMessage());
+    } finally {
+      inflater.end();
+    }
+  }
+
+  private static int dataOffset(ByteBuffer archive, long headerOffset) throws ZipException {
+    int header = position(archive, headerOffset);
+    if (archive.getInt(header) != 0x04034b50) {
+      throw new ZipException("Broken local header at " + headerOffset);
+    }
+    return header + 30 + (archive.getShort(header + 26) & 0xFFFF)
+        + (archive.getShort(header + 28) & 0xFFFF);
+  }
+
+  private static int position(ByteBuffer archive, long offset) throws ZipException {
+    if (offset < 0 || offset > archive.limit()) {
+      throw new ZipException("Offset " + offset + " is out of archive");
+    }
+    return (int) offset;
+  }
+
+  private Map<String, Entry> readDirectory() throws ZipException {
+    int end = findEnd(archive);
+    long count = archive.getShort(end + 10) & 0xFFFF;
+    long directoryOffset = archive.getInt(end + 16) & MAX_32;
+    if (count == 0xFFFF || directoryOffset == MAX_32) {
+      int locator = end - 20;
+      if (locator < 0 || archive.getInt(locator) != 0x07064b50) {
+        throw new ZipException("ZIP64 end record locator isn't found");
+      }
+      int record = position(archive, archive.getLong(locator + 8));
+      if (archive.getInt(record) != 0x06064b50) {
+        throw new ZipException("ZIP64 end record isn't found");
+      }
+      count = archive.getLong(record + 32);
+      directoryOffset = archive.getLong(record + 48);
+    }
+    Map<String, Entry> map = new LinkedHashMap<String, Entry>();
+    int position = position(archive, directoryOffset);
+    for (long i = 0; i < count; i++) {
+      if (archive.getInt(position) != 0x02014b50) {
+        throw new ZipException("Broken central directory at " + position);
+      }
+      int nameLength = archive.getShort(position + 28) & 0xFFFF;
+      int extraLength = archive.getShort(position + 30) & 0xFFFF;
+      int commentLength = archive.getShort(position + 32) & 0xFFFF;
+      long compressedSize = archive.getInt(position + 20) & MAX_32;
+      long size = archive.getInt(position + 24) & MAX_32;
+      long offset = archive.getInt(position + 42) & MAX_32;
+      // ZIP64 extra field only has the values that overflow, in this order
+      int extra = position + 46 + nameLength;
+      for (int e = extra; e + 4 <= extra + extraLength;) {
+        int id = archive.getShort(e) & 0xFFFF;
+        int length = archive.getShort(e + 2) & 0xFFFF;
+        if (id == 0x0001) {
+          int value = e + 4;
+          if (size == MAX_32) {
+            size = archive.getLong(value);
+            value += 8;
+          }
+          if (compressedSize == MAX_32) {
+            compressedSize = archive.getLong(value);
+            value += 8;
+          }
+          if (offset == MAX_32) {
+            offset = archive.getLong(value);
+          }
+        }
+        e += 4 + length;
+      }
+      String name = string(position + 46, nameLength);
+      map.put(name, new Entry(name, archive.getShort(position + 10) & 0xFFFF,
+          archive.getInt(position + 12) & MAX_32, archive.getInt(position + 16) & MAX_32, size,
+          compressedSize, offset));
+      position += 46 + nameLength + extraLength + commentLength;
+    }
+    return map;
+  }
+
+  private static ByteBuffer slice(ByteBuffer archive, int start, long length)
+      throws ZipException {
+    ByteBuffer data = archive.duplicate();
+    // Buffer methods return Buffer on Java 8
+    ((Buffer) data).position(start);
+    ((Buffer) data).limit(position(archive, start + length));
+    return data.slice();
+  }
+
+  private String string(int position, int length) {
+    byte[] bytes = new byte[length];
+    ByteBuffer buffer = archive.duplicate();
+    ((Buffer) buffer).position(position);
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,33 @@
+package org.cyclopsgroup.cym2.uberjar.boot;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Main class of a flat uberjar. It maps the uberjar, reads its package index and runs the main
+ * class with an {@link IndexedClassLoader}.
+ */
+public final class FlatLauncher {
+  private FlatLauncher() {}
+
+  /**
+   * @param args Arguments passed to main class
+   * @throws Throwable Anything main class throws
+   */
+  public static void main(String[] args) throws Throwable {
+    URL location = FlatLauncher.class.getProtectionDomain().getCodeSource().getLocation();
+    File file = new File(location.toURI());
+    ByteBuffer archive;
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      archive = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    PackageIndex index = PackageIndex.read(archive);
+    // Parent can't be application class loader, which loads classes from uberjar too
+    ClassLoader loader = new IndexedClassLoader(location, archive, index,
+        ClassLoader.getSystemClassLoader().getParent());
+    MainMethod.invoke(loader, index.getMainClass(), args);
+  }
+}
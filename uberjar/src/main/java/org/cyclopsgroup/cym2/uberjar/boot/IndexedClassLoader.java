@@ -0,0 +1,90 @@
+package org.cyclopsgroup.cym2.uberjar.boot;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.zip.ZipException;
+
+/**
+ * Class loader of a flat uberjar that finds classes and resources with its package index, and
+ * reads classes straight from the mapped uberjar without scanning or opening it again.
+ */
+public class IndexedClassLoader extends ClassLoader {
+  static {
+    ClassLoader.registerAsParallelCapable();
+  }
+
+  private final ByteBuffer archive;
+
+  private final ProtectionDomain domain;
+
+  private final PackageIndex index;
+
+  private final URL location;
+
+  /**
+   * @param location URL of uberjar
+   * @param archive Mapped content of uberjar
+   * @param index Package index of uberjar
+   * @param parent Parent class loader, which must not see uberjar
+   */
+  public IndexedClassLoader(URL location, ByteBuffer archive, PackageIndex index,
+      ClassLoader parent) {
+    super(parent);
+    this.location = location;
+    this.archive = archive;
+    this.index = index;
+    this.domain = new ProtectionDomain(new CodeSource(location, (Certificate[]) null), null, this,
+        null);
+  }
+
+  @Override
+  protected Class<?> findClass(String name) throws ClassNotFoundException {
+    String path = name.replace('.', '/') + ".class";
+    long offset = index.getOffset(path);
+    if (offset == -1) {
+      throw new ClassNotFoundException(name);
+    }
+    byte[] bytes;
+    try {
+      bytes = ArchiveReader.readLocal(archive, offset);
+    } catch (ZipException e) {
+      throw new ClassNotFoundException("Can't read " + path + " from " + location, e);
+    }
+    int dot = name.lastIndexOf('.');
+    if (dot != -1) {
+      String packageName = name.substring(0, dot);
+      synchronized (this) {
+        if (getPackage(packageName) == null) {
+          definePackage(packageName, null, null, null, null, null, null, null);
+        }
+      }
+    }
+    return defineClass(name, bytes, 0, bytes.length, domain);
+  }
+
+  @Override
+  protected URL findResource(String name) {
+    if (index.getOffset(name) == -1) {
+      return null;
+    }
+    try {
+      return new URL("jar:" + location + "!/" + name);
+    } catch (MalformedURLException e) {
+      return null;
+    }
+  }
+
+  @Override
+  protected Enumeration<URL> findResources(String name) throws IOException {
+    URL resource = findResource(name);
+    return resource == null ? Collections.<URL>emptyEnumeration()
+        : Collections.enumeration(Collections.singletonList(resource));
+  }
+}
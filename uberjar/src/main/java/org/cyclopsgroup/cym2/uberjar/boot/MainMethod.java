@@ -0,0 +1,30 @@
+package org.cyclopsgroup.cym2.uberjar.boot;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Main method of application shared by launchers. It's in its own class so that a launcher
+ * doesn't depend on class loaders of other launchers.
+ */
+final class MainMethod {
+  private MainMethod() {}
+
+  /**
+   * Invoke main method of a class with the class loader as context class loader
+   *
+   * @param loader Class loader that loads main class
+   * @param mainClass Name of main class
+   * @param args Arguments passed to main class
+   * @throws Throwable Anything main class throws
+   */
+  static void invoke(ClassLoader loader, String mainClass, String[] args) throws Throwable {
+    Thread.currentThread().setContextClassLoader(loader);
+    Method main = Class.forName(mainClass, false, loader).getMethod("main", String[].class);
+    try {
+      main.invoke(null, (Object) args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package org.cyclopsgroup.cym2.uberjar.boot;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.zip.ZipEntry;
+
+/**
+ * Main class of a nested uberjar that replaces classworlds. It maps the uberjar once, reads
+ * classworlds.conf for main class and jars, and runs main class with a
+ * {@link NestedJarClassLoader} over the stored jars. Nothing is extracted to disk. Handler of
+ * <code>nested:</code> URLs is registered globally before main class is loaded.
+ */
+public final class MappedLauncher {
+  /**
+   * Configuration written by uberjar plugin
+   */
+  public static final String CONFIG = "WORLDS-INF/conf/classworlds.conf";
+
+  private static final String HANDLER_PACKAGES = "java.protocol.handler.pkgs";
+
+  private static final String LIB = "${classworlds.lib}/";
+
+  private MappedLauncher() {}
+
+  /**
+   * @param args Arguments passed to main class
+   * @throws Throwable Anything main class throws
+   */
+  public static void main(String[] args) throws Throwable {
+    URL location = MappedLauncher.class.getProtectionDomain().getCodeSource().getLocation();
+    File file = new File(location.toURI());
+    ByteBuffer archive;
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      archive = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    ArchiveReader uberjar = new ArchiveReader(archive);
+    ArchiveReader.Entry config = uberjar.getEntry(CONFIG);
+    if (config == null) {
+      throw new IOException(CONFIG + " isn't found in " + file);
+    }
+
+    String mainClass = null;
+    LinkedHashMap<String, ArchiveReader> jars = new LinkedHashMap<String, ArchiveReader>();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(
+        new ByteArrayInputStream(uberjar.read(config)), StandardCharsets.UTF_8));
+    for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+      line = line.trim();
+      if (line.startsWith("main is ")) {
+        mainClass = line.split("\\s+")[2];
+      } else if (line.startsWith("load " + LIB)) {
+        String name = "WORLDS-INF/lib/" + line.substring(5 + LIB.length());
+        ArchiveReader.Entry jar = uberjar.getEntry(name);
+        if (jar == null) {
+          throw new IOException(name + " isn't found in " + file);
+        }
+        if (jar.getMethod() != ZipEntry.STORED) {
+          throw new IOException(name + " in " + file + " is compressed but it must be stored");
+        }
+        jars.put(name, new ArchiveReader(uberjar.getData(jar)));
+      }
+    }
+    if (mainClass == null) {
+      throw new IOException("Main class isn't in " + CONFIG);
+    }
+    registerHandler();
+    // Parent can't be application class loader, which loads classes from uberjar too
+    MainMethod.invoke(new NestedJarClassLoader(location, jars,
+        ClassLoader.getSystemClassLoader().getParent()), mainClass, args);
+  }
+
+  /**
+   * Make <code>nested:</code> URLs parsable by <code>new URL(String)</code>, which application
+   * code, for example {@link java.net.URI#toURL()}, may do with URLs of resources and code sources
+   */
+  private static void registerHandler() {
+    String packageName = MappedLauncher.class.getPackage().getName();
+    String packages = System.getProperty(HANDLER_PACKAGES);
+    if (packages == null || packages.isEmpty()) {
+      System.setProperty(HANDLER_PACKAGES, packageName);
+    } else if (!("|" + packages + "|").contains("|" + packageName + "|")) {
+      System.setProperty(HANDLER_PACKAGES, packages + "|" + packageName);
+    }
+  }
+}
@@ -0,0 +1,181 @@
+package org.cyclopsgroup.cym2.uberjar.boot;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipException;
+import org.cyclopsgroup.cym2.uberjar.boot.nested.Handler;
+
+/**
+ * Class loader of jars stored in an uberjar. Each jar is a slice of the mapped uberjar, so its
+ * classes and resources are read in place without extracting the jar or inflating the uberjar.
+ * Names of all entries are indexed when it's created, so a lookup doesn't go through jars one by
+ * one. Resources have URLs like <code>nested:file:/app.jar!/WORLDS-INF/lib/a.jar!/a.txt</code>,
+ * which are opened by {@link Handler} once it's registered with
+ * <code>java.protocol.handler.pkgs</code>, so they work anywhere as long as the class loader of
+ * the uberjar exists.
+ */
+public class NestedJarClassLoader extends ClassLoader {
+  /**
+   * Connection to a resource in a nested jar
+   */
+  private static final class Connection extends URLConnection {
+    private final ArchiveReader.Entry entry;
+
+    private final ArchiveReader jar;
+
+    Connection(URL url, ArchiveReader jar, ArchiveReader.Entry entry) {
+      super(url);
+      this.jar = jar;
+      this.entry = entry;
+    }
+
+    @Override
+    public void connect() {
+      connected = true;
+    }
+
+    @Override
+    public long getContentLengthLong() {
+      return entry.getSize();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+      return new ByteArrayInputStream(jar.read(entry));
+    }
+  }
+
+  static {
+    ClassLoader.registerAsParallelCapable();
+  }
+
+  private static final URLStreamHandler HANDLER = new Handler();
+
+  /**
+   * Class loaders by URL of their uberjar, which resolve <code>nested:</code> URLs
+   */
+  private static final Map<String, NestedJarClassLoader> LOADERS =
+      new ConcurrentHashMap<String, NestedJarClassLoader>();
+
+  private final Map<String, ProtectionDomain> domains = new HashMap<String, ProtectionDomain>();
+
+  private final Map<String, ArchiveReader> jars;
+
+  private final String location;
+
+  /**
+   * Name of jar of each entry, the first one in classpath if more than one jar has it
+   */
+  private final Map<String, String> owners = new HashMap<String, String>();
+
+  /**
+   * @param location URL of uberjar
+   * @param jars Readers of nested jars by their entry names in the order of classpath
+   * @param parent Parent class loader, which must not see uberjar
+   */
+  public NestedJarClassLoader(URL location, LinkedHashMap<String, ArchiveReader> jars,
+      ClassLoader parent) {
+    super(parent);
+    this.location = location.toString();
+    this.jars = jars;
+    for (Map.Entry<String, ArchiveReader> jar : jars.entrySet()) {
+      for (ArchiveReader.Entry entry : jar.getValue().getEntries()) {
+        if (!owners.containsKey(entry.getName())) {
+          owners.put(entry.getName(), jar.getKey());
+        }
+      }
+      domains.put(jar.getKey(), new ProtectionDomain(
+          new CodeSource(url(jar.getKey(), ""), (Certificate[]) null), null, this, null));
+    }
+    LOADERS.put(this.location, this);
+  }
+
+  @Override
+  protected Class<?> findClass(String name) throws ClassNotFoundException {
+    String path = name.replace('.', '/') + ".class";
+    String owner = owners.get(path);
+    if (owner == null) {
+      throw new ClassNotFoundException(name);
+    }
+    ArchiveReader jar = jars.get(owner);
+    byte[] bytes;
+    try {
+      bytes = jar.read(jar.getEntry(path));
+    } catch (ZipException e) {
+      throw new ClassNotFoundException("Can't read " + path + " from " + owner, e);
+    }
+    int dot = name.lastIndexOf('.');
+    if (dot != -1) {
+      String packageName = name.substring(0, dot);
+      synchronized (this) {
+        if (getPackage(packageName) == null) {
+          definePackage(packageName, null, null, null, null, null, null, null);
+        }
+      }
+    }
+    return defineClass(name, bytes, 0, bytes.length, domains.get(owner));
+  }
+
+  @Override
+  protected URL findResource(String name) {
+    String owner = owners.get(name);
+    return owner == null ? null : url(owner, name);
+  }
+
+  @Override
+  protected Enumeration<URL> findResources(String name) {
+    List<URL> resources = new ArrayList<URL>();
+    if (owners.containsKey(name)) {
+      for (Map.Entry<String, ArchiveReader> jar : jars.entrySet()) {
+        if (jar.getValue().getEntry(name) != null) {
+          resources.add(url(jar.getKey(), name));
+        }
+      }
+    }
+    return Collections.enumeration(resources);
+  }
+
+  /**
+   * Open a <code>nested:</code> URL created by any class loader of this class
+   *
+   * @param url URL of a resource in a nested jar
+   * @return Connection to the resource
+   * @throws IOException If resource doesn't exist
+   */
+  public static URLConnection openConnection(URL url) throws IOException {
+    String path = url.getFile();
+    int end = path.lastIndexOf("!/");
+    int start = path.lastIndexOf("!/", end - 1);
+    NestedJarClassLoader loader = start == -1 ? null : LOADERS.get(path.substring(0, start));
+    ArchiveReader jar = loader == null ? null : loader.jars.get(path.substring(start + 2, end));
+    ArchiveReader.Entry entry = jar == null ? null : jar.getEntry(path.substring(end + 2));
+    if (entry == null) {
+      throw new IOException("Resource " + url + " doesn't exist");
+    }
+    return new Connection(url, jar, entry);
+  }
+
+  private URL url(String jar, String name) {
+    try {
+      return new URL(null, "nested:" + location + "!/" + jar + "!/" + name, HANDLER);
+    } catch (MalformedURLException e) {
+      throw new IllegalStateException("Can't create URL of " + name + " in " + jar, e);
+    }
+  }
+}
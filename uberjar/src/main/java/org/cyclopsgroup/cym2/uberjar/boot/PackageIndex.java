@@ -0,0 +1,153 @@
+package org.cyclopsgroup.cym2.uberjar.boot;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Index of a flat uberjar from package to the local header offset of each entry in it. The
+ * launcher reads it instead of the central directory, and knows right away if a class or resource
+ * isn't in the uberjar. Offset of index itself is in archive comment, so that it's found from the
+ * end of archive without reading central directory either. In the index file, a line
+ * <code>package name</code> starts a package whose entries follow, one per line as offset and
+ * name within the package.
+ */
+public final class PackageIndex {
+  /**
+   * Prefix of archive comment, followed by offset of local header of index
+   */
+  public static final String COMMENT_PREFIX = "uberjar-index@";
+
+  /**
+   * Name of index entry in uberjar
+   */
+  public static final String ENTRY_NAME = "META-INF/uberjar/index";
+
+  private static final String HEADER = "uberjar-index 1";
+
+  private static final String MAIN_CLASS = "main-class ";
+
+  private static final String PACKAGE = "package ";
+
+  private final String mainClass;
+
+  private final Map<String, Map<String, Long>> packages;
+
+  private PackageIndex(String mainClass, Map<String, Map<String, Long>> packages) {
+    this.mainClass = mainClass;
+    this.packages = packages;
+  }
+
+  /**
+   * @return Name of main class of uberjar
+   */
+  public String getMainClass() {
+    return mainClass;
+  }
+
+  /**
+   * @param name Name of entry
+   * @return Offset of local header of entry, or -1 if it isn't in uberjar
+   */
+  public long getOffset(String name) {
+    int slash = name.lastIndexOf('/', name.length() - 2);
+    Map<String, Long> entries = packages.get(slash == -1 ? "" : name.substring(0, slash));
+    if (entries == null) {
+      return -1;
+    }
+    Long offset = entries.get(name.substring(slash + 1));
+    return offset == null ? -1 : offset;
+  }
+
+  /**
+   * @param packageName Name of package separated by slash
+   * @return True if uberjar has any entry in the package
+   */
+  public boolean hasPackage(String packageName) {
+    return packages.containsKey(packageName);
+  }
+
+  /**
+   * @param archive Content of uberjar
+   * @return Index of uberjar, found with archive comment
+   * @throws IOException If uberjar doesn't have an index
+   */
+  public static PackageIndex read(ByteBuffer archive) throws IOException {
+    String comment = ArchiveReader.readComment(archive);
+    if (!comment.startsWith(COMMENT_PREFIX)) {
+      throw new IOException("Archive doesn't have an uberjar index");
+    }
+    long offset = Long.parseLong(comment.substring(COMMENT_PREFIX.length()));
+    return read(new ByteArrayInputStream(ArchiveReader.readLocal(archive, offset)));
+  }
+
+  /**
+   * @param in Content of index
+   * @return Index that is read
+   * @throws IOException If content can't be read or isn't an index
+   */
+  public static PackageIndex read(InputStream in) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    if (!HEADER.equals(reader.readLine())) {
+      throw new IOException("Content isn't an uberjar index");
+    }
+    String line = reader.readLine();
+    if (line == null || !line.startsWith(MAIN_CLASS)) {
+      throw new IOException("Main class isn't in uberjar index");
+    }
+    String mainClass = line.substring(MAIN_CLASS.length());
+    Map<String, Map<String, Long>> packages = new HashMap<String, Map<String, Long>>();
+    Map<String, Long> entries = null;
+    while ((line = reader.readLine()) != null) {
+      if (line.startsWith(PACKAGE)) {
+        entries = new HashMap<String, Long>();
+        packages.put(line.substring(PACKAGE.length()), entries);
+      } else if (entries != null) {
+        int space = line.indexOf(' ');
+        entries.put(line.substring(space + 1), Long.parseLong(line.substring(0, space)));
+      }
+    }
+    return new PackageIndex(mainClass, packages);
+  }
+
+  /**
+   * @param mainClass Name of main class
+   * @param offsets Offsets of local headers of all entries in uberjar
+   * @return Content of index
+   */
+  public static byte[] write(String mainClass, Map<String, Long> offsets) {
+    Map<String, Map<String, Long>> packages = new TreeMap<String, Map<String, Long>>();
+    for (Map.Entry<String, Long> offset : offsets.entrySet()) {
+      String name = offset.getKey();
+      int slash = name.lastIndexOf('/', name.length() - 2);
+      String packageName = slash == -1 ? "" : name.substring(0, slash);
+      Map<String, Long> entries = packages.get(packageName);
+      if (entries == null) {
+        entries = new TreeMap<String, Long>();
+        packages.put(packageName, entries);
+      }
+      entries.put(name.substring(slash + 1), offset.getValue());
+    }
+    StringWriter content = new StringWriter();
+    PrintWriter out = new PrintWriter(content);
+    out.print(HEADER + "\n");
+    out.print(MAIN_CLASS + mainClass + "\n");
+    for (Map.Entry<String, Map<String, Long>> entries : packages.entrySet()) {
+      out.print(PACKAGE + entries.getKey() + "\n");
+      for (Map.Entry<String, Long> entry : entries.getValue().entrySet()) {
+        out.print(entry.getValue() + " " + entry.getKey() + "\n");
+      }
+    }
+    out.flush();
+    return content.toString().getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,19 @@
+package org.cyclopsgroup.cym2.uberjar.boot.nested;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import org.cyclopsgroup.cym2.uberjar.boot.NestedJarClassLoader;
+
+/**
+ * Handler of <code>nested:</code> URLs. Its package and name are what
+ * <code>java.protocol.handler.pkgs</code> requires, so that URLs of resources in nested jars can
+ * be parsed and opened anywhere, not only through the class loader that created them.
+ */
+public class Handler extends URLStreamHandler {
+  @Override
+  protected URLConnection openConnection(URL url) throws IOException {
+    return NestedJarClassLoader.openConnection(url);
+  }
+}
@@ -0,0 +1,218 @@
+package org.cyclopsgroup.cym2.uberjar;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.cyclopsgroup.cym2.uberjar.boot.ArchiveReader;
+
+/**
+ * Round trips of {@link ArchiveWriter} and {@link ArchiveReader} against {@link ZipFile}
+ */
+public class ArchiveWriterTest extends TestCase {
+  private static final long TIME = 1500000000000L;
+
+  private File directory;
+
+  private static long crcOf(byte[] content) {
+    CRC32 crc = new CRC32();
+    crc.update(content);
+    return crc.getValue();
+  }
+
+  private static byte[] contentOf(int index) {
+    byte[] content = new byte[index * 37 % 5000];
+    new Random(index).nextBytes(content);
+    // Half random and half repeated, so that deflating makes a difference
+    for (int i = content.length / 2; i < content.length; i++) {
+      content[i] = (byte) (i % 7);
+    }
+    return content;
+  }
+
+  /**
+   * Read archive with {@link ZipFile}, and with {@link ZipInputStream}, which verifies CRC of
+   * every entry, and compare entries with expected content
+   */
+  private static void assertArchive(File archive, List<String> names, List<byte[]> contents)
+      throws IOException {
+    try (ZipFile zip = new ZipFile(archive)) {
+      assertEquals(names.size(), zip.size());
+      for (int i = 0; i < names.size(); i++) {
+        ZipEntry entry = zip.getEntry(names.get(i));
+        assertNotNull(names.get(i), entry);
+        assertEquals(names.get(i), contents.get(i).length, entry.getSize());
+        assertEquals(names.get(i), crcOf(contents.get(i)), entry.getCrc());
+        try (InputStream in = zip.getInputStream(entry)) {
+          assertTrue(names.get(i), Arrays.equals(contents.get(i), IOUtils.toByteArray(in)));
+        }
+      }
+    }
+    try (ZipInputStream in = new ZipInputStream(new FileInputStream(archive))) {
+      int i = 0;
+      for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+        assertEquals(names.get(i), entry.getName());
+        assertTrue(entry.getName(),
+            Arrays.equals(contents.get(i), IOUtils.toByteArray(in)));
+        i++;
+      }
+      assertEquals(names.size(), i);
+    }
+    ArchiveReader reader = FlatLayout.map(archive);
+    assertEquals(names.size(), reader.getEntries().size());
+    for (int i = 0; i < names.size(); i++) {
+      ArchiveReader.Entry entry = reader.getEntry(names.get(i));
+      assertEquals(crcOf(contents.get(i)), entry.getCrc());
+      assertTrue(names.get(i), Arrays.equals(contents.get(i), reader.read(entry)));
+    }
+  }
+
+  @Override
+  protected void setUp() throws IOException {
+    directory = Files.createTempDirectory("archive-writer-test").toFile();
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  private void roundTrip(int threads) throws IOException {
+    File archive = new File(directory, "test.jar");
+    List<String> names = new ArrayList<String>();
+    List<byte[]> contents = new ArrayList<byte[]>();
+    try (ArchiveWriter writer = new ArchiveWriter(archive, Deflater.DEFAULT_COMPRESSION, threads)) {
+      for (int i = 0; i < 200; i++) {
+        final byte[] content = contentOf(i);
+        String name = "dir" + i % 3 + "/entry" + i;
+        if (i % 3 == 0) {
+          writer.addStored(name, TIME, content);
+        } else if (i % 3 == 1) {
+          File file = new File(directory, "file" + i);
+          FileUtils.writeByteArrayToFile(file, content);
+          writer.addStored(name, TIME, file);
+        } else {
+          writer.addDeflated(name, TIME, () -> content);
+        }
+        names.add(name);
+        contents.add(content);
+      }
+      writer.setComment("comment");
+    }
+    assertArchive(archive, names, contents);
+    try (ZipFile zip = new ZipFile(archive)) {
+      assertEquals("comment", zip.getComment());
+      assertEquals(ZipEntry.STORED, zip.getEntry("dir0/entry0").getMethod());
+      assertEquals(ZipEntry.STORED, zip.getEntry("dir1/entry1").getMethod());
+      assertEquals(ZipEntry.DEFLATED, zip.getEntry("dir2/entry2").getMethod());
+    }
+  }
+
+  public void testDuplicateEntry() throws IOException {
+    try (ArchiveWriter writer = new ArchiveWriter(new File(directory, "test.jar"), 1, 1)) {
+      writer.addStored("a", TIME, new byte[1]);
+      try {
+        writer.addStored("a", TIME, new byte[1]);
+        fail("Adding an entry twice should fail");
+      } catch (ZipException e) {
+        // Expected
+      }
+    }
+  }
+
+  public void testRawCopy() throws IOException {
+    File source = new File(directory, "source.jar");
+    List<String> names = new ArrayList<String>();
+    List<byte[]> contents = new ArrayList<byte[]>();
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(source))) {
+      for (int i = 0; i < 50; i++) {
+        ZipEntry entry = new ZipEntry("entry" + i);
+        byte[] content = contentOf(i);
+        if (i % 2 == 0) {
+          entry.setMethod(ZipEntry.STORED);
+          entry.setSize(content.length);
+          entry.setCrc(crcOf(content));
+        }
+        out.putNextEntry(entry);
+        out.write(content);
+        names.add(entry.getName());
+        contents.add(content);
+      }
+    }
+    ArchiveReader reader = FlatLayout.map(source);
+    File archive = new File(directory, "copy.jar");
+    try (ArchiveWriter writer = new ArchiveWriter(archive, 1, 1)) {
+      for (ArchiveReader.Entry entry : reader.getEntries()) {
+        writer.addRaw(entry, reader.getData(entry));
+      }
+    }
+    assertArchive(archive, names, contents);
+  }
+
+  public void testRoundTrip() throws IOException {
+    roundTrip(1);
+  }
+
+  public void testRoundTripWithParallelDeflate() throws IOException {
+    roundTrip(4);
+  }
+
+  public void testZip64EntryCount() throws IOException {
+    File archive = new File(directory, "test.jar");
+    int count = 70000;
+    List<String> names = new ArrayList<String>(count);
+    List<byte[]> contents = new ArrayList<byte[]>(count);
+    try (ArchiveWriter writer = new ArchiveWriter(archive, 1, 2)) {
+      for (int i = 0; i < count; i++) {
+        final byte[] content = ("entry " + i).getBytes(StandardCharsets.UTF_8);
+        String name = "e/" + i;
+        if (i % 2 == 0) {
+          writer.addStored(name, TIME, content);
+        } else {
+          writer.addDeflated(name, TIME, () -> content);
+        }
+        names.add(name);
+        contents.add(content);
+      }
+    }
+    assertArchive(archive, names, contents);
+  }
+
+  public void testZip64ReadFromJavaArchive() throws IOException {
+    File archive = new File(directory, "java.jar");
+    int count = 70000;
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(archive))) {
+      for (int i = 0; i < count; i++) {
+        out.putNextEntry(new ZipEntry("e/" + i));
+        out.write(("entry " + i).getBytes(StandardCharsets.UTF_8));
+      }
+    }
+    ArchiveReader reader = FlatLayout.map(archive);
+    assertEquals(count, reader.getEntries().size());
+    List<String> names = new ArrayList<String>();
+    for (ArchiveReader.Entry entry : reader.getEntries()) {
+      names.add(entry.getName());
+    }
+    assertEquals("e/0", names.get(0));
+    assertEquals("e/69999", names.get(count - 1));
+    assertEquals("entry 69999",
+        new String(reader.read(reader.getEntry("e/69999")), StandardCharsets.UTF_8));
+  }
+}
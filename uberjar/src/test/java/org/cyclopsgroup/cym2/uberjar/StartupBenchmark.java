@@ -0,0 +1,198 @@
+package org.cyclopsgroup.cym2.uberjar;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.DefaultArtifact;
+import org.apache.maven.artifact.handler.DefaultArtifactHandler;
+import org.apache.maven.artifact.versioning.VersionRange;
+import org.apache.maven.model.Model;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.apache.maven.project.MavenProject;
+import org.codehaus.classworlds.Launcher;
+import org.codehaus.classworlds.uberjar.boot.Bootstrapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures time from <code>java -jar</code> of an uberjar until its main class returns. The main
+ * class loads every class of commons-lang and commons-io, which are dependencies of the uberjar,
+ * so startup is dominated by finding and defining classes. <code>cds</code> runs the launch
+ * script of a flat uberjar with class data sharing archive. Classworlds-boot only runs on Java 8
+ * and older. Run it with
+ *
+ * <pre>
+ * mvn -pl uberjar test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java \
+ *   -Dexec.args="-cp %classpath org.openjdk.jmh.Main StartupBenchmark"
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@State(Scope.Benchmark)
+public class StartupBenchmark {
+  /**
+   * Main class of uberjar, which loads classes listed in {@link #CLASSES}
+   */
+  public static class App {
+    public static void main(String[] args) throws Exception {
+      ClassLoader loader = App.class.getClassLoader();
+      int count = 0;
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+          loader.getResourceAsStream(CLASSES), StandardCharsets.UTF_8))) {
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+          Class.forName(line, false, loader);
+          count++;
+        }
+      }
+      System.out.println(count);
+    }
+  }
+
+  private static final String CLASSES = "startup-benchmark/classes.txt";
+
+  private File baseDirectory;
+
+  private List<String> command;
+
+  @Param({"classworlds", "mapped", "flat", "cds"})
+  public String launcher;
+
+  private static File jarOf(Class<?> type) throws Exception {
+    return new File(type.getProtectionDomain().getCodeSource().getLocation().toURI());
+  }
+
+  private static Artifact artifact(String groupId, String artifactId, File file) {
+    Artifact artifact = new DefaultArtifact(groupId, artifactId,
+        VersionRange.createFromVersion("1.0"), Artifact.SCOPE_RUNTIME, "jar", null,
+        new DefaultArtifactHandler("jar"));
+    artifact.setFile(file);
+    return artifact;
+  }
+
+  private static void set(Object mojo, String name, Object value) throws Exception {
+    Field field = UberjarMojo.class.getDeclaredField(name);
+    field.setAccessible(true);
+    field.set(mojo, value);
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    baseDirectory = Files.createTempDirectory("uberjar-benchmark").toFile();
+    final List<String> classpath = new ArrayList<String>();
+    classpath.add(jarOf(StringUtils.class).getPath());
+    classpath.add(jarOf(IOUtils.class).getPath());
+
+    List<String> classes = new ArrayList<String>();
+    for (String jar : classpath) {
+      try (JarFile jarFile = new JarFile(jar)) {
+        for (Enumeration<JarEntry> e = jarFile.entries(); e.hasMoreElements();) {
+          String name = e.nextElement().getName();
+          if (name.endsWith(".class") && !name.contains("-")) {
+            classes.add(name.substring(0, name.length() - 6).replace('/', '.'));
+          }
+        }
+      }
+    }
+    File appJar = new File(baseDirectory, "app.jar");
+    String appClass = App.class.getName().replace('.', '/') + ".class";
+    try (JarOutputStream out = new JarOutputStream(new FileOutputStream(appJar));
+        InputStream in = App.class.getClassLoader().getResourceAsStream(appClass)) {
+      out.putNextEntry(new JarEntry(appClass));
+      IOUtils.copy(in, out);
+      out.putNextEntry(new JarEntry(CLASSES));
+      out.write((StringUtils.join(classes, '\n') + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    Model model = new Model();
+    model.setPackaging("jar");
+    MavenProject project = new MavenProject(model) {
+      @Override
+      public List<String> getRuntimeClasspathElements() {
+        return classpath;
+      }
+    };
+    Map<String, Artifact> pluginArtifactMap = new HashMap<String, Artifact>();
+    pluginArtifactMap.put("classworlds:classworlds",
+        artifact("classworlds", "classworlds", jarOf(Launcher.class)));
+    pluginArtifactMap.put("classworlds:classworlds-boot",
+        artifact("classworlds", "classworlds-boot", jarOf(Bootstrapper.class)));
+
+    File uberjarFile = new File(baseDirectory, "uber.jar");
+    boolean cds = launcher.equals("cds");
+    UberjarMojo mojo = new UberjarMojo();
+    mojo.setLog(new SystemStreamLog() {
+      @Override
+      public void info(CharSequence content) {}
+    });
+    set(mojo, "artifactJarFile", appJar);
+    set(mojo, "classDataSharing", cds);
+    set(mojo, "duplicateEntries", "first");
+    set(mojo, "incremental", false);
+    set(mojo, "launcher", launcher.equals("mapped") ? "mapped" : "classworlds");
+    set(mojo, "layout", launcher.equals("flat") || cds ? "flat" : "nested");
+    set(mojo, "libraryEntryMethod", "stored");
+    set(mojo, "mainClass", App.class.getName());
+    set(mojo, "mergeServices", true);
+    set(mojo, "parallelDeflate", false);
+    set(mojo, "pluginArtifactMap", pluginArtifactMap);
+    set(mojo, "project", project);
+    set(mojo, "trainingTimeout", 300);
+    set(mojo, "uberjarFile", uberjarFile);
+    mojo.execute();
+    if (cds) {
+      command = Arrays.asList(new File(baseDirectory, "uber.sh").getPath());
+    } else {
+      command = Arrays.asList(new File(System.getProperty("java.home"), "bin/java").getPath(),
+          "-jar", uberjarFile.getPath());
+    }
+  }
+
+  @Benchmark
+  public String start() throws IOException, InterruptedException {
+    Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+    String output = IOUtils.toString(process.getInputStream(), StandardCharsets.UTF_8);
+    if (process.waitFor() != 0) {
+      throw new IllegalStateException("Uberjar failed to start: " + output);
+    }
+    return output;
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(baseDirectory);
+  }
+}